@@ -3,7 +3,18 @@ package org.toubassi.femtozip;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
+/**
+ * Compresses and decompresses documents using a trained model.
+ *
+ * Thread safety: a model is immutable once built or loaded, and every
+ * implementation in this package may be shared by any number of threads.
+ * Scratch state lives in the calls (or, for FemtoZipCompressionModel, in per
+ * thread Compressor/Decompressor sessions), never in the model, which is what
+ * makes the parallel compressAll/decompressAll variants possible.  The buffers
+ * passed in must of course not be shared between concurrent calls.
+ */
 public interface CompressionModel {
 
     /**
@@ -42,6 +53,122 @@ public interface CompressionModel {
     int decompress(InputStream compressedIn, ByteBuffer decompressedOut) throws IOException;
 
 
+    /**
+     * Compresses every document in documents back to back into arena, starting at
+     * its position.
+     * @see #compressAll(DocumentList, int, int, ByteBuffer, int[])
+     */
+    default int compressAll(DocumentList documents, ByteBuffer arena, int[] offsets) throws IOException {
+        return compressAll(documents, 0, documents.size(), arena, offsets);
+    }
+
+    /**
+     * Compresses documents [from, to) back to back into arena, starting at its
+     * position.  On return offsets[i - from] is the arena position at which document
+     * i starts, and offsets[to - from] is the end of the last one, so offsets must
+     * hold at least to - from + 1 entries.  As with compress, the arena's position
+     * is left unchanged and its limit is set to the end of the written data.
+     * The documents' positions are not changed.
+     *
+     * Per document state is reused across the batch where the model supports it
+     * (see FemtoZipCompressionModel.Compressor).  Several threads may call this
+     * concurrently on disjoint document ranges as long as each writes to its own
+     * arena, or its own duplicate of a shared one covering a disjoint region.
+     * @return the total bytes written to arena
+     */
+    default int compressAll(DocumentList documents, int from, int to, ByteBuffer arena, int[] offsets) throws IOException {
+        if (offsets.length < to - from + 1) {
+            throw new IllegalArgumentException("offsets needs " + (to - from + 1) + " entries, has " + offsets.length);
+        }
+        int start = arena.position();
+        int arenaLimit = arena.limit();
+        int position = start;
+        for (int i = from; i < to; i++) {
+            ByteBuffer document = documents.getBB(i);
+            int documentPosition = document.position();
+
+            offsets[i - from] = position;
+            arena.limit(arenaLimit);
+            arena.position(position);
+            position += compress(document, arena);
+
+            document.position(documentPosition);
+        }
+        offsets[to - from] = position;
+        arena.limit(position);
+        arena.position(start);
+        return position - start;
+    }
+
+    /**
+     * Compresses documents like compressAll(DocumentList, ByteBuffer, int[]), but
+     * spreads the work over executor.  Each task compresses a contiguous run of
+     * documents into its own scratch buffer, and the results are copied into arena
+     * in document order, so arena and offsets are identical to the sequential
+     * method's.  documents must support concurrent getBB calls for distinct indices.
+     * @see #compressAll(DocumentList, ByteBuffer, int[])
+     */
+    default int compressAll(DocumentList documents, ByteBuffer arena, int[] offsets, ExecutorService executor) throws IOException {
+        return ParallelBatch.compressAll(this, documents, arena, offsets, executor);
+    }
+
+    /**
+     * Compresses documents in parallel on the common ForkJoinPool.
+     * @see #compressAll(DocumentList, ByteBuffer, int[], ExecutorService)
+     */
+    default int compressAllParallel(DocumentList documents, ByteBuffer arena, int[] offsets) throws IOException {
+        return compressAll(documents, arena, offsets, ParallelBatch.defaultExecutor());
+    }
+
+    /**
+     * The inverse of compressAll.  Decompresses count documents, where document i
+     * occupies [offsets[i], offsets[i + 1]) of arena, back to back into out starting
+     * at its position.  outOffsets (at least count + 1 entries) receives the
+     * document boundaries in out, just as compressAll fills offsets.  The position
+     * of out is left unchanged and its limit is set to the end of the written data.
+     * @return the total bytes written to out
+     */
+    default int decompressAll(ByteBuffer arena, int[] offsets, int count, ByteBuffer out, int[] outOffsets) {
+        if (offsets.length < count + 1 || outOffsets.length < count + 1) {
+            throw new IllegalArgumentException("offsets and outOffsets need " + (count + 1) + " entries");
+        }
+        ByteBuffer compressed = arena.duplicate();
+        int start = out.position();
+        int outLimit = out.limit();
+        int position = start;
+        for (int i = 0; i < count; i++) {
+            compressed.limit(compressed.capacity());
+            compressed.position(offsets[i]);
+            compressed.limit(offsets[i + 1]);
+
+            outOffsets[i] = position;
+            out.limit(outLimit);
+            out.position(position);
+            position += decompress(compressed, out);
+        }
+        outOffsets[count] = position;
+        out.limit(position);
+        out.position(start);
+        return position - start;
+    }
+
+    /**
+     * Decompresses like decompressAll(ByteBuffer, int[], int, ByteBuffer, int[]),
+     * but spreads the work over executor.  The output is identical to the
+     * sequential method's.
+     */
+    default int decompressAll(ByteBuffer arena, int[] offsets, int count, ByteBuffer out, int[] outOffsets, ExecutorService executor) throws IOException {
+        return ParallelBatch.decompressAll(this, arena, offsets, count, out, outOffsets, executor);
+    }
+
+    /**
+     * Decompresses in parallel on the common ForkJoinPool.
+     * @see #decompressAll(ByteBuffer, int[], int, ByteBuffer, int[], ExecutorService)
+     */
+    default int decompressAllParallel(ByteBuffer arena, int[] offsets, int count, ByteBuffer out, int[] outOffsets) throws IOException {
+        return decompressAll(arena, offsets, count, out, outOffsets, ParallelBatch.defaultExecutor());
+    }
+
     /**
      * Saves the model
      * @param out
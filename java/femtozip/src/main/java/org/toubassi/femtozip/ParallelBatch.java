@@ -0,0 +1,193 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.toubassi.femtozip.util.ConcurrentUtil;
+
+/**
+ * Implements the parallel compressAll/decompressAll of CompressionModel.  The
+ * documents are split into contiguous chunks, each chunk is processed by one
+ * task into its own scratch buffer, and the scratch buffers are then copied
+ * into the arena in chunk order.  The arena contents and offsets are therefore
+ * identical to the sequential methods, whatever the scheduling.
+ */
+class ParallelBatch {
+
+    // More chunks than threads so uneven documents still balance out
+    private static final int ChunksPerThread = 4;
+
+    private static class Chunk {
+        final int from;
+        final int to;
+        ByteBuffer scratch;
+        int[] lengths;
+
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.lengths = new int[to - from];
+            this.scratch = ByteBuffer.allocate(0);
+        }
+
+        /**
+         * Makes sure the scratch buffer has at least needed bytes left after
+         * position, preserving what has been written so far.
+         */
+        void ensureRemaining(int position, int needed) {
+            if (scratch.capacity() - position < needed) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, position + needed));
+                scratch.limit(position);
+                scratch.position(0);
+                grown.put(scratch);
+                scratch = grown;
+            }
+            scratch.limit(scratch.capacity());
+            scratch.position(position);
+        }
+    }
+
+    static int compressAll(final CompressionModel model, final DocumentList documents, ByteBuffer arena, int[] offsets, ExecutorService executor) throws IOException {
+        int count = documents.size();
+        if (offsets.length < count + 1) {
+            throw new IllegalArgumentException("offsets needs " + (count + 1) + " entries, has " + offsets.length);
+        }
+
+        List<Chunk> chunks = split(count, executor);
+        List<Callable<Chunk>> tasks = new ArrayList<>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            tasks.add(new Callable<Chunk>() {
+                @Override
+                public Chunk call() throws IOException {
+                    int position = 0;
+                    for (int i = chunk.from; i < chunk.to; i++) {
+                        ByteBuffer document = documents.getBB(i);
+                        int documentPosition = document.position();
+                        int needed = document.remaining() * 3 + 64;
+                        while (true) {
+                            chunk.ensureRemaining(position, needed);
+                            try {
+                                chunk.lengths[i - chunk.from] = model.compress(document, chunk.scratch);
+                                break;
+                            } catch (BufferOverflowException e) {
+                                needed *= 2;
+                            } finally {
+                                document.position(documentPosition);
+                            }
+                        }
+                        position += chunk.lengths[i - chunk.from];
+                    }
+                    chunk.scratch.limit(position);
+                    chunk.scratch.position(0);
+                    return chunk;
+                }
+            });
+        }
+        return gather(run(tasks, executor), arena, offsets);
+    }
+
+    static int decompressAll(final CompressionModel model, final ByteBuffer arena, final int[] offsets, int count, ByteBuffer out, int[] outOffsets, ExecutorService executor) throws IOException {
+        if (offsets.length < count + 1 || outOffsets.length < count + 1) {
+            throw new IllegalArgumentException("offsets and outOffsets need " + (count + 1) + " entries");
+        }
+
+        List<Chunk> chunks = split(count, executor);
+        List<Callable<Chunk>> tasks = new ArrayList<>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            tasks.add(new Callable<Chunk>() {
+                @Override
+                public Chunk call() {
+                    ByteBuffer compressed = arena.duplicate();
+                    int position = 0;
+                    for (int i = chunk.from; i < chunk.to; i++) {
+                        int needed = (offsets[i + 1] - offsets[i]) * 4 + 64;
+                        while (true) {
+                            compressed.limit(compressed.capacity());
+                            compressed.position(offsets[i]);
+                            compressed.limit(offsets[i + 1]);
+                            chunk.ensureRemaining(position, needed);
+                            try {
+                                chunk.lengths[i - chunk.from] = model.decompress(compressed, chunk.scratch);
+                                break;
+                            } catch (BufferOverflowException e) {
+                                needed *= 2;
+                            }
+                        }
+                        position += chunk.lengths[i - chunk.from];
+                    }
+                    chunk.scratch.limit(position);
+                    chunk.scratch.position(0);
+                    return chunk;
+                }
+            });
+        }
+        return gather(run(tasks, executor), out, outOffsets);
+    }
+
+    static ExecutorService defaultExecutor() {
+        return ForkJoinPool.commonPool();
+    }
+
+    private static List<Chunk> split(int count, ExecutorService executor) {
+        int threads = ConcurrentUtil.getParallelism(executor);
+        int chunkCount = Math.max(1, Math.min(count, threads * ChunksPerThread));
+        List<Chunk> chunks = new ArrayList<>(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            chunks.add(new Chunk((int)((long)count * c / chunkCount), (int)((long)count * (c + 1) / chunkCount)));
+        }
+        return chunks;
+    }
+
+    private static List<Chunk> run(List<Callable<Chunk>> tasks, ExecutorService executor) throws IOException {
+        return ConcurrentUtil.invokeAll(executor, tasks);
+    }
+
+    /**
+     * Copies the chunks back to back into out, filling offsets as the
+     * sequential methods do.
+     */
+    private static int gather(List<Chunk> chunks, ByteBuffer out, int[] offsets) {
+        int start = out.position();
+        int total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.scratch.remaining();
+        }
+        if (out.remaining() < total) {
+            throw new BufferOverflowException();
+        }
+
+        int position = start;
+        for (Chunk chunk : chunks) {
+            for (int i = chunk.from; i < chunk.to; i++) {
+                offsets[i] = position;
+                position += chunk.lengths[i - chunk.from];
+            }
+            out.put(chunk.scratch);
+        }
+        offsets[chunks.get(chunks.size() - 1).to] = position;
+        out.limit(position);
+        out.position(start);
+        return position - start;
+    }
+}
@@ -28,6 +28,15 @@ public class BitInput {
         in = input;
     }
     
+    /**
+     * Discards any partially consumed byte so the next read starts fresh
+     * from the underlying stream.
+     */
+    public void reset() {
+        buffer = 0;
+        count = 0;
+    }
+
     public int readBit() throws IOException {
         if (count == 0) {
             buffer = in.read();
@@ -5,6 +5,12 @@ import java.io.IOException;
 public interface BitOutput {
     void writeBit(int bit) throws IOException;
 
+    /**
+     * Writes the low length bits of bits, least significant bit first, exactly
+     * as length calls to writeBit would.  length must be between 0 and 32.
+     */
+    void writeBits(int bits, int length) throws IOException;
+
     void flush() throws IOException;
 
     int getWrittenBytes();
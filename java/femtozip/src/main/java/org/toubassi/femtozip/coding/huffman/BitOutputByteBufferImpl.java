@@ -1,12 +1,17 @@
 package org.toubassi.femtozip.coding.huffman;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import java.io.IOException;
 
+/**
+ * Collects bits in a 64-bit accumulator and stores them into the buffer
+ * 8 bytes at a time, with a single putLong.
+ */
 public class BitOutputByteBufferImpl implements BitOutput {
-    private final ByteBuffer out;
-    private int buffer;
+    private ByteBuffer out;
+    private long buffer;
     private int count;
     private int writtenBytes;
 
@@ -15,28 +20,47 @@ public class BitOutputByteBufferImpl implements BitOutput {
         writtenBytes = 0;
     }
 
+    /**
+     * Points this writer at a new buffer, discarding any buffered bits.
+     */
+    public void reset(ByteBuffer out) {
+        this.out = out;
+        buffer = 0;
+        count = 0;
+        writtenBytes = 0;
+    }
+
     @Override
     public void writeBit(int bit) throws IOException {
-        if (bit > 0) {
-            buffer |= (1 << count);
-        }
-        count++;
-        if (count == 8) {
-            out.put((byte) buffer);
-            writtenBytes++;
-            buffer = 0;
-            count = 0;
+        writeBits(bit > 0 ? 1 : 0, 1);
+    }
+
+    @Override
+    public void writeBits(int bits, int length) throws IOException {
+        long value = bits & ((1L << length) - 1);
+        buffer |= value << count;
+        int total = count + length;
+        if (total >= 64) {
+            // The bits are stored least significant first, i.e. little endian
+            out.putLong(out.order() == ByteOrder.LITTLE_ENDIAN ? buffer : Long.reverseBytes(buffer));
+            writtenBytes += 8;
+            // count >= 32 here, so the shift is in range
+            buffer = value >>> (64 - count);
+            total -= 64;
         }
+        count = total;
     }
 
     @Override
     public void flush() throws IOException {
-        if (count > 0) {
+        while (count > 0) {
             out.put((byte)buffer);
             writtenBytes++;
-            buffer = 0;
-            count = 0;
+            buffer >>>= 8;
+            count -= 8;
         }
+        buffer = 0;
+        count = 0;
     }
 
     @Override
@@ -18,40 +18,72 @@ package org.toubassi.femtozip.coding.huffman;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Collects bits in a 64-bit accumulator and writes them to the stream
+ * 8 bytes at a time.
+ */
 public class BitOutputOutputStreamImpl implements BitOutput {
     
     private OutputStream out;
-    private int buffer;
+    private long buffer;
     private int count;
     private int writtenBytes;
+    private final byte[] bytes = new byte[8];
     
     public BitOutputOutputStreamImpl(OutputStream output) {
         out = output;
         writtenBytes = 0;
     }
 
+    /**
+     * Points this writer at a new stream, discarding any buffered bits.
+     */
+    public void reset(OutputStream output) {
+        out = output;
+        buffer = 0;
+        count = 0;
+        writtenBytes = 0;
+    }
+
     @Override
     public void writeBit(int bit) throws IOException  {
-        if (bit > 0) {
-            buffer |= (1 << count);
-        }
-        count++;
-        if (count == 8) {
-            out.write(buffer);
-            writtenBytes++;
-            buffer = 0;
-            count = 0;
+        writeBits(bit > 0 ? 1 : 0, 1);
+    }
+
+    @Override
+    public void writeBits(int bits, int length) throws IOException {
+        long value = bits & ((1L << length) - 1);
+        buffer |= value << count;
+        int total = count + length;
+        if (total >= 64) {
+            long b = buffer;
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte)b;
+                b >>>= 8;
+            }
+            out.write(bytes, 0, 8);
+            writtenBytes += 8;
+            // count >= 32 here, so the shift is in range
+            buffer = value >>> (64 - count);
+            total -= 64;
         }
+        count = total;
     }
 
     @Override
     public void flush() throws IOException {
-        if (count > 0) {
-            out.write(buffer);
-            writtenBytes++;
-            buffer = 0;
-            count = 0;
+        int n = 0;
+        while (count > 0) {
+            bytes[n++] = (byte)buffer;
+            buffer >>>= 8;
+            count -= 8;
+        }
+        if (n > 0) {
+            out.write(bytes, 0, n);
+            writtenBytes += n;
         }
+        buffer = 0;
+        count = 0;
     }
 
     /**
@@ -12,6 +12,10 @@ public class ByteBufferInputStream extends InputStream {
         this.buf = buf;
     }
 
+    public void reset(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
     public int read() throws IOException {
         if (!buf.hasRemaining()) {
             return -1;
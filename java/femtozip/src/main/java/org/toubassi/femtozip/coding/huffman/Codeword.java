@@ -75,14 +75,7 @@ public class Codeword implements Cloneable {
     }
     
     public void write(BitOutput bitOut) throws IOException {
-        int l = bitLength;
-        int v = value;
-        
-        while (l > 0) {
-            bitOut.writeBit((v & 0x1));
-            l--;
-            v >>= 1;
-        }
+        bitOut.writeBits(value, bitLength);
     }
 
 }
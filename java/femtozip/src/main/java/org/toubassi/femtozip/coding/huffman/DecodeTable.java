@@ -15,58 +15,216 @@
  */
 package org.toubassi.femtozip.coding.huffman;
 
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
+/**
+ * Maps the next bits of the input to the codeword they start with, using a
+ * flat int[] rather than objects.  Codewords up to PrimaryBits long are
+ * looked up in a single step, longer ones in a second table hanging off the
+ * primary entry for their first PrimaryBits bits.  Each entry packs the
+ * symbol, the bit length and whether the symbol is EOF, see getSymbol,
+ * getLength and isEOF.  Immutable once built, so it can be shared by any
+ * number of threads.  A table can also be read in place from an IntBuffer
+ * (e.g. a mapped model file), see map.
+ */
 public class DecodeTable {
-    
-    Codeword[] codes = new Codeword[256];
-    DecodeTable[] tables = new DecodeTable[256];
-    
-    public void build(Codeword[] encoding) {
-        build(encoding, 0);
+
+    /**
+     * Codewords up to this long are decoded with one lookup.  The primary
+     * table is smaller when the longest codeword is shorter than this.
+     */
+    public static final int PrimaryBits = 11;
+
+    /**
+     * The entry for bits that don't start any codeword.
+     */
+    public static final int Empty = -1;
+
+    private static final int LengthMask = 0x3f;
+    private static final int EOFFlag = 0x40;
+    private static final int SymbolShift = 7;
+
+    // Entries below Empty link to a secondary table, as ~(offset << LinkShift | bits)
+    private static final int LinkShift = 5;
+    private static final int LinkBitsMask = (1 << LinkShift) - 1;
+
+    private int[] table;
+    private IntBuffer mappedTable;
+    private int primaryBits;
+    private int primaryMask;
+
+    /**
+     * Returns a table which looks its entries up in table, as written by write
+     * for a table built with primaryBits.  The entries are checked against
+     * symbolCount so corrupt ones fail here rather than while decoding.
+     */
+    public static DecodeTable map(IntBuffer table, int primaryBits, int symbolCount) throws IOException {
+        int size = table.remaining();
+        if (primaryBits < 1 || primaryBits > PrimaryBits || size < 1 << primaryBits) {
+            throw new IOException("Corrupt Huffman decode table");
+        }
+        for (int i = 0; i < size; i++) {
+            int entry = table.get(table.position() + i);
+            if (entry < Empty) {
+                int link = ~entry;
+                int offset = link >>> LinkShift;
+                int bits = link & LinkBitsMask;
+                if (i >= 1 << primaryBits || offset < 1 << primaryBits || bits > FrequencyHuffmanModel.MaxCodeLength
+                        || (long)offset + (1 << bits) > size) {
+                    throw new IOException("Corrupt Huffman decode table");
+                }
+            }
+            else if (entry != Empty && (getSymbol(entry) >= symbolCount || getLength(entry) > FrequencyHuffmanModel.MaxCodeLength)) {
+                throw new IOException("Corrupt Huffman decode table");
+            }
+        }
+
+        DecodeTable decodeTable = new DecodeTable();
+        decodeTable.mappedTable = table.slice();
+        decodeTable.primaryBits = primaryBits;
+        decodeTable.primaryMask = (1 << primaryBits) - 1;
+        return decodeTable;
     }
-    
-    private void build(Codeword[] encoding, int consumedBitLength) {
-        
+
+    /**
+     * Builds the table for encoding, where the symbol at index eofSymbol (if
+     * any) is flagged as EOF.
+     */
+    public void build(Codeword[] encoding, int eofSymbol) {
+        int maxLength = 0;
+        for (Codeword code : encoding) {
+            if (code != null) {
+                maxLength = Math.max(maxLength, code.bitLength);
+            }
+        }
+        primaryBits = Math.max(1, Math.min(PrimaryBits, maxLength));
+        primaryMask = (1 << primaryBits) - 1;
+
+        // Each primary entry with longer codewords gets a secondary table
+        // wide enough for the longest of them
+        int[] secondaryBits = new int[1 << primaryBits];
+        for (Codeword code : encoding) {
+            if (code != null && code.bitLength > primaryBits) {
+                int index = code.value & primaryMask;
+                secondaryBits[index] = Math.max(secondaryBits[index], code.bitLength - primaryBits);
+            }
+        }
+        int size = 1 << primaryBits;
+        for (int bits : secondaryBits) {
+            if (bits > 0) {
+                size += 1 << bits;
+            }
+        }
+
+        table = new int[size];
+        Arrays.fill(table, Empty);
+        int offset = 1 << primaryBits;
+        for (int i = 0; i < secondaryBits.length; i++) {
+            if (secondaryBits[i] > 0) {
+                table[i] = ~((offset << LinkShift) | secondaryBits[i]);
+                offset += 1 << secondaryBits[i];
+            }
+        }
+
         for (int i = 0, count = encoding.length; i < count; i++) {
             Codeword code = encoding[i];
             if (code == null) {
                 continue;
             }
-            buildCodeword(consumedBitLength, code);
+            int entry = entry(i, i == eofSymbol, code.bitLength);
+            if (code.bitLength <= primaryBits) {
+                fill(0, primaryBits, code.value, code.bitLength, entry);
+            }
+            else {
+                int link = ~table[code.value & primaryMask];
+                fill(link >>> LinkShift, link & LinkBitsMask, code.value >>> primaryBits, code.bitLength - primaryBits, entry);
+            }
         }
-        
     }
 
-    private void buildCodeword(int consumedBitLength, Codeword code) {
-        int activeBitLength = code.bitLength - consumedBitLength;
-        
-        if (activeBitLength <= 8) {
-            
-            for (int j = 0, jcount = 1 << (8 - activeBitLength); j < jcount; j++) {
-                int index = (j << activeBitLength) | (code.value >> consumedBitLength);
-                codes[index] = code;
-            }
+    /**
+     * Packs a decoded symbol as returned by lookup.
+     */
+    static int entry(int symbol, boolean eof, int length) {
+        return (symbol << SymbolShift) | (eof ? EOFFlag : 0) | length;
+    }
+
+    /**
+     * Sets every entry of the width bit table at offset whose low length bits are value.
+     */
+    private void fill(int offset, int width, int value, int length, int entry) {
+        for (int j = 0, count = 1 << (width - length); j < count; j++) {
+            table[offset + ((j << length) | value)] = entry;
         }
-        else {
-            int index = (code.value >> consumedBitLength) & 0xff;
-            DecodeTable subtable = tables[index];
-            if (subtable == null) {
-                subtable = new DecodeTable();
-                tables[index] = subtable;
-            }
-            subtable.buildCodeword(consumedBitLength + 8, code);
+    }
+
+    /**
+     * Returns the entry for the codeword starting at the low bit of bits, or
+     * Empty if there is none.
+     */
+    public int lookup(int bits) {
+        int[] table = this.table;
+        if (table == null) {
+            return lookupMapped(bits);
+        }
+        int entry = table[bits & primaryMask];
+        if (entry < Empty) {
+            int link = ~entry;
+            entry = table[(link >>> LinkShift) + ((bits >>> primaryBits) & ((1 << (link & LinkBitsMask)) - 1))];
         }
+        return entry;
     }
-    
-    public Codeword decode(int value) {
-        int index = value & 0xff;
-        Codeword code = codes[index];
-        if (code != null) {
-            return code;
+
+    private int lookupMapped(int bits) {
+        int entry = mappedTable.get(bits & primaryMask);
+        if (entry < Empty) {
+            int link = ~entry;
+            entry = mappedTable.get((link >>> LinkShift) + ((bits >>> primaryBits) & ((1 << (link & LinkBitsMask)) - 1)));
+        }
+        return entry;
+    }
+
+    public int getPrimaryBits() {
+        return primaryBits;
+    }
+
+    /**
+     * Returns the number of entries write writes.
+     */
+    public int size() {
+        return table != null ? table.length : mappedTable.limit();
+    }
+
+    /**
+     * Writes the entries to out, for reading in place with map.
+     */
+    public void write(IntBuffer out) {
+        if (table != null) {
+            out.put(table);
         }
         else {
-            return tables[index].decode(value>>8);
+            out.put(mappedTable.duplicate());
         }
     }
 
+    public static int getSymbol(int entry) {
+        return entry >> SymbolShift;
+    }
+
+    public static int getLength(int entry) {
+        return entry & LengthMask;
+    }
+
+    public static boolean isEOF(int entry) {
+        return entry != Empty && (entry & EOFFlag) != 0;
+    }
+
+    /**
+     * Returns the size of the table in bytes.
+     */
+    public int getMemoryFootprint() {
+        return size() * 4;
+    }
 }
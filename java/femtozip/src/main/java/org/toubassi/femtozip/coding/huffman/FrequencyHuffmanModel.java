@@ -20,14 +20,51 @@ import java.nio.ByteBuffer;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
+/**
+ * A Huffman code computed from a histogram of symbol frequencies.  Codewords
+ * are limited to MaxCodeLength bits (using package-merge when the plain
+ * Huffman code would be deeper) and assigned canonically, so the code is fully
+ * described by its codeword lengths, which is all save writes.  The flat
+ * encode and decode tables can also be written out and read in place, see map.
+ */
 public class FrequencyHuffmanModel implements HuffmanModel {
-    
-    private Codeword[] encoding;
-    private DecodeTable decoding;
+
+    /**
+     * Codewords are never longer than this, which bounds the decode table.
+     */
+    public static final int MaxCodeLength = 15;
+
+    /**
+     * Formats the model can be read in.  CodewordFormat is the original one,
+     * writing every codeword out in full.  CodeLengthFormat is written by save.
+     */
+    public static final int CodewordFormat = 0;
+    public static final int CodeLengthFormat = 1;
+
+    // Roughly how many bytes of heap a Codeword takes
+    private static final int CodewordSize = 24;
+
+    // Built lazily for a mapped model, see getEncoding
+    private volatile Codeword[] encoding;
+    // Built lazily unless mapped, see getDecodeTable
+    private volatile DecodeTable decoding;
+
+    // Whether the codewords are the canonical ones for their lengths.  Always
+    // true unless the model was read in CodewordFormat.
+    private boolean canonical;
+
+    // The encoding packed for the encoder: the codeword value of symbol i is at
+    // 2 * i and its bit length at 2 * i + 1, or -1 if the symbol has no codeword.
+    private int[] encodeTable;
+    private IntBuffer mappedEncodeTable;
+    private int symbolCount;
     
     public static int[] computeHistogramWithEOFSymbol(ByteBuffer data) {
         int[] histogram = new int[256 + 1];
@@ -55,10 +92,60 @@ public class FrequencyHuffmanModel implements HuffmanModel {
         computeHuffmanCoding(histogram);
     }
     
+    private FrequencyHuffmanModel() {
+    }
+
+    /**
+     * Returns a model which encodes and decodes with tables read in place, as
+     * written by writeEncodeTable and getDecodeTable().write.  canonical is as
+     * returned by isCanonical.
+     */
+    public static FrequencyHuffmanModel map(IntBuffer encodeTable, DecodeTable decoding, boolean canonical) throws IOException {
+        int size = encodeTable.remaining();
+        if (size == 0 || size % 2 != 0) {
+            throw new IOException("Corrupt Huffman encode table");
+        }
+        for (int i = 0; i < size; i += 2) {
+            int value = encodeTable.get(encodeTable.position() + i);
+            int length = encodeTable.get(encodeTable.position() + i + 1);
+            if (length < -1 || length > MaxCodeLength || value < 0 || (length >= 0 && value >= 1 << length)) {
+                throw new IOException("Corrupt Huffman encode table");
+            }
+        }
+
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel();
+        model.mappedEncodeTable = encodeTable.slice();
+        model.symbolCount = size / 2;
+        model.decoding = decoding;
+        model.canonical = canonical;
+        return model;
+    }
+
+    /**
+     * Reads a model in CodewordFormat.
+     */
     public FrequencyHuffmanModel(DataInputStream in) throws IOException {
         load(in);
     }
 
+    /**
+     * Reads a model in the specified format.
+     */
+    public FrequencyHuffmanModel(DataInputStream in, int format) throws IOException {
+        if (format == CodewordFormat) {
+            load(in);
+        }
+        else if (format == CodeLengthFormat) {
+            loadCodeLengths(in);
+        }
+        else {
+            throw new IOException("Unknown Huffman model format " + format);
+        }
+    }
+
+    /**
+     * Reads a model in CodewordFormat.
+     */
     public void load(DataInputStream in) throws IOException {
         encoding = new Codeword[in.readInt()];
         for (int i = 0, count = encoding.length; i < count; i++) {
@@ -67,14 +154,65 @@ public class FrequencyHuffmanModel implements HuffmanModel {
                 encoding[i].load(in);
             }
         }
-        decoding = new DecodeTable();
-        decoding.build(encoding);
+        canonical = Arrays.equals(encodeTableOf(encoding), encodeTableOf(assignCanonicalCodes(getCodeLengths())));
+        buildTables();
+    }
+
+    /**
+     * Reads a model written by save.
+     */
+    private void loadCodeLengths(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt Huffman model, " + count + " symbols");
+        }
+        if (in.readBoolean()) {
+            // Lengths are stored plus one, with 0 for symbols without a codeword
+            int[] lengths = new int[count];
+            long kraftSum = 0;
+            for (int i = 0; i < count; i++) {
+                lengths[i] = in.readUnsignedByte() - 1;
+                if (lengths[i] > MaxCodeLength) {
+                    throw new IOException("Corrupt Huffman model, codeword length " + lengths[i]);
+                }
+                if (lengths[i] >= 0) {
+                    kraftSum += 1L << (MaxCodeLength - lengths[i]);
+                }
+            }
+            if (kraftSum > 1L << MaxCodeLength) {
+                throw new IOException("Corrupt Huffman model, codeword lengths aren't a prefix code");
+            }
+            encoding = assignCanonicalCodes(lengths);
+            canonical = true;
+        }
+        else {
+            // A model read in CodewordFormat whose codewords aren't canonical
+            encoding = new Codeword[count];
+            for (int i = 0; i < count; i++) {
+                if (in.readBoolean()) {
+                    encoding[i] = new Codeword();
+                    encoding[i].load(in);
+                }
+            }
+            canonical = false;
+        }
+        buildTables();
     }
 
+    /**
+     * Writes the model in CodeLengthFormat.  Only models read in
+     * CodewordFormat, whose codewords may not be canonical, still have every
+     * codeword written out.
+     */
     public void save(DataOutputStream out) throws IOException {
+        Codeword[] encoding = getEncoding();
         out.writeInt(encoding.length);
+        out.writeBoolean(canonical);
         for (int i = 0, count = encoding.length; i < count; i++) {
-            if (encoding[i] != null) {
+            if (canonical) {
+                out.writeByte(encoding[i] == null ? 0 : encoding[i].bitLength + 1);
+            }
+            else if (encoding[i] != null) {
                 out.writeBoolean(true);
                 encoding[i].save(out);
             }
@@ -83,6 +221,18 @@ public class FrequencyHuffmanModel implements HuffmanModel {
             }
         }
     }
+
+    /**
+     * Returns the codeword length of each symbol, or -1 for symbols without one.
+     */
+    public int[] getCodeLengths() {
+        Codeword[] encoding = getEncoding();
+        int[] lengths = new int[encoding.length];
+        for (int i = 0, count = encoding.length; i < count; i++) {
+            lengths[i] = encoding[i] == null ? -1 : encoding[i].bitLength;
+        }
+        return lengths;
+    }
     
     protected void computeHuffmanCoding(int[] histogram) {
         List<HuffmanNode> queue1 = new ArrayList<HuffmanNode>();
@@ -128,21 +278,290 @@ public class FrequencyHuffmanModel implements HuffmanModel {
         }
         
         encoding = new Codeword[histogram.length];
-        queue2.get(0).collectPrefixes(encoding, new Codeword());
-        decoding = new DecodeTable();
-        decoding.build(encoding);
+        if (queue2.isEmpty() && queue1.isEmpty()) {
+            canonical = true;
+            buildTables();
+            return;
+        }
+        (queue2.isEmpty() ? queue1 : queue2).get(0).collectPrefixes(encoding, new Codeword());
+
+        // Only the lengths of the tree's codewords are used
+        int[] lengths = getCodeLengths();
+        int maxLength = 0;
+        for (int length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        if (maxLength > MaxCodeLength) {
+            lengths = computeLimitedCodeLengths(histogram, MaxCodeLength);
+        }
+        encoding = assignCanonicalCodes(lengths);
+        canonical = true;
+        buildTables();
+    }
+
+    /**
+     * Computes optimal codeword lengths no longer than maxLength for the
+     * symbols with a non zero count in histogram, using package-merge.  Only
+     * called for histograms of at least two symbols.
+     */
+    static int[] computeLimitedCodeLengths(int[] histogram, int maxLength) {
+        int n = 0;
+        for (int count : histogram) {
+            if (count != 0) {
+                n++;
+            }
+        }
+        if (n > 1 << maxLength) {
+            throw new IllegalArgumentException(n + " symbols can't be coded in " + maxLength + " bits");
+        }
+
+        // The symbols in increasing order of weight, ties broken by symbol
+        Integer[] order = new Integer[n];
+        for (int i = 0, j = 0; i < histogram.length; i++) {
+            if (histogram[i] != 0) {
+                order[j++] = i;
+            }
+        }
+        final int[] weights = histogram;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return weights[a] != weights[b] ? Integer.compare(weights[a], weights[b]) : Integer.compare(a, b);
+            }
+        });
+        long[] leaves = new long[n];
+        for (int i = 0; i < n; i++) {
+            leaves[i] = histogram[order[i]];
+        }
+
+        // Level 0 is the leaves alone.  Each following level merges the leaves
+        // with the packages of adjacent pairs from the level before, recording
+        // which items are packages.
+        boolean[][] isPackage = new boolean[maxLength][];
+        isPackage[0] = new boolean[n];
+        long[] previous = leaves;
+        for (int level = 1; level < maxLength; level++) {
+            int packages = previous.length / 2;
+            long[] merged = new long[n + packages];
+            boolean[] kinds = new boolean[n + packages];
+            int leaf = 0;
+            int pkg = 0;
+            for (int i = 0; i < merged.length; i++) {
+                long packageWeight = pkg < packages ? previous[2 * pkg] + previous[2 * pkg + 1] : Long.MAX_VALUE;
+                if (leaf < n && leaves[leaf] <= packageWeight) {
+                    merged[i] = leaves[leaf++];
+                }
+                else {
+                    merged[i] = packageWeight;
+                    kinds[i] = true;
+                    pkg++;
+                }
+            }
+            isPackage[level] = kinds;
+            previous = merged;
+        }
+
+        // The first 2n - 2 items of the last level are selected.  A symbol's
+        // length is the number of levels its leaf is selected in, where the
+        // selected packages of one level select the first 2 items per package
+        // of the level before.
+        int[] lengths = new int[histogram.length];
+        Arrays.fill(lengths, -1);
+        for (int i = 0; i < n; i++) {
+            lengths[order[i]] = 0;
+        }
+        int selected = 2 * n - 2;
+        for (int level = maxLength - 1; level >= 0; level--) {
+            int leaf = 0;
+            int packages = 0;
+            boolean[] kinds = isPackage[level];
+            for (int i = 0; i < selected; i++) {
+                if (kinds[i]) {
+                    packages++;
+                }
+                else {
+                    lengths[order[leaf++]]++;
+                }
+            }
+            selected = 2 * packages;
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the canonical code for the specified codeword lengths, where
+     * -1 means no codeword.  Shorter codewords come first, and codewords of
+     * the same length are in symbol order.  Values are bit reversed since
+     * codewords are written least significant bit first.
+     */
+    static Codeword[] assignCanonicalCodes(int[] lengths) {
+        int maxLength = 0;
+        for (int length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        int[] lengthCounts = new int[maxLength + 1];
+        for (int length : lengths) {
+            if (length > 0) {
+                lengthCounts[length]++;
+            }
+        }
+        int[] nextCode = new int[maxLength + 1];
+        int code = 0;
+        for (int length = 1; length <= maxLength; length++) {
+            code = (code + lengthCounts[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        Codeword[] codes = new Codeword[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] < 0) {
+                continue;
+            }
+            Codeword codeword = new Codeword();
+            codeword.symbol = i;
+            codeword.bitLength = lengths[i];
+            if (lengths[i] > 0) {
+                codeword.value = Integer.reverse(nextCode[lengths[i]]++) >>> (32 - lengths[i]);
+            }
+            codes[i] = codeword;
+        }
+        return codes;
+    }
+
+    private void buildTables() {
+        encodeTable = encodeTableOf(encoding);
+        symbolCount = encoding.length;
+    }
+
+    /**
+     * Returns the codewords, rebuilding them from the encode table for a
+     * mapped model.  Only needed by the Codeword based methods and save.
+     */
+    private Codeword[] getEncoding() {
+        Codeword[] encoding = this.encoding;
+        if (encoding == null) {
+            encoding = new Codeword[symbolCount];
+            for (int i = 0; i < symbolCount; i++) {
+                int length = mappedEncodeTable.get(2 * i + 1);
+                if (length >= 0) {
+                    encoding[i] = new Codeword();
+                    encoding[i].symbol = i;
+                    encoding[i].bitLength = length;
+                    encoding[i].value = mappedEncodeTable.get(2 * i);
+                }
+            }
+            this.encoding = encoding;
+        }
+        return encoding;
+    }
+
+    /**
+     * Returns whether the codewords are the canonical ones for their lengths,
+     * which is always the case unless the model was read in CodewordFormat.
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    public int getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * Returns the decode table, building it if this is the first call, so a
+     * model which only encodes never builds it.
+     */
+    public DecodeTable getDecodeTable() {
+        DecodeTable decoding = this.decoding;
+        if (decoding == null) {
+            decoding = new DecodeTable();
+            decoding.build(getEncoding(), symbolCount - 1);
+            this.decoding = decoding;
+        }
+        return decoding;
+    }
+
+    /**
+     * Returns roughly how many bytes of heap the model's tables take.  The
+     * decode table only counts once built, and a mapped model's tables not
+     * at all.
+     */
+    public long getMemoryFootprint() {
+        long footprint = 0;
+        Codeword[] encoding = this.encoding;
+        if (encoding != null) {
+            footprint += (4L + CodewordSize) * encoding.length;
+        }
+        if (mappedEncodeTable == null) {
+            DecodeTable decoding = this.decoding;
+            footprint += 4L * encodeTable.length + (decoding != null ? decoding.getMemoryFootprint() : 0);
+        }
+        return footprint;
+    }
+
+    /**
+     * Writes the encode table, two ints per symbol, to out for reading in
+     * place with map.
+     */
+    public void writeEncodeTable(IntBuffer out) {
+        if (encodeTable != null) {
+            out.put(encodeTable);
+        }
+        else {
+            out.put(mappedEncodeTable.duplicate());
+        }
+    }
+
+    private static int[] encodeTableOf(Codeword[] encoding) {
+        int[] table = new int[encoding.length * 2];
+        for (int i = 0, count = encoding.length; i < count; i++) {
+            Codeword codeword = encoding[i];
+            table[2 * i] = codeword == null ? 0 : codeword.value;
+            table[2 * i + 1] = codeword == null ? -1 : codeword.bitLength;
+        }
+        return table;
     }
     
     public Codeword getCodewordForEOF() {
-        return encoding[encoding.length - 1];
+        return getEncoding()[symbolCount - 1];
     }
     
     public Codeword encode(int symbol) {
-        return encoding[symbol];
+        return getEncoding()[symbol];
     }
     
+    public void encode(int symbol, BitOutput out) throws IOException {
+        int[] encodeTable = this.encodeTable;
+        if (encodeTable == null) {
+            encodeMapped(symbol, out);
+            return;
+        }
+        int length = encodeTable[2 * symbol + 1];
+        if (length < 0) {
+            throw new IllegalArgumentException("No codeword for symbol " + symbol);
+        }
+        out.writeBits(encodeTable[2 * symbol], length);
+    }
+
+    private void encodeMapped(int symbol, BitOutput out) throws IOException {
+        int length = mappedEncodeTable.get(2 * symbol + 1);
+        if (length < 0) {
+            throw new IllegalArgumentException("No codeword for symbol " + symbol);
+        }
+        out.writeBits(mappedEncodeTable.get(2 * symbol), length);
+    }
+
+    public void encodeEOF(BitOutput out) throws IOException {
+        encode(symbolCount - 1, out);
+    }
+
     public Codeword decode(int bits) {
-        return decoding.decode(bits);
+        int entry = getDecodeTable().lookup(bits);
+        return entry == DecodeTable.Empty ? null : getEncoding()[DecodeTable.getSymbol(entry)];
+    }
+
+    public int decodeEntry(int bits) {
+        return getDecodeTable().lookup(bits);
     }
     
     public boolean isEOF(Codeword codeword) {
@@ -17,48 +17,160 @@ package org.toubassi.femtozip.coding.huffman;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+/**
+ * Decodes symbols from either an InputStream or a ByteBuffer.  Bits are kept
+ * in a 64-bit buffer which is refilled a byte at a time from a stream, or up
+ * to 7 bytes at a time with a single getLong when reading a ByteBuffer.
+ */
 public class HuffmanDecoder {
-    private BitInput in;
+    private InputStream in;
+    private ByteBuffer buf;
+    private boolean littleEndian;
+    private int bufPosition;
+    private int bufLimit;
     private HuffmanModel model;
     private long bitBuf;
     private int availableBits;
     private boolean endOfStream;
-    private boolean firstbitread;
     
     
     public HuffmanDecoder(HuffmanModel model, InputStream in) {
-        this.in = new BitInput(in);
+        this.in = in;
+        this.model = model;
+    }
+
+    /**
+     * Creates a decoder reading the remaining bytes of in, without going
+     * through an InputStream.
+     * @see #reset(ByteBuffer)
+     */
+    public HuffmanDecoder(HuffmanModel model, ByteBuffer in) {
         this.model = model;
-        firstbitread = false;
+        reset(in);
     }
     
+    /**
+     * Clears the decoding state so the decoder can be reused once the
+     * underlying stream has been pointed at new data.
+     */
+    public void reset() {
+        bitBuf = 0;
+        availableBits = 0;
+        endOfStream = false;
+    }
+
+    /**
+     * Clears the decoding state and points the decoder at the remaining bytes
+     * of in.  The position of in is not changed.
+     */
+    public void reset(ByteBuffer in) {
+        reset();
+        this.in = null;
+        this.buf = in;
+        if (in != null) {
+            littleEndian = in.order() == ByteOrder.LITTLE_ENDIAN;
+            bufPosition = in.position();
+            bufLimit = in.limit();
+        }
+    }
+
+    /**
+     * Returns the index in the ByteBuffer of the first byte not yet read.
+     * Up to 7 bytes beyond the last decoded symbol may have been read.
+     */
+    public int getBufferPosition() {
+        return bufPosition;
+    }
+
     public int decodeSymbol() throws IOException {
+        return decodeSymbol(model);
+    }
+
+    /**
+     * Decodes the next symbol with the specified model rather than the one
+     * the decoder was created with, for formats that switch between codes.
+     * Returns -1 at the end of the stream, or if the symbol is flagged EOF.
+     */
+    public int decodeSymbol(HuffmanModel model) throws IOException {
+        return decodeSymbol(model, true);
+    }
+
+    /**
+     * Decodes the next symbol with the specified model, without treating any
+     * symbol as EOF.  Returns -1 only at the end of the stream.
+     */
+    public int decodeRawSymbol(HuffmanModel model) throws IOException {
+        return decodeSymbol(model, false);
+    }
+
+    private int decodeSymbol(HuffmanModel model, boolean eofSymbol) throws IOException {
         if (endOfStream) {
             return -1;
         }
-        while (availableBits < 32) {
-            int newBit = in.readBit();
-            if (newBit == -1) {
-                if(!firstbitread) //in case the first bit read is already EOF, there is nothing to decode
-                    return -1;
-                else
-                    break;
+        if (availableBits < 32) {
+            if (buf != null) {
+                refillFromBuffer();
             }
-            if (newBit == 1) {
-                bitBuf |= 1L << availableBits;
+            else {
+                refillFromStream();
+            }
+            if (availableBits == 0) {
+                // Nothing (left) to decode
+                endOfStream = true;
+                return -1;
             }
-            firstbitread = true;
-            availableBits++;
         }
         
-        Codeword decoded = model.decode((int)bitBuf);
-        if (model.isEOF(decoded)) {
+        int entry = model.decodeEntry((int)bitBuf);
+        if (entry == DecodeTable.Empty) {
+            throw new IOException("Corrupt compressed data");
+        }
+        int length = DecodeTable.getLength(entry);
+        if (length > availableBits) {
+            throw new IOException("Truncated compressed data");
+        }
+        if (eofSymbol && DecodeTable.isEOF(entry)) {
             endOfStream = true;
             return -1;
         }
-        bitBuf >>= decoded.bitLength;
-        availableBits -= decoded.bitLength;
-        return decoded.symbol;
+        bitBuf >>>= length;
+        availableBits -= length;
+        return DecodeTable.getSymbol(entry);
+    }
+
+    private void refillFromStream() throws IOException {
+        while (availableBits < 32) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            bitBuf |= ((long)b) << availableBits;
+            availableBits += 8;
+        }
+    }
+
+    private void refillFromBuffer() {
+        if (bufLimit - bufPosition >= 8) {
+            // Load 8 bytes but only take the whole bytes that fit above the
+            // available bits.  The bits above those are the following bytes,
+            // which the next refill ORs in again at the same place.
+            long word = buf.getLong(bufPosition);
+            if (!littleEndian) {
+                word = Long.reverseBytes(word);
+            }
+            bitBuf |= word << availableBits;
+            int bytes = (63 - availableBits) >>> 3;
+            bufPosition += bytes;
+            availableBits += bytes << 3;
+        }
+        else {
+            while (availableBits <= 56 && bufPosition < bufLimit) {
+                bitBuf |= (buf.get(bufPosition++) & 0xffL) << availableBits;
+                availableBits += 8;
+            }
+        }
     }
 }
@@ -28,11 +28,11 @@ public class HuffmanEncoder {
     }
     
     public void encodeSymbol(int symbol) throws IOException {
-        model.encode(symbol).write(bitOut);
+        model.encode(symbol, bitOut);
     }
     
     public void close() throws IOException {
-        model.getCodewordForEOF().write(bitOut);//EOF
+        model.encodeEOF(bitOut);
         bitOut.close();
     }
 }
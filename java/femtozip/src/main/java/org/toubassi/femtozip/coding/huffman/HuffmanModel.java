@@ -15,9 +15,41 @@
  */
 package org.toubassi.femtozip.coding.huffman;
 
+import java.io.IOException;
+
 public interface HuffmanModel {
     Codeword getCodewordForEOF();
     Codeword encode(int symbol);
+
+    /**
+     * Writes the codeword for symbol to out.  Equivalent to
+     * encode(symbol).write(out), which is what the default does; models
+     * override it to skip the Codeword lookup.
+     */
+    default void encode(int symbol, BitOutput out) throws IOException {
+        encode(symbol).write(out);
+    }
+
+    /**
+     * Writes the codeword for EOF to out.
+     */
+    default void encodeEOF(BitOutput out) throws IOException {
+        getCodewordForEOF().write(out);
+    }
     public Codeword decode(int bits);
+
+    /**
+     * Returns the DecodeTable entry for the codeword starting at the low bit
+     * of bits, or DecodeTable.Empty.  Entries are only flagged as EOF when
+     * isEOF would return true for the codeword.  The default builds the entry
+     * from decode, models override it to look it up directly.
+     */
+    default int decodeEntry(int bits) {
+        Codeword codeword = decode(bits);
+        if (codeword == null) {
+            return DecodeTable.Empty;
+        }
+        return DecodeTable.entry(codeword.getSymbol(), isEOF(codeword), codeword.bitLength);
+    }
     public boolean isEOF(Codeword codeword);
 }
@@ -32,21 +32,109 @@ public class DictionaryOptimizer {
     private int[] suffixArray;
     private int[] lcp;
     private int[] starts;
+    private SubstringPruner pruner;
+    private SuffixArray.Algorithm suffixArrayAlgorithm = SuffixArray.DefaultAlgorithm;
+    private boolean lowMemory;
+
+    // For every DocIdBlockSize bytes of the corpus, the first document which can
+    // contain them, so docIdForPosition only has a few documents to look through
+    private static final int DocIdBlockShift = 8;
+    private int[] docIdBlocks;
+
+    // About how many substrings are scored per byte of input, measured on
+    // source code and text, for estimatePeakMemory
+    private static final double SubstringsPerByte = 0.55;
 
     public DictionaryOptimizer(DocumentList documents) throws IOException {
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-        starts = new int[documents.size()];
+        int count = documents.size();
+        starts = new int[count];
+
+        // Total the documents first so they can be copied straight into a corpus
+        // of the right size.  (A DocumentList which reads files will read them twice.)
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            length += documents.getBB(i).remaining();
+        }
+        if (length >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't train on " + length + " bytes of documents");
+        }
 
-        for (int i = 0, count = documents.size(); i < count; i++) {
+        bytes = new byte[(int)length];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
             ByteBuffer document = documents.getBB(i);
-
-            while(document.hasRemaining()){
-                bytesOut.write(document.get());
+            int remaining = document.remaining();
+            if (remaining > bytes.length - offset) {
+                // The document grew since it was totalled
+                bytes = Arrays.copyOf(bytes, offset + remaining);
             }
-            starts[i] = bytesOut.size();
+            document.get(bytes, offset, remaining);
+            offset += remaining;
+            starts[i] = offset;
+        }
+        if (offset < bytes.length) {
+            bytes = Arrays.copyOf(bytes, offset);
+        }
+    }
+
+    /**
+     * Selects how the suffix array is sorted.  The dictionary is the same
+     * whichever is used.  Defaults to SuffixArray.DefaultAlgorithm.
+     */
+    public void setSuffixArrayAlgorithm(SuffixArray.Algorithm algorithm) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("algorithm must not be null");
+        }
+        this.suffixArrayAlgorithm = algorithm;
+    }
+
+    /**
+     * Trades speed for memory while scoring substrings: the LCP array is computed
+     * in place and released once the substrings are scored, and each occurrence's
+     * document is looked up rather than tabulated for every suffix.  Together
+     * that saves 8 bytes per byte of input at the peak.  The dictionary is the
+     * same either way.
+     * @see #estimatePeakMemory()
+     */
+    public void setLowMemory(boolean lowMemory) {
+        this.lowMemory = lowMemory;
+    }
+
+    /**
+     * Estimates the most memory, in bytes, optimize will have live for these
+     * documents (including the copy of them held since construction), so a
+     * caller can check it fits before starting.  The heap needs some headroom
+     * over this for the garbage collector.
+     */
+    public long estimatePeakMemory() {
+        return estimatePeakMemory(bytes.length, starts.length, suffixArrayAlgorithm, lowMemory);
+    }
+
+    /**
+     * Estimates the most heap, in bytes, optimize will use for documentCount
+     * documents totalling corpusLength bytes.  That is the corpus plus the
+     * largest of the suffix array, LCP, substring scoring and sorting steps.
+     * How many substrings are scored depends on the documents, so this assumes
+     * the rate typical of text.
+     */
+    public static long estimatePeakMemory(long corpusLength, int documentCount, SuffixArray.Algorithm algorithm, boolean lowMemory) {
+        long ints = 4 * (corpusLength + 1);
+        long substrings = 12 * (long)(SubstringsPerByte * corpusLength);
+
+        long suffixArray;
+        if (algorithm == SuffixArray.Algorithm.SAIS) {
+            // Type bits, and buckets for the reduced string's names, of which there are at most half as many as bytes
+            suffixArray = ints + corpusLength / 8 + ints / 2;
         }
+        else {
+            suffixArray = 2 * ints + 4 * 256 * 256;
+        }
+        long lcp = lowMemory ? 2 * ints : 3 * ints;
+        // The substring arrays grow one at a time, so briefly there are a third more of them
+        long scoring = 2 * ints + (lowMemory ? 4 * ((corpusLength >> DocIdBlockShift) + 1) : ints) + substrings * 4 / 3 + 4L * documentCount;
+        long sorting = (lowMemory ? ints : 2 * ints) + 2 * substrings;
 
-        bytes = bytesOut.toByteArray();
+        return corpusLength + 4L * documentCount + Math.max(Math.max(suffixArray, lcp), Math.max(scoring, sorting));
     }
 
     public static ByteBuffer getOptimizedDictionary(DocumentList documents, int desiredLength) throws IOException {
@@ -75,34 +163,53 @@ public class DictionaryOptimizer {
         }
     }
 
-    public ByteBuffer optimize(int desiredLength) { //TODO: subsequent calls should only pack
-        if(bytes.length > 0) {
+    public ByteBuffer optimize(int desiredLength) {
+        if (bytes.length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        ensureSubstrings();
+        return pack(desiredLength);
+    }
 
-            if(suffixArray == null) {
-                suffixArray = SuffixArray.computeSuffixArray(bytes);
-            }
-            if(lcp == null) {
-                lcp = SuffixArray.computeLCP(bytes, suffixArray);
-            }
-            if(this.substrings == null) {
-                computeSubstrings();
-            }
-            return pack(desiredLength);
+    /**
+     * Returns a dictionary for each of the desired lengths, each the same as
+     * optimize(desiredLength) would return.  The suffix array and substring
+     * scores are computed once for all of them (and kept for later calls).
+     */
+    public ByteBuffer[] optimize(int[] desiredLengths) {
+        ByteBuffer[] dictionaries = new ByteBuffer[desiredLengths.length];
+        for (int i = 0; i < desiredLengths.length; i++) {
+            dictionaries[i] = optimize(desiredLengths[i]);
         }
-        else {
-            return ByteBuffer.allocate(0);
+        return dictionaries;
+    }
+
+    private void ensureSubstrings() {
+        if (suffixArray == null) {
+            suffixArray = SuffixArray.computeSuffixArray(bytes, suffixArrayAlgorithm);
+        }
+        if (substrings == null) {
+            if (lcp == null) {
+                lcp = lowMemory ? SuffixArray.computeLCPLowMemory(bytes, suffixArray) : SuffixArray.computeLCP(bytes, suffixArray);
+            }
+            computeSubstrings();
         }
     }
 
     protected void computeSubstrings() {
         SubstringArray activeSubstrings = new SubstringArray(128);
-        Set<Integer> uniqueDocIds = new HashSet<>();
 
-        int recentDocStartsBase = 0;
-        ArrayList<int[] > recentDocStarts = new ArrayList<>();
-        recentDocStarts.add(docStartForIndex(0));
+        computeDocIdBlocks();
+        int[] docIds = lowMemory ? null : computeDocIds();
+
+        // Unique documents for a candidate are counted by stamping each document with the
+        // candidate's number the first time it is seen, so nothing needs clearing between
+        // candidates.  Document ids start at -1 (see docIdForPosition), hence the + 1.
+        int[] lastSeen = new int[starts.length + 1];
+        int stamp = 0;
 
         substrings = new SubstringArray(1024);
+        pruner = null;
         int n = lcp.length;
 
         int lastLCP = lcp[0];
@@ -110,16 +217,7 @@ public class DictionaryOptimizer {
             // Note we need to process currently existing runs, so we do that by acting like we hit an LCP of 0 at the end.
             // That is why the we loop i <= n vs i < n.  Otherwise runs that exist at the end of the suffixarray/lcp will
             // never be "cashed in" and counted in the substrings.  DictionaryOptimizerTest has a unit test for this.
-            //int currentLCP = i == n ? 0 : lcp[i];
-
-            int currentLCP;
-            if (i == n) {
-                currentLCP = 0;
-            }
-            else {
-                currentLCP = lcp[i];
-                recentDocStarts.add(docStartForIndex(i));
-            }
+            int currentLCP = i == n ? 0 : lcp[i];
 
             if (currentLCP > lastLCP) {
                 // The order here is important so we can optimize adding redundant strings below.
@@ -142,31 +240,25 @@ public class DictionaryOptimizer {
                         // "toubassi", the string toubassi is far more valuable in a shared dictionary.  So find out
                         // how many unique documents this string occurs in.  We do this by taking the start position of
                         // each occurrence, and then map that back to the document using the "starts" array, and uniquing.
+                        if (++stamp == 0) {
+                            Arrays.fill(lastSeen, 0);
+                            stamp = 1;
+                        }
+                        int scoreCount = 0;
                         for (int k = activeSubstrings.index(j) - 1; k < i; k++) {
-
-                            int byteIndex = suffixArray[k];
-                            int[] docRange = recentDocStarts.get(k - recentDocStartsBase);
+                            int docId = docIds != null ? docIds[k] : docIdForPosition(suffixArray[k]);
 
                             // While we are at it lets make sure this is a string that actually exists in a single
                             // document, vs spanning two concatenated documents.  The idea is that for documents
                             // "http://espn.com", "http://google.com", "http://yahoo.com", we don't want to consider
                             // ".comhttp://" to be a legal string.  So make sure the length of this string doesn't
                             // cross a document boundary for this particular occurrence.
-                            if (activeLength <= docRange[1] - (byteIndex - docRange[0])) {
-                                uniqueDocIds.add(docRange[0]);
+                            if (activeLength <= docEnd(docId) - suffixArray[k] && lastSeen[docId + 1] != stamp) {
+                                lastSeen[docId + 1] = stamp;
+                                scoreCount++;
                             }
                         }
 
-                        int scoreCount = uniqueDocIds.size();
-
-                        // You might think that its better to just clear uniqueDocIds,
-                        // but actually this set can getBB very large, and calling clear
-                        // loops over all entries in the internal array and sets them to
-                        // null, doesn't even use Arrays.fill, and unfortunately doesn't
-                        // short circuit out if size is already 0 (which is a common case
-                        // in this code).  Doing: if (uniqueDocIds.size() > 0) uniqueDocIds.clear();
-                        // is still not as fast as just tossing the set overboard.
-                        uniqueDocIds = new HashSet<>();
                         activeSubstrings.remove(j);
 
                         if (scoreCount == 0) {
@@ -189,14 +281,12 @@ public class DictionaryOptimizer {
                 }
             }
             lastLCP = currentLCP;
+        }
 
-
-            if (activeSubstrings.size() == 0 && recentDocStarts.size() > 1) {
-                int[] last = recentDocStarts.get(recentDocStarts.size() - 1);
-                recentDocStartsBase += recentDocStarts.size() - 1;
-                recentDocStarts = new ArrayList<>();
-                recentDocStarts.add(last);
-            }
+        // Only needed to score the substrings, so make room to sort them
+        docIds = null;
+        if (lowMemory) {
+            lcp = null;
         }
         substrings.sort();
     }
@@ -255,84 +345,59 @@ public class DictionaryOptimizer {
     }
 
     private SubstringArray getSubstringArrayPruned(int desiredLength) {
-        SubstringArray pruned = new SubstringArray(1024);
-        int size = 0;
-
-        for (int i = substrings.size() - 1; i >= 0; i--) {
-            boolean alreadyCovered = false;
-            for (int j = 0, c = pruned.size(); j < c; j++) {
-                if (pruned.indexOf(j, substrings, i, bytes, suffixArray) != -1) {
-
-                    alreadyCovered = true;
-                    break;
-                }
-            }
-
-            if (alreadyCovered) {
-                continue;
-            }
-
-            for (int j = pruned.size() - 1; j >= 0; j--) {
-                if (substrings.indexOf(i, pruned, j, bytes, suffixArray) != -1) {
-                    size -= pruned.length(j);
-                    pruned.remove(j);
-                }
-            }
-            pruned.setScore(pruned.size(), substrings.index(i), substrings.length(i), substrings.score(i));
-
-
-            size += substrings.length(i);
+        // Filter out the substrings which are themselves substrings of others.  The
+        // pruner remembers its work, so packing other lengths later is cheap.
+        if (pruner == null) {
+            pruner = new SubstringPruner(substrings, bytes, suffixArray);
+        }
+        return pruner.prune(desiredLength);
+    }
 
+    /**
+     * Returns docIdForPosition for every entry of the suffix array.
+     */
+    private int[] computeDocIds() {
+        int[] docIds = new int[suffixArray.length];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = docIdForPosition(suffixArray[i]);
+        }
+        return docIds;
+    }
 
-            // We calculate 2x because when we lay the strings out end to end we will merge common prefix/suffixes
-            if (size >= 2*desiredLength) {
-                break;
+    private void computeDocIdBlocks() {
+        docIdBlocks = new int[(bytes.length >> DocIdBlockShift) + 1];
+        for (int block = 0, docId = 0; block < docIdBlocks.length; block++) {
+            int position = block << DocIdBlockShift;
+            while (docId < starts.length && starts[docId] < position) {
+                docId++;
             }
-
+            docIdBlocks[block] = docId;
         }
-        return pruned;
     }
 
     /***
-     * Returns the offset into the byte buffer representing the
-     * start of the document which contains the specified byte
-     * (as an offset into the byte buffer).  So for example
-     * docStartForIndex(0) always returns 0, and
-     * docStartForIndex(15) will return 10 if the first doc is
-     * 10 bytes and the second doc is at least 5.
-     * @param index
-     * @return
+     * Returns the id of the document which contains the specified
+     * offset into the corpus, for use with docEnd.  Because starts
+     * holds the offset at which each document ends, the id is one
+     * less than the document's index (so -1 for the first document).
+     * So for example docEnd(docIdForPosition(p)) - p is how many
+     * bytes of its document follow p.
      */
-    private int[] docStartForIndex(int index) {
-        int byteIndex = suffixArray[index];
-        int docStart = lower_bound(starts, starts.length, byteIndex);
-        //int docStart = Arrays.binarySearch(starts, byteIndex);
-
-        if (docStart == starts.length || starts[docStart] != byteIndex) {
-            docStart--;
+    private int docIdForPosition(int position) {
+        // The first document ending at or after position
+        int docId = docIdBlocks[position >> DocIdBlockShift];
+        while (docId < starts.length && starts[docId] < position) {
+            docId++;
         }
-        int nextDoc;
-        if (docStart == (starts.length - 1)) {
-            nextDoc = bytes.length;
-        }
-        else {
-            nextDoc = starts[docStart +1];
+
+        if (docId == starts.length || starts[docId] != position) {
+            docId--;
         }
-        return new int[]{docStart, nextDoc - (docStart)};
+        return docId;
     }
 
-    private int lower_bound(int a[], int n, int x) {
-        int low = 0;
-        int high = n;
-        while (low < high) {
-            int middle = (low + high) / 2;
-            if (x <= a[middle]) {
-                high = middle;
-            } else {
-                low = middle + 1;
-            }
-        }
-        return low;
+    private int docEnd(int docId) {
+        return docId == starts.length - 1 ? bytes.length : starts[docId + 1];
     }
 
     private int prepend(byte[] from, int fromIndex, byte[] to, int toIndex, int length) {
@@ -380,7 +445,9 @@ public class DictionaryOptimizer {
     public void dumpSuffixArray(PrintStream out) {
         for (int i = 0; i < suffixArray.length; i++) {
             out.print(suffixArray[i] + "\t");
-            out.print(lcp[i] + "\t");
+            if (lcp != null) {
+                out.print(lcp[i] + "\t");
+            }
             out.write(bytes, suffixArray[i], Math.min(40, bytes.length - suffixArray[i]));
             out.println();
         }
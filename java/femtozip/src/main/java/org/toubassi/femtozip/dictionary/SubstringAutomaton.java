@@ -0,0 +1,165 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.util.Arrays;
+
+/**
+ * A suffix automaton over any number of byte strings, which answers whether a
+ * string occurs within any of them in time proportional to the string's length.
+ * It is built online, so strings can be added between queries.  State 0 is the
+ * root.  Transitions are kept in per state linked lists, except the root's which
+ * are a table since almost every walk starts there.
+ */
+class SubstringAutomaton {
+
+    private int[] lengths = new int[1024];
+    private int[] links = new int[1024];
+    private int[] firstEdges = new int[1024];
+    private int stateCount;
+
+    private int[] edgeNext = new int[1024];
+    private int[] edgeTargets = new int[1024];
+    private byte[] edgeBytes = new byte[1024];
+    private int edgeCount;
+
+    private final int[] rootTargets = new int[256];
+
+    SubstringAutomaton() {
+        Arrays.fill(rootTargets, -1);
+        newState(0);
+        links[0] = -1;
+    }
+
+    /**
+     * Adds bytes[offset, offset + length) to the strings this automaton knows.
+     */
+    void add(byte[] bytes, int offset, int length) {
+        int last = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            last = extend(last, bytes[i] & 0xff);
+        }
+    }
+
+    /**
+     * Returns whether bytes[offset, offset + length) occurs within any of the
+     * strings added so far.
+     */
+    boolean contains(byte[] bytes, int offset, int length) {
+        int state = 0;
+        for (int i = offset, end = offset + length; i < end && state != -1; i++) {
+            state = transition(state, bytes[i] & 0xff);
+        }
+        return state != -1;
+    }
+
+    /**
+     * The online construction, generalized to several strings: extending a
+     * state which already has a transition on c reuses (or splits) its target
+     * rather than adding a state.
+     */
+    private int extend(int last, int c) {
+        int q = transition(last, c);
+        if (q != -1) {
+            if (lengths[last] + 1 == lengths[q]) {
+                return q;
+            }
+            return split(last, c, q);
+        }
+
+        int cur = newState(lengths[last] + 1);
+        int p = last;
+        for (; p != -1 && transition(p, c) == -1; p = links[p]) {
+            setTransition(p, c, cur);
+        }
+        int link = 0;
+        if (p != -1) {
+            q = transition(p, c);
+            // Not folded into the assignment below, split may reallocate links
+            link = lengths[p] + 1 == lengths[q] ? q : split(p, c, q);
+        }
+        links[cur] = link;
+        return cur;
+    }
+
+    /**
+     * Clones q as a state of length lengths[p] + 1, and moves the transitions
+     * on c from p and its suffix links to the clone.
+     */
+    private int split(int p, int c, int q) {
+        int clone = newState(lengths[p] + 1);
+        for (int e = firstEdges[q]; e != -1; e = edgeNext[e]) {
+            addEdge(clone, edgeBytes[e] & 0xff, edgeTargets[e]);
+        }
+        links[clone] = links[q];
+        links[q] = clone;
+        for (; p != -1 && transition(p, c) == q; p = links[p]) {
+            setTransition(p, c, clone);
+        }
+        return clone;
+    }
+
+    private int transition(int state, int c) {
+        if (state == 0) {
+            return rootTargets[c];
+        }
+        for (int e = firstEdges[state]; e != -1; e = edgeNext[e]) {
+            if ((edgeBytes[e] & 0xff) == c) {
+                return edgeTargets[e];
+            }
+        }
+        return -1;
+    }
+
+    private void setTransition(int state, int c, int target) {
+        if (state == 0) {
+            rootTargets[c] = target;
+            return;
+        }
+        for (int e = firstEdges[state]; e != -1; e = edgeNext[e]) {
+            if ((edgeBytes[e] & 0xff) == c) {
+                edgeTargets[e] = target;
+                return;
+            }
+        }
+        addEdge(state, c, target);
+    }
+
+    private void addEdge(int state, int c, int target) {
+        if (edgeCount == edgeTargets.length) {
+            int capacity = edgeCount * 2;
+            edgeNext = Arrays.copyOf(edgeNext, capacity);
+            edgeTargets = Arrays.copyOf(edgeTargets, capacity);
+            edgeBytes = Arrays.copyOf(edgeBytes, capacity);
+        }
+        edgeNext[edgeCount] = firstEdges[state];
+        edgeTargets[edgeCount] = target;
+        edgeBytes[edgeCount] = (byte)c;
+        firstEdges[state] = edgeCount++;
+    }
+
+    private int newState(int length) {
+        if (stateCount == lengths.length) {
+            int capacity = stateCount * 2;
+            lengths = Arrays.copyOf(lengths, capacity);
+            links = Arrays.copyOf(links, capacity);
+            firstEdges = Arrays.copyOf(firstEdges, capacity);
+        }
+        lengths[stateCount] = length;
+        firstEdges[stateCount] = -1;
+        return stateCount++;
+    }
+}
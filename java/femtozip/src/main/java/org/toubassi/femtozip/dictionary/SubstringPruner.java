@@ -0,0 +1,220 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.util.Arrays;
+
+/**
+ * Chooses which of DictionaryOptimizer's substrings go into a dictionary.
+ * Going from the highest score down, a substring is taken unless it occurs
+ * within one already taken, and any taken ones which occur within it are
+ * dropped, until the taken substrings add up to twice the desired length.
+ *
+ * Checking every candidate against every taken substring is quadratic, so:
+ * <ul>
+ * <li>Whatever occurs in a dropped substring occurs in the one which dropped
+ * it, so a candidate occurs in a taken substring exactly when it occurs in any
+ * substring ever taken.  A SubstringAutomaton of those answers that in time
+ * proportional to the candidate's length.</li>
+ * <li>Only substrings which are taken are checked for taken substrings within
+ * them, by hashing each of their windows whose length some taken substring
+ * has.</li>
+ * <li>The choices don't depend on the desired length, only where they stop,
+ * so they are kept in a log which later calls replay and extend.</li>
+ * </ul>
+ */
+class SubstringPruner {
+
+    private static final long HashMultiplier = 0x9E3779B97F4A7C15L;
+
+    private final SubstringArray substrings;
+    private final byte[] bytes;
+    private final int[] suffixArray;
+
+    // The next candidate, counting down from the highest score
+    private int nextCandidate;
+    private final SubstringAutomaton taken = new SubstringAutomaton();
+
+    // The log: every substring taken in order, the step which dropped it (if any),
+    // and the total length of the undropped ones after it was taken.
+    private final SubstringArray log = new SubstringArray(1024);
+    private int[] droppedAt = new int[1024];
+    private int[] sizes = new int[1024];
+    private int size;
+
+    // Open addressed table of the log indices (+ 1) of taken substrings by hash.
+    // Dropped entries stay, since what they match is never taken again.
+    private int[] slots = new int[1024];
+    private long[] hashes = new long[1024];
+
+    // How many undropped substrings there are of each length
+    private int[] undroppedByLength = new int[64];
+
+    private long[] prefixHashes = new long[64];
+    private long[] powers = new long[] {1};
+
+    SubstringPruner(SubstringArray substrings, byte[] bytes, int[] suffixArray) {
+        this.substrings = substrings;
+        this.bytes = bytes;
+        this.suffixArray = suffixArray;
+        nextCandidate = substrings.size() - 1;
+    }
+
+    /**
+     * Returns the substrings chosen for a dictionary of desiredLength bytes,
+     * in the order they were taken.
+     */
+    SubstringArray prune(int desiredLength) {
+        for (int step = 0; ; step++) {
+            if (step == log.size() && !takeNext()) {
+                return replay(step - 1);
+            }
+            // We calculate 2x because when we lay the strings out end to end we will merge common prefix/suffixes
+            if (sizes[step] >= 2*desiredLength) {
+                return replay(step);
+            }
+        }
+    }
+
+    /**
+     * Returns the substrings taken up to and including lastStep which hadn't
+     * been dropped by then.
+     */
+    private SubstringArray replay(int lastStep) {
+        SubstringArray pruned = new SubstringArray(1024);
+        for (int i = 0; i <= lastStep; i++) {
+            if (droppedAt[i] > lastStep) {
+                pruned.setScore(pruned.size(), log.index(i), log.length(i), log.score(i));
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * Takes the next candidate which doesn't occur within one already taken.
+     * @return false if there are no candidates left
+     */
+    private boolean takeNext() {
+        for (; nextCandidate >= 0; nextCandidate--) {
+            int start = suffixArray[substrings.index(nextCandidate)];
+            int length = substrings.length(nextCandidate);
+            if (taken.contains(bytes, start, length)) {
+                continue;
+            }
+
+            int step = log.size();
+            computePrefixHashes(start, length);
+            drop(start, length, step);
+
+            log.setScore(step, substrings.index(nextCandidate), length, substrings.score(nextCandidate));
+            if (step == sizes.length) {
+                sizes = Arrays.copyOf(sizes, step * 2);
+                droppedAt = Arrays.copyOf(droppedAt, step * 2);
+            }
+            size += length;
+            sizes[step] = size;
+            droppedAt[step] = Integer.MAX_VALUE;
+
+            if (length >= undroppedByLength.length) {
+                undroppedByLength = Arrays.copyOf(undroppedByLength, Math.max(length + 1, undroppedByLength.length * 2));
+            }
+            undroppedByLength[length]++;
+            insert(step, prefixHashes[length]);
+            taken.add(bytes, start, length);
+
+            nextCandidate--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the undropped substrings which occur within bytes[start, start + length).
+     */
+    private void drop(int start, int length, int step) {
+        int maxLength = Math.min(length, undroppedByLength.length - 1);
+        for (int windowLength = 1; windowLength <= maxLength; windowLength++) {
+            for (int offset = 0; offset + windowLength <= length && undroppedByLength[windowLength] > 0; offset++) {
+                long hash = prefixHashes[offset + windowLength] - prefixHashes[offset] * powers[windowLength];
+                int mask = slots.length - 1;
+                for (int slot = mix(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                    int i = slots[slot] - 1;
+                    if (hashes[slot] == hash && droppedAt[i] == Integer.MAX_VALUE && log.length(i) == windowLength
+                            && rangeEquals(suffixArray[log.index(i)], start + offset, windowLength)) {
+                        droppedAt[i] = step;
+                        undroppedByLength[windowLength]--;
+                        size -= windowLength;
+                    }
+                }
+            }
+        }
+    }
+
+    private void computePrefixHashes(int start, int length) {
+        if (length >= prefixHashes.length) {
+            prefixHashes = new long[Math.max(length + 1, prefixHashes.length * 2)];
+        }
+        if (length >= powers.length) {
+            int from = powers.length;
+            powers = Arrays.copyOf(powers, Math.max(length + 1, powers.length * 2));
+            for (int i = from; i < powers.length; i++) {
+                powers[i] = powers[i - 1] * HashMultiplier;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            prefixHashes[i + 1] = prefixHashes[i] * HashMultiplier + (bytes[start + i] & 0xff) + 1;
+        }
+    }
+
+    private void insert(int logIndex, long hash) {
+        if (2 * (logIndex + 1) > slots.length) {
+            int[] oldSlots = slots;
+            long[] oldHashes = hashes;
+            slots = new int[oldSlots.length * 2];
+            hashes = new long[oldSlots.length * 2];
+            for (int slot = 0; slot < oldSlots.length; slot++) {
+                if (oldSlots[slot] != 0) {
+                    put(oldSlots[slot], oldHashes[slot]);
+                }
+            }
+        }
+        put(logIndex + 1, hash);
+    }
+
+    private void put(int value, long hash) {
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+        hashes[slot] = hash;
+    }
+
+    private static int mix(long hash) {
+        hash *= HashMultiplier;
+        return (int)(hash >>> 32);
+    }
+
+    private boolean rangeEquals(int index1, int index2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[index1 + i] != bytes[index2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -18,6 +18,10 @@
  *   sarray.c: suffixarray generation, written by Sean Quinlan and Sean Doward
  *   lcp.c: lcp computation implemented by Douglass McIlroy, method by Kasai et al.
  *   See comments in sarray.c and lcp.c for more details.
+ *
+ *   computeSuffixArraySAIS implements SA-IS, from "Linear Suffix Array
+ *   Construction by Almost Pure Induced-Sorting" by Ge Nong, Sen Zhang and
+ *   Wai Hong Chan.
  */
 package org.toubassi.femtozip.dictionary;
 
@@ -26,14 +30,253 @@ import java.util.Arrays;
 
 public class SuffixArray {
 
+    /**
+     * The ways computeSuffixArray can sort suffixes.  Both produce the same
+     * suffix array.
+     */
+    public enum Algorithm {
+        /**
+         * The Quinlan/Doward prefix doubling sort of sarray.c, which slows down
+         * badly on highly repetitive input.
+         */
+        PrefixDoubling,
+
+        /**
+         * SA-IS, which is linear in the input however repetitive it is.
+         */
+        SAIS
+    }
+
+    public static final Algorithm DefaultAlgorithm = Algorithm.SAIS;
+
     private static final int BUCK = Integer.MIN_VALUE;
 
     private static final int succ(int i, int h, int n) {
         int t = i + h;
         return t >= n ? t - n : t;
     }
-        
+
+    /**
+     * Returns the suffix array of bytes, of length bytes.length + 1.  The
+     * empty suffix, at index bytes.length, sorts first.
+     */
     public static int[] computeSuffixArray(byte[] bytes) {
+        return computeSuffixArray(bytes, DefaultAlgorithm);
+    }
+
+    public static int[] computeSuffixArray(byte[] bytes, Algorithm algorithm) {
+        switch (algorithm) {
+        case PrefixDoubling:
+            return computeSuffixArrayPrefixDoubling(bytes);
+        case SAIS:
+            return computeSuffixArraySAIS(bytes);
+        default:
+            throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+        }
+    }
+
+    /**
+     * Computes the suffix array with SA-IS.  Bytes are sorted as if shifted up
+     * by one and followed by a unique smallest sentinel, 0, which stands for the
+     * empty suffix.  Each level's reduced string and its suffix array are kept in
+     * the suffix array being built, so besides the result this needs a bit per
+     * byte plus the buckets of whichever level is running.
+     */
+    public static int[] computeSuffixArraySAIS(byte[] bytes) {
+        int n = bytes.length + 1;
+        if (n == 1) {
+            // Only the sentinel, which sais can't classify
+            return new int[] { 0 };
+        }
+        int[] sa = new int[n];
+        sais(new Text(bytes), sa, n, 257);
+        return sa;
+    }
+
+    /**
+     * The string SA-IS is sorting: the input bytes with the sentinel at the
+     * top level, or a reduced string stored in an int[] below it.
+     */
+    private static final class Text {
+        private final byte[] bytes;
+        private final int[] ints;
+        private final int offset;
+
+        Text(byte[] bytes) {
+            this.bytes = bytes;
+            this.ints = null;
+            this.offset = 0;
+        }
+
+        Text(int[] ints, int offset) {
+            this.bytes = null;
+            this.ints = ints;
+            this.offset = offset;
+        }
+
+        int get(int i) {
+            if (bytes != null) {
+                return i < bytes.length ? (bytes[i] & 0xff) + 1 : 0;
+            }
+            return ints[offset + i];
+        }
+    }
+
+    /**
+     * Sorts the suffixes of text[0, n), whose characters are in [0, k) and
+     * whose last character is a unique 0, into sa[0, n).  sa[n, sa.length)
+     * is left alone, which is where a recursive call's text lives.
+     */
+    private static void sais(Text text, int[] sa, int n, int k) {
+        // S type suffixes are smaller than the suffix after them, L type larger
+        long[] sTypes = new long[(n + 63) >>> 6];
+        setSType(sTypes, n - 1);
+        for (int i = n - 2; i >= 0; i--) {
+            int c = text.get(i), next = text.get(i + 1);
+            if (c < next || (c == next && isSType(sTypes, i + 1))) {
+                setSType(sTypes, i);
+            }
+        }
+
+        // Sort the LMS substrings by inducing from their unsorted positions
+        int[] buckets = new int[k];
+        bucketEnds(text, buckets, n, k);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLMS(sTypes, i)) {
+                sa[--buckets[text.get(i)]] = i;
+            }
+        }
+        induce(text, sa, sTypes, buckets, n, k);
+        buckets = null;
+
+        // Compact the sorted LMS substrings into the front of sa and name them,
+        // with equal substrings getting equal names
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLMS(sTypes, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0;
+        int previous = -1;
+        for (int i = 0; i < n1; i++) {
+            int position = sa[i];
+            boolean different = previous == -1;
+            for (int d = 0; !different; d++) {
+                if (text.get(position + d) != text.get(previous + d) || isSType(sTypes, position + d) != isSType(sTypes, previous + d)) {
+                    different = true;
+                }
+                else if (d > 0 && (isLMS(sTypes, position + d) || isLMS(sTypes, previous + d))) {
+                    break;
+                }
+            }
+            if (different) {
+                name++;
+                previous = position;
+            }
+            // LMS positions are at least 2 apart, so position / 2 is unique
+            sa[n1 + position / 2] = name - 1;
+        }
+
+        // Move the names, in text order, to the end of sa as the reduced string.
+        // There are at most n / 2 LMS positions, so it doesn't overlap sa[0, n1).
+        for (int i = n - 1, j = n - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+
+        // Sort the reduced string into sa[0, n1), recursing unless every name is unique
+        if (name < n1) {
+            sais(new Text(sa, n - n1), sa, n1, name);
+        }
+        else {
+            for (int i = 0; i < n1; i++) {
+                sa[sa[n - n1 + i]] = i;
+            }
+        }
+
+        // Map the sorted reduced suffixes back to LMS positions, listing the
+        // positions where the reduced string was, then induce the full order
+        for (int i = 1, j = n - n1; i < n; i++) {
+            if (isLMS(sTypes, i)) {
+                sa[j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; i++) {
+            sa[i] = sa[n - n1 + sa[i]];
+        }
+        Arrays.fill(sa, n1, n, -1);
+        buckets = new int[k];
+        bucketEnds(text, buckets, n, k);
+        for (int i = n1 - 1; i >= 0; i--) {
+            int position = sa[i];
+            sa[i] = -1;
+            sa[--buckets[text.get(position)]] = position;
+        }
+        induce(text, sa, sTypes, buckets, n, k);
+    }
+
+    private static boolean isSType(long[] sTypes, int i) {
+        return (sTypes[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void setSType(long[] sTypes, int i) {
+        sTypes[i >>> 6] |= 1L << i;
+    }
+
+    private static boolean isLMS(long[] sTypes, int i) {
+        return i > 0 && isSType(sTypes, i) && !isSType(sTypes, i - 1);
+    }
+
+    /**
+     * Induces the L type suffixes left to right from the bucket starts, then
+     * the S type suffixes right to left from the bucket ends.
+     */
+    private static void induce(Text text, int[] sa, long[] sTypes, int[] buckets, int n, int k) {
+        bucketStarts(text, buckets, n, k);
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !isSType(sTypes, j)) {
+                sa[buckets[text.get(j)]++] = j;
+            }
+        }
+        bucketEnds(text, buckets, n, k);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && isSType(sTypes, j)) {
+                sa[--buckets[text.get(j)]] = j;
+            }
+        }
+    }
+
+    private static void bucketStarts(Text text, int[] buckets, int n, int k) {
+        bucketCounts(text, buckets, n, k);
+        for (int c = 0, sum = 0; c < k; c++) {
+            int count = buckets[c];
+            buckets[c] = sum;
+            sum += count;
+        }
+    }
+
+    private static void bucketEnds(Text text, int[] buckets, int n, int k) {
+        bucketCounts(text, buckets, n, k);
+        for (int c = 0, sum = 0; c < k; c++) {
+            sum += buckets[c];
+            buckets[c] = sum;
+        }
+    }
+
+    private static void bucketCounts(Text text, int[] buckets, int n, int k) {
+        Arrays.fill(buckets, 0, k, 0);
+        for (int i = 0; i < n; i++) {
+            buckets[text.get(i)]++;
+        }
+    }
+        
+    public static int[] computeSuffixArrayPrefixDoubling(byte[] bytes) {
         byte buf[] = bytes;
         int n = bytes.length;
         int p[] = new int[n + 1];
@@ -248,6 +491,10 @@ public class SuffixArray {
             qsort2(a, ai + n - r, asucc, r);
     }
     
+    /**
+     * Returns the LCP array, where lcp[i] is the length of the prefix the
+     * suffixes at suffixArray[i - 1] and suffixArray[i] share, and lcp[0] is 0.
+     */
     public static int[] computeLCP(byte[] bytes, int[] suffixArray) {
 
         int n = suffixArray.length;
@@ -279,6 +526,68 @@ public class SuffixArray {
         return lcp;
     }
 
+    /**
+     * Returns the same as computeLCP, but allocates nothing besides the result,
+     * where computeLCP needs another int per byte, at the cost of about twice
+     * the time.  The LCPs are computed in text order (the "permuted" LCP of
+     * Karkkainen, Manzini and Puglisi) in the array returned, which is then
+     * permuted into suffix array order in place.  suffixArray is modified while
+     * this runs, but restored.
+     */
+    public static int[] computeLCPLowMemory(byte[] bytes, int[] suffixArray) {
+        int n = suffixArray.length;
+        int[] lcp = new int[n];
+
+        // For each suffix, the one before it in suffix array order
+        lcp[suffixArray[0]] = -1;
+        for (int i = 1; i < n; i++) {
+            lcp[suffixArray[i]] = suffixArray[i - 1];
+        }
+
+        // Replace those with the LCPs, reusing all but one of the previous
+        // position's matched bytes as Kasai et al. do.
+        int h = 0;
+        for (int i = 0; i < n; i++) {
+            int j = lcp[i];
+            if (j == -1) {
+                lcp[i] = 0;
+                continue;
+            }
+            while (i + h < n - 1 && j + h < n - 1 && bytes[i + h] == bytes[j + h]) {
+                h++;
+            }
+            lcp[i] = h;
+            if (h > 0) {
+                h--;
+            }
+        }
+
+        // lcp[i] = plcp[suffixArray[i]], following each cycle of the permutation
+        // and marking where it has been by complementing suffixArray entries.
+        for (int start = 0; start < n; start++) {
+            if (suffixArray[start] < 0) {
+                continue;
+            }
+            int first = lcp[start];
+            int i = start;
+            while (true) {
+                int next = suffixArray[i];
+                suffixArray[i] = ~next;
+                if (next == start) {
+                    lcp[i] = first;
+                    break;
+                }
+                lcp[i] = lcp[next];
+                i = next;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            suffixArray[i] = ~suffixArray[i];
+        }
+
+        return lcp;
+    }
+
     /**
      * For debugging
      */
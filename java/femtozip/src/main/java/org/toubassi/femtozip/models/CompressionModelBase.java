@@ -26,10 +26,15 @@ import org.toubassi.femtozip.dictionary.DictionaryOptimizer;
 import org.toubassi.femtozip.models.femtozip.FemtoZipCompressionModelBuilder;
 import org.toubassi.femtozip.models.femtozip.FemtoZipHuffmanModel;
 import org.toubassi.femtozip.models.huffmann.FrequencyHuffmanModelBuilder;
+import org.toubassi.femtozip.substring.CompressionLevel;
+import org.toubassi.femtozip.substring.PrefixHash;
 import org.toubassi.femtozip.substring.SubstringPacker;
 import org.toubassi.femtozip.util.StreamUtil;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -88,6 +93,25 @@ public class CompressionModelBase {
             return prefix + format.format((100f * totalCompressedSize) / totalDataSize) + "% (" + totalCompressedSize + " from " + totalDataSize + " bytes)";
         }
     }
+
+    /**
+     * How a model built with a dictionary of a given size did on held out documents.
+     * @see CompressionModelBase#sweepDictionarySizes(CompressionModelVariant, DocumentList, int[], boolean)
+     */
+    public static class DictionarySizeResult extends ModelOptimizationResult {
+        public int desiredDictionaryLength;
+        public int dictionaryLength;
+
+        public DictionarySizeResult(CompressionModel model, int desiredDictionaryLength, int dictionaryLength) {
+            super(model);
+            this.desiredDictionaryLength = desiredDictionaryLength;
+            this.dictionaryLength = dictionaryLength;
+        }
+
+        public String toString() {
+            return desiredDictionaryLength + " byte dictionary (" + dictionaryLength + " used): " + super.toString();
+        }
+    }
     
     /**
      * Builds a new model trained on the specified documents.  This is where it all begins.
@@ -161,12 +185,23 @@ public class CompressionModelBase {
     }
 
     public static CompressionModel buildOptimalModel(DocumentList documents, List<CompressionModelBase.ModelOptimizationResult> results, CompressionModelVariant[] competingModels, boolean verify) throws IOException {
+        ModelOptimizationOptions options = new ModelOptimizationOptions();
+        options.setVariants(competingModels);
+        options.setVerify(verify);
+        return buildOptimalModel(documents, results, options);
+    }
+
+    /**
+     * Builds each of the competing variants and returns the one which compresses
+     * held out documents the smallest.  results receives every variant's result,
+     * best first.
+     * @see ModelOptimizationOptions
+     */
+    public static CompressionModel buildOptimalModel(DocumentList documents, List<CompressionModelBase.ModelOptimizationResult> results, ModelOptimizationOptions options) throws IOException {
 
-        CompressionModelVariant[] models;
-        if(competingModels == null || competingModels.length == 0)
+        CompressionModelVariant[] models = options.getVariants();
+        if(models == null || models.length == 0)
             models = CompressionModelVariant.values();
-        else
-            models = competingModels.clone();
 
         // Split the documents into two groups.  One for building each model out
         // and one for testing which model is best.  Shouldn't build and test
@@ -176,43 +211,50 @@ public class CompressionModelBase {
 
         // Build the dictionary once to avoid rebuilding for each model.
         ByteBuffer dictionary = DictionaryOptimizer.getOptimizedDictionary(trainingDocuments, 64 * 1024);
+        rewindReaderIndexDocumentList(trainingDocuments);
 
-        for(CompressionModelVariant model: models) {
-            CompressionModel compressionModel = buildModel(model, trainingDocuments, dictionary.slice());
-            results.add(new ModelOptimizationResult(compressionModel));
-        }
+        ModelSelection.build(models, trainingDocuments, dictionary, results, options.getExecutor());
 
         // Pick the best model
-        for (int i = 0, count = testingDocuments.size(); i < count; i++) {
-            ByteBuffer data = testingDocuments.getBB(i);
-
-            for (ModelOptimizationResult result : results) {
-                data.rewind();
-
-                ByteBuffer compressed = ByteBuffer.allocate(data.remaining() * 2);
-                result.model.compress(data, compressed);
-
-                if (verify) {
-                    data.rewind();
-                    ByteBuffer verifyResult = ByteBuffer.allocate(data.remaining());
-                    result.model.decompress(compressed, verifyResult);
-
-                    if (!verifyResult.equals(data)) {
-                        throw new RuntimeException("Compress/Decompress round trip failed for " + result.model.getClass().getSimpleName());
-                    }
-                }
-                
-                result.totalCompressedSize += compressed.remaining();
-                result.totalDataSize += data.remaining();
-            }
-        }
-        
+        ModelSelection.measure(results, testingDocuments, options);
+
         Collections.sort(results);
         
         ModelOptimizationResult bestResult = results.get(0);
         return bestResult.model;
     }
     
+    /**
+     * Builds a model of the specified variant with a dictionary of each of the
+     * specified sizes, and measures each on held out documents the way
+     * buildOptimalModel does, so the dictionary size can be chosen from the data
+     * (smaller dictionaries load faster and take less memory per model).  The
+     * suffix array and substring scores are computed once for all the sizes.
+     * @return one result per size, in the order of dictionarySizes
+     */
+    public static List<DictionarySizeResult> sweepDictionarySizes(CompressionModelVariant variant, DocumentList documents, int[] dictionarySizes, boolean verify) throws IOException {
+        SamplingDocumentList trainingDocuments = new SamplingDocumentList(documents, 2, 0);
+        SamplingDocumentList testingDocuments = new SamplingDocumentList(documents, 2, 1);
+
+        ByteBuffer[] dictionaries = new DictionaryOptimizer(trainingDocuments).optimize(dictionarySizes);
+        rewindReaderIndexDocumentList(trainingDocuments);
+
+        List<DictionarySizeResult> results = new ArrayList<>(dictionarySizes.length);
+        for (int i = 0; i < dictionarySizes.length; i++) {
+            CompressionModel model = buildModel(variant, trainingDocuments, dictionaries[i].slice());
+            results.add(new DictionarySizeResult(model, dictionarySizes[i], dictionaries[i].remaining()));
+        }
+
+        ModelOptimizationOptions options = new ModelOptimizationOptions();
+        options.setVerify(verify);
+        ModelSelection.measure(results, testingDocuments, options);
+        return results;
+    }
+
+    public static List<DictionarySizeResult> sweepDictionarySizes(DocumentList documents, int... dictionarySizes) throws IOException {
+        return sweepDictionarySizes(CompressionModelVariant.FemtoZip, documents, dictionarySizes, false);
+    }
+
     /**
      * Loads a model previously saved with save.  You must use this
      * static because it dynamically instantiates the correct
@@ -232,6 +274,16 @@ public class CompressionModelBase {
     }
 
     public static CompressionModel loadModel(DataInputStream in) throws IOException {
+        return loadModel(in, false);
+    }
+
+    /**
+     * Like loadModel(DataInputStream), but if skipIndex a FemtoZip model's
+     * saved dictionary index is skipped, and rebuilt on the model's first
+     * compress instead.  That makes loading cheaper, and saves the memory
+     * for models which only decompress.
+     */
+    static CompressionModel loadModel(DataInputStream in, boolean skipIndex) throws IOException {
 
         String compressionModel = in.readUTF();
 
@@ -243,7 +295,7 @@ public class CompressionModelBase {
         }
 
         if(compressionModel.equals(FemtoZipCompressionModel.class.getName())) {
-            return loadFemtoZipCompressionModel(in);
+            return loadFemtoZipCompressionModel(in, skipIndex);
         }else if (compressionModel.equals(GZipCompressionModel.class.getName())){
             return new GZipCompressionModel();
         }else if (compressionModel.equals(GZipDictionaryCompressionModel.class.getName())) {
@@ -282,8 +334,10 @@ public class CompressionModelBase {
     }
 
     private static CompressionModel loadPureHuffmanCompressionModel(DataInputStream in) throws IOException {
-        if(in.readInt() == 0) { // file format version, currently 0.
-            FrequencyHuffmanModel frequencyHuffmanModel = new FrequencyHuffmanModel(in);
+        int version = in.readInt();
+        if(version == 0 || version == 1) { // version 1 saves the Huffman model as code lengths
+            int format = version == 0 ? FrequencyHuffmanModel.CodewordFormat : FrequencyHuffmanModel.CodeLengthFormat;
+            FrequencyHuffmanModel frequencyHuffmanModel = new FrequencyHuffmanModel(in, format);
             return new PureHuffmanCompressionModel(frequencyHuffmanModel);
         }
         throw new IOException("Unknown version number");
@@ -297,17 +351,54 @@ public class CompressionModelBase {
         throw new IOException("Unknown version number");
     }
 
-    private static CompressionModel loadFemtoZipCompressionModel(DataInputStream in) throws IOException {
+    private static CompressionModel loadFemtoZipCompressionModel(DataInputStream in, boolean skipIndex) throws IOException {
         int version = in.readInt();//Version
 
-        if(version == 0) {
+        if(version >= 0 && version <= 3) {
             ByteBuffer dictionary = DictionaryOptimizer.readDictionary(in);
-            FemtoZipHuffmanModel femtoZipHuffmanModel = new FemtoZipHuffmanModel(in);
-            return new FemtoZipCompressionModel(femtoZipHuffmanModel, dictionary);
+            int format = version >= 3 ? FrequencyHuffmanModel.CodeLengthFormat : FrequencyHuffmanModel.CodewordFormat;
+            FemtoZipHuffmanModel femtoZipHuffmanModel = new FemtoZipHuffmanModel(in, format);
+            CompressionLevel level = version >= 1 ? readCompressionLevel(in) : CompressionLevel.Max;
+            PrefixHash dictionaryHash = version >= 2 ? readDictionaryIndex(in, dictionary, skipIndex) : null;
+
+            FemtoZipCompressionModel model = dictionaryHash != null
+                    ? new FemtoZipCompressionModel(femtoZipHuffmanModel, dictionary, dictionaryHash)
+                    : new FemtoZipCompressionModel(femtoZipHuffmanModel, dictionary);
+            model.setLevel(level);
+            return model;
         }
         throw new IOException("Unknown version number");
     }
 
+    private static CompressionLevel readCompressionLevel(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        try {
+            return CompressionLevel.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown compression level " + name);
+        }
+    }
+
+    /**
+     * Returns the saved dictionary index, or null if there is none or it is
+     * skipped, in which case the model builds it when first needed.
+     */
+    private static PrefixHash readDictionaryIndex(DataInputStream in, ByteBuffer dictionary, boolean skip) throws IOException {
+        int indexKind = in.readByte();
+        boolean compact = indexKind == FemtoZipCompressionModel.CompactPrefixHashIndex;
+        if (skip && (compact || indexKind == FemtoZipCompressionModel.PrefixHashIndex)) {
+            PrefixHash.skip(in, compact);
+            return null;
+        } else if (compact) {
+            return PrefixHash.loadCompact(dictionary, in);
+        } else if (indexKind == FemtoZipCompressionModel.PrefixHashIndex) {
+            return new PrefixHash(dictionary, in);
+        } else if (indexKind == FemtoZipCompressionModel.NoSavedIndex) {
+            return null;
+        }
+        throw new IOException("Unknown dictionary index kind " + indexKind);
+    }
+
     /**
      * Saves the specified model to the specified file path.
      * @param path
@@ -320,11 +411,50 @@ public class CompressionModelBase {
             BufferedOutputStream bufferedOut = new BufferedOutputStream(fileOut);
             DataOutputStream out = new DataOutputStream(bufferedOut))
         {
-            out.writeUTF(model.getClass().getName());
+            // Models write their own class name first
             model.save(out);
         }
     }
     
+    /**
+     * Saves the model in a layout which loadMapped uses in place, so loading
+     * it takes microseconds and processes mapping the same file share it
+     * through the page cache.  The file is larger than one written by save,
+     * since the dictionary index and Huffman tables are written out in full.
+     */
+    public static void saveMapped(FemtoZipCompressionModel model, String path) throws IOException {
+        ByteBuffer bytes = MappedModelFormat.write(model, false);
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Loads a model saved with saveMapped by mapping the file read only.  The
+     * model reads the mapping directly, so the file must not be modified
+     * while the model is in use.  Closing the model unmaps the file, otherwise
+     * it is unmapped when the model is garbage collected.
+     * @see FemtoZipCompressionModel#retain()
+     */
+    public static FemtoZipCompressionModel loadMapped(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            FemtoZipCompressionModel model = loadMapped(mapping);
+            model.setStorage(mapping);
+            return model;
+        }
+    }
+
+    /**
+     * Returns a model which uses buffer's contents, from its position, in
+     * place.  The contents are as written by saveMapped.
+     */
+    public static FemtoZipCompressionModel loadMapped(ByteBuffer buffer) throws IOException {
+        return MappedModelFormat.load(buffer);
+    }
+
     public static ByteBuffer buildDictionary(DocumentList documents, int maxDictionaryLength) throws IOException {
         DictionaryOptimizer optimizer = new DictionaryOptimizer(documents);
         return optimizer.optimize(maxDictionaryLength);
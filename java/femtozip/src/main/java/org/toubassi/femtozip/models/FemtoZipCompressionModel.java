@@ -19,30 +19,323 @@ import java.io.*;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import org.toubassi.femtozip.CompressionModel;
 import org.toubassi.femtozip.coding.huffman.*;
 import org.toubassi.femtozip.dictionary.DictionaryOptimizer;
 import org.toubassi.femtozip.models.femtozip.FemtoZipHuffmanModel;
+import org.toubassi.femtozip.substring.CompressionLevel;
+import org.toubassi.femtozip.substring.PrefixHash;
 import org.toubassi.femtozip.substring.SubstringPacker;
 import org.toubassi.femtozip.substring.SubstringUnpacker;
+import org.toubassi.femtozip.util.DirectBufferUtil;
+
+public class FemtoZipCompressionModel implements CompressionModel, SubstringPacker.Consumer, Closeable {
+
+    /**
+     * Documents larger than this are compressed with a throw away PrefixHash
+     * rather than growing the pooled one, so a single huge document doesn't
+     * pin hundreds of MB of scratch space to a thread for its lifetime.
+     */
+    private static final int MaxPooledDocumentLength = 256 * 1024;
+
+    /**
+     * Written after the model in version 2 and later, identifying how (if at
+     * all) the dictionary index was saved.
+     */
+    static final int NoSavedIndex = 0;
+    static final int PrefixHashIndex = 1;
+    static final int CompactPrefixHashIndex = 2;
 
-public class FemtoZipCompressionModel implements CompressionModel, SubstringPacker.Consumer {
     private SubstringPacker subStringPacker;
     private FemtoZipHuffmanModel codeModel;
     private ByteBuffer dictionary;
+    private volatile CompressionLevel level = CompressionLevel.Max;
+
+    // The direct or mapped buffer the dictionary, index and tables are in, if
+    // this model owns one, freed when the last reference is released.
+    private ByteBuffer storage;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // See getFingerprint, -1 until computed
+    private volatile long fingerprint = -1;
+
+    // Per thread scratch space for compress and decompress.  It is shared by
+    // every model and holds no reference to one, so a model used on a thread
+    // can still be closed and garbage collected with nothing left behind.
+    private static final ThreadLocal<CompressionScratch> ThreadCompressionScratch = new ThreadLocal<CompressionScratch>() {
+        @Override
+        protected CompressionScratch initialValue() {
+            return new CompressionScratch();
+        }
+    };
 
+    private static final ThreadLocal<DecompressionScratch> ThreadDecompressionScratch = new ThreadLocal<DecompressionScratch>() {
+        @Override
+        protected DecompressionScratch initialValue() {
+            return new DecompressionScratch();
+        }
+    };
+
+    /**
+     * Creates a model whose dictionary index is built on its first compress.
+     */
     public FemtoZipCompressionModel(FemtoZipHuffmanModel codeModel, ByteBuffer dictionary) {
+        this(codeModel, dictionary, new SubstringPacker(dictionary));
+    }
+
+    /**
+     * Creates a model around an already populated hash of the dictionary, as
+     * restored by CompressionModelBase.loadModel.
+     */
+    public FemtoZipCompressionModel(FemtoZipHuffmanModel codeModel, ByteBuffer dictionary, PrefixHash dictionaryHash) {
+        this(codeModel, dictionary, new SubstringPacker(dictionary, dictionaryHash));
+    }
+
+    /**
+     * Creates a model sharing packer (and so its dictionary index) with
+     * other models over the same dictionary, see ModelRegistry.
+     */
+    FemtoZipCompressionModel(FemtoZipHuffmanModel codeModel, ByteBuffer dictionary, SubstringPacker packer) {
         this.codeModel = codeModel;
         this.dictionary = dictionary;
-        this.subStringPacker = new SubstringPacker(dictionary);
+        this.subStringPacker = packer;
+    }
+
+    public CompressionLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the level used by compress calls that don't specify one.  The level
+     * is saved with the model.  Defaults to CompressionLevel.Max.
+     */
+    public void setLevel(CompressionLevel level) {
+        if (level == null) {
+            throw new IllegalArgumentException("level must not be null");
+        }
+        this.level = level;
+    }
+
+    /**
+     * Returns a copy of this model with its dictionary, dictionary index and
+     * Huffman tables in a single direct buffer (laid out as by
+     * CompressionModelBase.saveMapped), so a large set of models adds little
+     * to the garbage collected heap.  Closing the copy frees that memory
+     * immediately rather than when the copy is garbage collected.  This model
+     * is unaffected.
+     */
+    public FemtoZipCompressionModel toOffHeap() {
+        checkOpen();
+        ByteBuffer offHeap = MappedModelFormat.write(this, true);
+        FemtoZipCompressionModel model;
+        try {
+            model = MappedModelFormat.load(offHeap);
+        } catch (IOException e) {
+            // We just wrote it
+            throw new IllegalStateException(e);
+        }
+        model.setStorage(offHeap);
+        return model;
+    }
+
+    /**
+     * Makes this model own storage, which is freed when the model is.
+     */
+    void setStorage(ByteBuffer storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Adds a reference to this model, to be balanced by a call to release.
+     * A model starts with one reference, which close releases, and is freed
+     * once every reference is released.  Only models which own off heap or
+     * mapped memory (see toOffHeap and CompressionModelBase.loadMapped(String))
+     * have anything to free, but any model stops working once freed.  Each
+     * compress, decompress and save call holds a reference while it runs, so
+     * closing a model in use on another thread frees it once that call
+     * returns rather than from under it.
+     * @return this model
+     * @throws IllegalStateException if the model has already been freed
+     */
+    public FemtoZipCompressionModel retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                throw new IllegalStateException("Model is closed");
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference added by retain (or the initial one), freeing the
+     * model if it was the last.
+     * @throws IllegalStateException if the model has already been freed
+     */
+    public void release() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                throw new IllegalStateException("Model is closed");
+            }
+            if (references.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    free();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Releases the initial reference to this model.  Calling close again has
+     * no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Returns whether the model still has references, and so can be used.
+     */
+    public boolean isOpen() {
+        return references.get() > 0;
+    }
+
+    private void free() {
+        ByteBuffer storage = this.storage;
+        this.storage = null;
+        if (storage != null) {
+            DirectBufferUtil.free(storage);
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes the model's dictionary, dictionary index
+     * and Huffman tables take.  For a model owning off heap or mapped storage
+     * (see retain) that is the size of the storage, otherwise it is what they
+     * take on the heap, which grows as the index and decode tables are built
+     * on first use.
+     */
+    public long getMemoryFootprint() {
+        ByteBuffer storage = this.storage;
+        if (storage != null) {
+            return storage.capacity();
+        }
+        return subStringPacker.getMemoryFootprint() + codeModel.getMemoryFootprint();
+    }
+
+    /**
+     * Returns a CRC32 of what decompressing depends on, the dictionary and the
+     * Huffman codes, so a model loaded from a saved copy of this one (or an
+     * off heap copy) has the same fingerprint, and a retrained one almost
+     * certainly doesn't.  The level and dictionary index don't count.
+     * @see FrameHeader#HasFingerprint
+     */
+    public int getFingerprint() {
+        long fingerprint = this.fingerprint;
+        if (fingerprint == -1) {
+            CRC32 crc = new CRC32();
+            ByteArrayOutputStream codes = new ByteArrayOutputStream();
+            retain();
+            try {
+                crc.update(dictionary.duplicate());
+                codeModel.save(new DataOutputStream(codes));
+            } catch (IOException e) {
+                // ByteArrayOutputStream doesn't throw
+                throw new IllegalStateException(e);
+            }
+            finally {
+                release();
+            }
+            crc.update(codes.toByteArray());
+            fingerprint = crc.getValue();
+            this.fingerprint = fingerprint;
+        }
+        return (int)fingerprint;
+    }
+
+    void checkOpen() {
+        if (references.get() == 0) {
+            throw new IllegalStateException("Model is closed");
+        }
+    }
+
+    SubstringPacker getSubstringPacker() {
+        return subStringPacker;
+    }
+
+    FemtoZipHuffmanModel getCodeModel() {
+        return codeModel;
+    }
+
+    ByteBuffer getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Compresses everything readable from in to out as a single document, in
+     * constant memory however long it is.  out is neither flushed nor closed.
+     * @return the number of bytes read from in
+     * @see FemtoZipOutputStream
+     */
+    public long compress(ReadableByteChannel in, OutputStream out) throws IOException {
+        retain();
+        try {
+            FemtoZipOutputStream stream = new FemtoZipOutputStream(this, out);
+            long total = stream.transferFrom(in);
+            stream.finish();
+            return total;
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Returns a new compression session bound to this model.  Sessions are not
+     * thread safe, but a session can be reused for any number of documents.
+     * compress(ByteBuffer, ByteBuffer) already reuses per thread scratch space,
+     * so this is only needed when the caller wants to manage sessions explicitly.
+     */
+    public Compressor newCompressor() {
+        return new Compressor();
+    }
+
+    /**
+     * Returns a new decompression session bound to this model.
+     * @see #newCompressor()
+     */
+    public Decompressor newDecompressor() {
+        return new Decompressor();
     }
 
     @Override
     public void save(DataOutputStream out) throws IOException {
+        retain();
+        try {
+            saveRetained(out);
+        }
+        finally {
+            release();
+        }
+    }
+
+    private void saveRetained(DataOutputStream out) throws IOException {
         out.writeUTF(getClass().getName());
-        out.writeInt(0); //Version
+        out.writeInt(3); //Version
 
         out.writeInt(dictionary.remaining());
 
@@ -52,43 +345,108 @@ public class FemtoZipCompressionModel implements CompressionModel, SubstringPack
         dictionary.rewind();
 
         codeModel.save(out);
+
+        out.writeUTF(level.name());
+
+        // Saving the dictionary index lets loadModel skip rehashing the dictionary
+        PrefixHash dictionaryHash = subStringPacker.getDictionaryHash();
+        out.writeByte(dictionaryHash.isCompact() ? CompactPrefixHashIndex : PrefixHashIndex);
+        dictionaryHash.save(out);
     }
 
     @Override
     public int compress(ByteBuffer decompressedIn, ByteBuffer compressedOut) {
-        if(decompressedIn.remaining() <= 0)
-        {
+        return compress(decompressedIn, compressedOut, level, ThreadCompressionScratch.get());
+    }
+
+    /**
+     * Like compress(ByteBuffer, ByteBuffer), but starts the output with a
+     * FrameHeader carrying what flags asks for, so that it can be
+     * decompressed by a ModelRouter without knowing which model compressed
+     * it.  The compressed data after the header is exactly what compress
+     * writes.
+     * @param flags any of FrameHeader.HasModelId, HasFingerprint and HasLength
+     * @param modelId the id written if flags has FrameHeader.HasModelId
+     * @return the number of bytes written, including the header
+     */
+    public int compressFrame(ByteBuffer decompressedIn, ByteBuffer compressedOut, int flags, int modelId) {
+        int fingerprint = (flags & FrameHeader.HasFingerprint) != 0 ? getFingerprint() : 0;
+        FrameHeader header = new FrameHeader(flags, modelId, fingerprint, decompressedIn.remaining());
+
+        int initialPosition = compressedOut.position();
+        int headerLength = header.write(compressedOut);
+        int written = compress(decompressedIn, compressedOut);
+        compressedOut.position(initialPosition);
+        return headerLength + written;
+    }
+
+    /**
+     * Compresses at the specified level rather than the model's.  The output
+     * decompresses with the same model regardless of level.
+     */
+    public int compress(ByteBuffer decompressedIn, ByteBuffer compressedOut, CompressionLevel level) {
+        return compress(decompressedIn, compressedOut, level, ThreadCompressionScratch.get());
+    }
+
+    private int compress(ByteBuffer decompressedIn, ByteBuffer compressedOut, CompressionLevel level, CompressionScratch scratch) {
+        checkOpen();
+        if (decompressedIn.remaining() <= 0) {
             compressedOut.limit(compressedOut.position());
             return 0;
         }
 
         int initialPosition = compressedOut.position();
-        BitOutput bitOutputByteBuffer = new BitOutputByteBufferImpl(compressedOut);
-        try {
-            int written = compress(decompressedIn, bitOutputByteBuffer);
-            compressedOut.flip();
-            compressedOut.position(initialPosition);
-            return written;
+        // While streaming the scratch hash belongs to the outer compress
+        PrefixHash documentHash = decompressedIn.remaining() > MaxPooledDocumentLength || scratch.streaming ? new PrefixHash() : scratch.hash;
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            //This should never happen since we only wrap ByteBuffers
-            throw new RuntimeException(e);
+        int written;
+        retain();
+        scratch.bitOut.reset(compressedOut);
+        try {
+            subStringPacker.pack(decompressedIn, documentHash, level, this, scratch.bitOut);
+            written = scratch.bitOut.getWrittenBytes();
         }
+        finally {
+            scratch.bitOut.reset(null);
+            release();
+        }
+
+        compressedOut.flip();
+        compressedOut.position(initialPosition);
+        return written;
     }
 
     @Override
     public int compress(ByteBuffer decompressedIn, OutputStream compressedOut) throws IOException{
-        BitOutputOutputStreamImpl bitOutputOutputStream = new BitOutputOutputStreamImpl(compressedOut);
-        return compress(decompressedIn, bitOutputOutputStream);
+        CompressionScratch scratch = ThreadCompressionScratch.get();
+        if (scratch.streaming) {
+            // compressedOut is compressing on this thread too, so it has the scratch
+            return compress(decompressedIn, new BitOutputOutputStreamImpl(compressedOut), new PrefixHash());
+        }
+        scratch.streaming = true;
+        scratch.streamOut.reset(compressedOut);
+        try {
+            return compress(decompressedIn, scratch.streamOut, scratch.hash);
+        }
+        finally {
+            scratch.streamOut.reset(null);
+            scratch.streaming = false;
+        }
     }
 
-    private int compress(ByteBuffer decompressedIn, BitOutput compressedOut) throws IOException {
+    private int compress(ByteBuffer decompressedIn, BitOutput compressedOut, PrefixHash pooledHash) throws IOException {
+        checkOpen();
         if(decompressedIn.remaining() == 0)
             return 0;
 
-        HuffmanEncoder huffmanEncoder = new HuffmanEncoder(codeModel.createModel(), compressedOut);
-        this.subStringPacker.pack(decompressedIn, this, huffmanEncoder);
+        PrefixHash documentHash = decompressedIn.remaining() > MaxPooledDocumentLength ? new PrefixHash() : pooledHash;
+        retain();
+        try {
+            this.subStringPacker.pack(decompressedIn, documentHash, level, this, compressedOut);
+        }
+        finally {
+            release();
+        }
         compressedOut.flush();
 
         return compressedOut.getWrittenBytes();
@@ -96,35 +454,55 @@ public class FemtoZipCompressionModel implements CompressionModel, SubstringPack
 
     @Override
     public int decompress(ByteBuffer compressedIn, ByteBuffer decompressedOut) {
-        if(compressedIn.remaining() <= 0)
+        return decompress(compressedIn, decompressedOut, ThreadDecompressionScratch.get());
+    }
+
+    private int decompress(ByteBuffer compressedIn, ByteBuffer decompressedOut, DecompressionScratch scratch) {
+        checkOpen();
+        if (compressedIn.remaining() <= 0) {
             return 0;
+        }
 
+        retain();
+        scratch.decoder.reset(compressedIn);
+        scratch.unpacker.reset(dictionary, decompressedOut);
         try {
-            ByteBufferInputStream bytesIn = new ByteBufferInputStream(compressedIn);
-            decompress(bytesIn, decompressedOut);
-
-            return decompressedOut.remaining();
+            int length = decompress(scratch.decoder, scratch.unpacker, decompressedOut);
+            compressedIn.position(compressedIn.limit());
+            return length;
         } catch (IOException e) {
             //with Bytebuffers this should never occure, this is why we throw a RuntimeException
             throw new RuntimeException(e);
         }
+        finally {
+            scratch.decoder.reset((ByteBuffer)null);
+            scratch.unpacker.reset(null, null);
+            release();
+        }
     }
 
     @Override
     public int decompress(InputStream compressedIn, ByteBuffer decompressedOut) throws IOException{
+        retain();
+        try {
+            HuffmanDecoder decoder = new HuffmanDecoder(codeModel.getLiteralLengthModel(), compressedIn);
+            SubstringUnpacker unpacker = new SubstringUnpacker(dictionary, decompressedOut);
+            return decompress(decoder, unpacker, decompressedOut);
+        }
+        finally {
+            release();
+        }
+    }
 
+    private int decompress(HuffmanDecoder decoder, SubstringUnpacker unpacker, ByteBuffer decompressedOut) throws IOException {
         int startPosition = decompressedOut.position();
 
-        HuffmanDecoder decoder = new HuffmanDecoder(codeModel.createModel(), compressedIn);
-        SubstringUnpacker unpacker = new SubstringUnpacker(dictionary, decompressedOut);
-
         int nextSymbol;
-        while ((nextSymbol = decoder.decodeSymbol()) != -1) {
+        while ((nextSymbol = codeModel.decodeLiteralLength(decoder)) != -1) {
             if (nextSymbol > 255) {
                 int length = nextSymbol - 256;
-                int offset = decoder.decodeSymbol() | (decoder.decodeSymbol() << 4) | (decoder.decodeSymbol() << 8) | (decoder.decodeSymbol() << 12);
-                offset = -offset;
-                unpacker.encodeSubstring(offset, length, null);
+                int offset = codeModel.decodeOffset(decoder);
+                unpacker.encodeSubstring(-offset, length, null);
             } else {
                 unpacker.encodeLiteral(nextSymbol, null);
             }
@@ -136,12 +514,76 @@ public class FemtoZipCompressionModel implements CompressionModel, SubstringPack
         return decompressedOut.remaining();
     }
 
+    /**
+     * The per document scratch space for compressing, the document PrefixHash
+     * and the bit writers, which works with any model.
+     */
+    private static final class CompressionScratch {
+        final PrefixHash hash = new PrefixHash();
+        final BitOutputByteBufferImpl bitOut = new BitOutputByteBufferImpl(null);
+        final BitOutputOutputStreamImpl streamOut = new BitOutputOutputStreamImpl(null);
+        // Set while compressing to an OutputStream, whose writes could compress again
+        boolean streaming;
+    }
+
+    /**
+     * The counterpart of CompressionScratch for decompressing.  The decoder is
+     * given each model's codes as it decodes, so it needs none of its own.
+     */
+    private static final class DecompressionScratch {
+        final HuffmanDecoder decoder = new HuffmanDecoder(null, (ByteBuffer)null);
+        final SubstringUnpacker unpacker = new SubstringUnpacker(null, null);
+    }
+
+    /**
+     * A reusable compression session.  A Compressor owns all of the per document
+     * scratch state (the document PrefixHash and the bit
+     * writer), so once it has grown to the largest document it sees, compressing
+     * allocates nothing.  Not thread safe.
+     */
+    public final class Compressor {
+        private final CompressionScratch scratch = new CompressionScratch();
+
+        private Compressor() {
+        }
+
+        /**
+         * @see CompressionModel#compress(ByteBuffer, ByteBuffer)
+         */
+        public int compress(ByteBuffer decompressedIn, ByteBuffer compressedOut) {
+            return compress(decompressedIn, compressedOut, level);
+        }
+
+        /**
+         * @see FemtoZipCompressionModel#compress(ByteBuffer, ByteBuffer, CompressionLevel)
+         */
+        public int compress(ByteBuffer decompressedIn, ByteBuffer compressedOut, CompressionLevel level) {
+            return FemtoZipCompressionModel.this.compress(decompressedIn, compressedOut, level, scratch);
+        }
+    }
+
+    /**
+     * A reusable decompression session, the counterpart of Compressor.  Not thread safe.
+     */
+    public final class Decompressor {
+        private final DecompressionScratch scratch = new DecompressionScratch();
+
+        private Decompressor() {
+        }
+
+        /**
+         * @see CompressionModel#decompress(ByteBuffer, ByteBuffer)
+         */
+        public int decompress(ByteBuffer compressedIn, ByteBuffer decompressedOut) {
+            return FemtoZipCompressionModel.this.decompress(compressedIn, decompressedOut, scratch);
+        }
+    }
+
     @Deprecated
     public ByteBuffer compressDeprecated(ByteBuffer buf) {
         ByteBuffer compressed = ByteBuffer.allocate((int) (buf.remaining() * 2)); //Estimation is that the data is roughly half
 
-        HuffmanEncoder huffmanEncoder = new HuffmanEncoder(codeModel.createModel(), new BitOutputByteBufferImpl(compressed));
-        this.subStringPacker.pack(buf, this, huffmanEncoder);
+        this.subStringPacker.pack(buf, this, new BitOutputByteBufferImpl(compressed));
 
         int numOfBytes = compressed.position();
         compressed.position(0);
@@ -154,8 +596,7 @@ public class FemtoZipCompressionModel implements CompressionModel, SubstringPack
     @Override
     public void encodeLiteral(int aByte, Object context) {
         try {
-            HuffmanEncoder encoder = (HuffmanEncoder)context;
-            encoder.encodeSymbol(aByte);
+            codeModel.encodeLiteral(aByte, (BitOutput)context);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -165,20 +606,14 @@ public class FemtoZipCompressionModel implements CompressionModel, SubstringPack
     @Override
     public void encodeSubstring(int offset, int length, Object context) {
         try {
-            HuffmanEncoder encoder = (HuffmanEncoder)context;
             if (length < 1 || length > 255) {
                 throw new IllegalArgumentException("Length " + length + " out of range [1,255]");
             }
-            encoder.encodeSymbol(256 + length);
-            
             offset = -offset;
             if (offset < 1 || offset > (2<<15)-1) {
                 throw new IllegalArgumentException("Offset " + offset + " out of range [1, 65535]");
             }
-            encoder.encodeSymbol(offset & 0xf);
-            encoder.encodeSymbol((offset >> 4) & 0xf);
-            encoder.encodeSymbol((offset >> 8) & 0xf);
-            encoder.encodeSymbol((offset >> 12) & 0xf);
+            codeModel.encodeMatch(length, offset, (BitOutput)context);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -187,8 +622,9 @@ public class FemtoZipCompressionModel implements CompressionModel, SubstringPack
     @Override
     public void endEncoding(Object context) {
         try {
-            HuffmanEncoder encoder = (HuffmanEncoder)context;
-            encoder.close();
+            BitOutput bitOut = (BitOutput)context;
+            codeModel.encodeEOF(bitOut);
+            bitOut.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,158 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.toubassi.femtozip.coding.huffman.HuffmanDecoder;
+import org.toubassi.femtozip.models.femtozip.FemtoZipHuffmanModel;
+
+/**
+ * Decompresses a single document compressed with a FemtoZipCompressionModel,
+ * in constant memory however long the document is.  Only the last 64KB of
+ * output (the furthest a match can reach back) is kept, in a sliding window.
+ * Each read holds a reference to the model (see FemtoZipCompressionModel.retain)
+ * while it decodes.
+ */
+public class FemtoZipInputStream extends InputStream {
+
+    // The furthest back a match can reach
+    private static final int MaxDistance = (2 << 15) - 1;
+
+    // Decode in bursts of about this many bytes between reads
+    private static final int DecodeAhead = 8 * 1024;
+
+    private final FemtoZipCompressionModel model;
+    private final InputStream in;
+    private final FemtoZipHuffmanModel codeModel;
+    private final HuffmanDecoder decoder;
+    private final ByteBuffer dictionary;
+    private final int dictLen;
+
+    private final byte[] window = new byte[2 * (MaxDistance + 1) + DecodeAhead];
+    private long windowStart; // Offset in the document of window index 0
+    private int filled;
+    private int readPosition;
+    private boolean endOfDocument;
+    private final byte[] singleByte = new byte[1];
+
+    public FemtoZipInputStream(FemtoZipCompressionModel model, InputStream in) {
+        model.checkOpen();
+        this.model = model;
+        this.in = in;
+        this.codeModel = model.getCodeModel();
+        this.decoder = new HuffmanDecoder(codeModel.getLiteralLengthModel(), in);
+        this.dictionary = model.getDictionary();
+        this.dictLen = dictionary.remaining();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(singleByte, 0, 1);
+        return n == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (readPosition == filled && !endOfDocument) {
+            model.retain();
+            try {
+                do {
+                    decode();
+                } while (readPosition == filled && !endOfDocument);
+            }
+            finally {
+                model.release();
+            }
+        }
+        if (readPosition == filled) {
+            return -1;
+        }
+        int n = Math.min(len, filled - readPosition);
+        System.arraycopy(window, readPosition, b, off, n);
+        readPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return filled - readPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Decodes about DecodeAhead bytes into the window, sliding it first if
+     * there isn't room.  Only called once everything decoded has been read.
+     */
+    private void decode() throws IOException {
+        if (filled + DecodeAhead + 255 > window.length) {
+            int shift = filled - (MaxDistance + 1);
+            System.arraycopy(window, shift, window, 0, filled - shift);
+            windowStart += shift;
+            filled -= shift;
+            readPosition -= shift;
+        }
+
+        int end = filled + DecodeAhead;
+        while (filled < end) {
+            int nextSymbol = codeModel.decodeLiteralLength(decoder);
+            if (nextSymbol == -1) {
+                endOfDocument = true;
+                return;
+            }
+            if (nextSymbol > 255) {
+                int length = nextSymbol - 256;
+                copyMatch(codeModel.decodeOffset(decoder), length);
+            }
+            else {
+                window[filled++] = (byte)nextSymbol;
+            }
+        }
+    }
+
+    /**
+     * Appends length bytes starting distance bytes back, which may start in the
+     * dictionary (conceptually just before the document) and run into the document.
+     */
+    private void copyMatch(int distance, int length) throws IOException {
+        long position = windowStart + filled;
+        if (distance < 1 || distance > position + dictLen) {
+            throw new IOException("Corrupt compressed data, match distance " + distance + " at offset " + position);
+        }
+
+        int from = filled - distance;
+        if (from < 0) {
+            // Only reachable near the start of the document, before the window has slid
+            int dictFrom = from + dictLen;
+            for (; length > 0 && dictFrom < dictLen; length--) {
+                window[filled++] = dictionary.get(dictFrom++);
+            }
+            from = 0;
+        }
+        for (; length > 0; length--) {
+            window[filled++] = window[from++];
+        }
+    }
+}
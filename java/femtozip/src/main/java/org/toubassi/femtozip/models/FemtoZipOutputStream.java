@@ -0,0 +1,176 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.toubassi.femtozip.coding.huffman.BitOutputOutputStreamImpl;
+import org.toubassi.femtozip.substring.CompressionLevel;
+import org.toubassi.femtozip.substring.SlidingWindowPacker;
+
+/**
+ * Compresses a single document of any length with a FemtoZipCompressionModel,
+ * writing the compressed bytes to the underlying stream as it goes.  Memory use
+ * is constant (a 128KB window plus its hash) rather than proportional to the
+ * document.  The output is the same format compress(ByteBuffer, ...) produces,
+ * and can be read back with FemtoZipInputStream, or with the model's decompress
+ * methods when the document fits in memory.  Each write holds a reference to
+ * the model (see FemtoZipCompressionModel.retain) while it runs.
+ */
+public class FemtoZipOutputStream extends OutputStream {
+
+    private final FemtoZipCompressionModel model;
+    private final OutputStream out;
+    private final SlidingWindowPacker packer;
+    private final byte[] singleByte = new byte[1];
+    private boolean finished;
+    private boolean closed;
+
+    public FemtoZipOutputStream(FemtoZipCompressionModel model, OutputStream out) {
+        this(model, out, model.getLevel());
+    }
+
+    public FemtoZipOutputStream(FemtoZipCompressionModel model, OutputStream out, CompressionLevel level) {
+        model.checkOpen();
+        this.model = model;
+        this.out = out;
+
+        // The bit output is closed when the document ends, which is up to close()
+        OutputStream unclosable = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        packer = new SlidingWindowPacker(model.getSubstringPacker(), level, model, new BitOutputOutputStreamImpl(unclosable));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte)b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        model.retain();
+        try {
+            packer.write(b, off, len);
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        } finally {
+            model.release();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of src.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        model.retain();
+        try {
+            packer.write(src);
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        } finally {
+            model.release();
+        }
+    }
+
+    /**
+     * Writes everything readable from in, reading it directly into the window.
+     * @return the number of bytes read
+     */
+    public long transferFrom(ReadableByteChannel in) throws IOException {
+        ensureOpen();
+        long total = 0;
+        model.retain();
+        try {
+            int read;
+            while ((read = packer.read(in)) != -1) {
+                total += read;
+            }
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        } finally {
+            model.release();
+        }
+        return total;
+    }
+
+    /**
+     * Ends the document and flushes the compressed bytes to the underlying
+     * stream without closing it.  Nothing more can be written afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (packer.getLength() == 0) {
+            // As with compress(ByteBuffer, ...), an empty document compresses to nothing
+            return;
+        }
+        model.retain();
+        try {
+            packer.finish();
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        } finally {
+            model.release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (finished) {
+            throw new IllegalStateException("Stream already finished");
+        }
+    }
+
+    /**
+     * The model's SubstringPacker.Consumer methods wrap IOExceptions from the
+     * underlying stream, so hand those back as they were.
+     */
+    private static IOException unwrap(RuntimeException e) throws RuntimeException {
+        if (e.getCause() instanceof IOException) {
+            return (IOException)e.getCause();
+        }
+        throw e;
+    }
+}
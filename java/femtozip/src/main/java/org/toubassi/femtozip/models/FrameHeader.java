@@ -0,0 +1,192 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An optional header in front of compressed data, identifying the model it
+ * was compressed with so readers needn't know, see
+ * FemtoZipCompressionModel.compressFrame and ModelRouter.  Laid out as:
+ * <pre>
+ *   byte     Version in the high nibble, flags in the low one
+ *   varint   model id, if HasModelId
+ *   int      model fingerprint (little endian), if HasFingerprint
+ *   varint   decompressed length, if HasLength
+ * </pre>
+ * Varints are 7 bits a byte, least significant first, as in
+ * VariableIntCompressionModel.  A header with only a model id below 128 is
+ * 2 bytes.
+ */
+public class FrameHeader {
+
+    public static final int Version = 1;
+
+    /**
+     * The frame names its model by an id the application assigns, as routed
+     * by ModelRouter.addRoute(int, String).
+     */
+    public static final int HasModelId = 1;
+
+    /**
+     * The frame carries the model's fingerprint (see
+     * FemtoZipCompressionModel.getFingerprint), which identifies the model
+     * on its own, and lets a reader check that an id still names the model
+     * the frame was compressed with.
+     */
+    public static final int HasFingerprint = 2;
+
+    /**
+     * The frame carries the length of the decompressed data, so readers can
+     * size their buffers.
+     */
+    public static final int HasLength = 4;
+
+    private static final int AllFlags = HasModelId | HasFingerprint | HasLength;
+
+    private final int flags;
+    private final int modelId;
+    private final int fingerprint;
+    private final int length;
+
+    /**
+     * @param flags which of the other arguments the header carries, any of HasModelId, HasFingerprint and HasLength
+     */
+    public FrameHeader(int flags, int modelId, int fingerprint, int length) {
+        if ((flags & ~AllFlags) != 0) {
+            throw new IllegalArgumentException("Unknown frame flags " + flags);
+        }
+        if ((flags & HasModelId) != 0 && modelId < 0) {
+            throw new IllegalArgumentException("modelId must not be negative");
+        }
+        if ((flags & HasLength) != 0 && length < 0) {
+            throw new IllegalArgumentException("length must not be negative");
+        }
+        this.flags = flags;
+        this.modelId = (flags & HasModelId) != 0 ? modelId : -1;
+        this.fingerprint = (flags & HasFingerprint) != 0 ? fingerprint : 0;
+        this.length = (flags & HasLength) != 0 ? length : -1;
+    }
+
+    /**
+     * Reads a header from in's position, leaving in positioned at the compressed data.
+     * @throws IOException if in doesn't start with a header
+     */
+    public static FrameHeader read(ByteBuffer in) throws IOException {
+        try {
+            int first = in.get() & 0xff;
+            if (first >>> 4 != Version) {
+                throw new IOException("Not a FemtoZip frame, or unknown frame version " + (first >>> 4));
+            }
+            int flags = first & 0xf;
+            if ((flags & ~AllFlags) != 0) {
+                throw new IOException("Corrupt frame header.  Unknown flags " + flags);
+            }
+            int modelId = (flags & HasModelId) != 0 ? readVarInt(in) : -1;
+            int fingerprint = 0;
+            if ((flags & HasFingerprint) != 0) {
+                for (int i = 0; i < 4; i++) {
+                    fingerprint |= (in.get() & 0xff) << (8 * i);
+                }
+            }
+            int length = (flags & HasLength) != 0 ? readVarInt(in) : -1;
+            return new FrameHeader(flags, modelId, fingerprint, length);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame header");
+        }
+    }
+
+    /**
+     * Writes the header at out's position, advancing it.
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer out) {
+        int start = out.position();
+        out.put((byte)(Version << 4 | flags));
+        if (hasModelId()) {
+            writeVarInt(out, modelId);
+        }
+        if (hasFingerprint()) {
+            for (int i = 0; i < 4; i++) {
+                out.put((byte)(fingerprint >>> (8 * i)));
+            }
+        }
+        if (hasLength()) {
+            writeVarInt(out, length);
+        }
+        return out.position() - start;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasModelId() {
+        return (flags & HasModelId) != 0;
+    }
+
+    /**
+     * Returns the model id, or -1 if the header has none.
+     */
+    public int getModelId() {
+        return modelId;
+    }
+
+    public boolean hasFingerprint() {
+        return (flags & HasFingerprint) != 0;
+    }
+
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    public boolean hasLength() {
+        return (flags & HasLength) != 0;
+    }
+
+    /**
+     * Returns the decompressed length, or -1 if the header has none.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    private static void writeVarInt(ByteBuffer out, int i) {
+        while ((i & ~0x7f) != 0) {
+            out.put((byte)((i & 0x7f) | 0x80));
+            i >>>= 7;
+        }
+        out.put((byte)i);
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int b = in.get();
+        int i = b & 0x7f;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("Corrupt frame header.  Varint too long");
+            }
+            b = in.get();
+            i |= (b & 0x7f) << shift;
+        }
+        if (i < 0) {
+            throw new IOException("Corrupt frame header.  Negative varint");
+        }
+        return i;
+    }
+}
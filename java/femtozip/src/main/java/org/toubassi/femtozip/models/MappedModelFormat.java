@@ -0,0 +1,245 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.toubassi.femtozip.coding.huffman.DecodeTable;
+import org.toubassi.femtozip.coding.huffman.FrequencyHuffmanModel;
+import org.toubassi.femtozip.models.femtozip.FemtoZipHuffmanModel;
+import org.toubassi.femtozip.substring.CompressionLevel;
+import org.toubassi.femtozip.substring.PrefixHash;
+
+/**
+ * A layout of a FemtoZipCompressionModel which is used in place, typically
+ * from a file mapped with FileChannel.map, rather than read onto the heap.
+ * Loading only checks the header and the Huffman tables (a few KB), so it
+ * takes microseconds, and every process mapping the same file shares its
+ * pages.  Everything is little endian:
+ * <pre>
+ *   header       magic, version, file length, section offsets, level
+ *   dictionary   bytes, page aligned
+ *   index        PrefixHash entries then heap entries, page aligned, as
+ *                ints in version 1 or as chars for a compact PrefixHash in
+ *                version 2
+ *   tables       for each of the 5 Huffman codes, the encode table then
+ *                the decode table, each cache line aligned
+ * </pre>
+ */
+class MappedModelFormat {
+
+    // "FZMM" in little endian
+    static final int Magic = 0x4D4D5A46;
+    static final int Version = 1;
+    static final int CompactIndexVersion = 2;
+
+    private static final int PageSize = 4096;
+    private static final int CacheLineSize = 64;
+    private static final int HuffmanModelCount = 5;
+    private static final int MaxLevelNameLength = 64;
+
+    // magic, version, file length (long), dictionary offset and length, index
+    // offset, then per Huffman model: symbol count, canonical, encode table
+    // offset, decode table offset and size, primary bits.  The level name
+    // (length then bytes) follows.
+    private static final int HuffmanHeaderOffset = 28;
+    private static final int HuffmanHeaderLength = 24;
+    private static final int LevelOffset = HuffmanHeaderOffset + HuffmanModelCount * HuffmanHeaderLength;
+
+    /**
+     * Returns the model laid out in a new buffer, direct or on the heap.
+     */
+    static ByteBuffer write(FemtoZipCompressionModel model, boolean direct) {
+        model.retain();
+        try {
+            return layOut(model, direct);
+        }
+        finally {
+            model.release();
+        }
+    }
+
+    private static ByteBuffer layOut(FemtoZipCompressionModel model, boolean direct) {
+        ByteBuffer dictionary = model.getDictionary().duplicate();
+        int dictionaryLength = dictionary.remaining();
+        PrefixHash index = model.getSubstringPacker().getDictionaryHash();
+        int indexEntrySize = index.isCompact() ? 2 : 4;
+        int indexHashLength = index.isCompact() ? PrefixHash.getCompactHashLength(dictionaryLength) : PrefixHash.getHashLength(dictionaryLength);
+        FrequencyHuffmanModel[] codes = getCodes(model.getCodeModel());
+        byte[] level = model.getLevel().name().getBytes(StandardCharsets.US_ASCII);
+
+        int dictionaryOffset = align(LevelOffset + 4 + level.length, PageSize);
+        int indexOffset = align(dictionaryOffset + dictionaryLength, PageSize);
+        int offset = indexOffset + indexEntrySize * (indexHashLength + dictionaryLength);
+        int[] encodeOffsets = new int[codes.length];
+        int[] decodeOffsets = new int[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            encodeOffsets[i] = align(offset, CacheLineSize);
+            decodeOffsets[i] = align(encodeOffsets[i] + 8 * codes[i].getSymbolCount(), CacheLineSize);
+            offset = decodeOffsets[i] + 4 * codes[i].getDecodeTable().size();
+        }
+
+        ByteBuffer out = (direct ? ByteBuffer.allocateDirect(offset) : ByteBuffer.allocate(offset)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(Magic);
+        out.putInt(index.isCompact() ? CompactIndexVersion : Version);
+        out.putLong(offset);
+        out.putInt(dictionaryOffset);
+        out.putInt(dictionaryLength);
+        out.putInt(indexOffset);
+        for (int i = 0; i < codes.length; i++) {
+            out.putInt(codes[i].getSymbolCount());
+            out.putInt(codes[i].isCanonical() ? 1 : 0);
+            out.putInt(encodeOffsets[i]);
+            out.putInt(decodeOffsets[i]);
+            out.putInt(codes[i].getDecodeTable().size());
+            out.putInt(codes[i].getDecodeTable().getPrimaryBits());
+        }
+        out.putInt(level.length);
+        out.put(level);
+
+        out.position(dictionaryOffset);
+        out.put(dictionary);
+        if (index.isCompact()) {
+            ByteBuffer section = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            section.position(indexOffset);
+            index.write(section.slice().order(ByteOrder.LITTLE_ENDIAN).asCharBuffer());
+        }
+        else {
+            index.write(intSection(out, indexOffset));
+        }
+        for (int i = 0; i < codes.length; i++) {
+            codes[i].writeEncodeTable(intSection(out, encodeOffsets[i]));
+            codes[i].getDecodeTable().write(intSection(out, decodeOffsets[i]));
+        }
+
+        out.clear();
+        return out;
+    }
+
+    /**
+     * Returns a model using buffer's contents in place, from its position.
+     */
+    static FemtoZipCompressionModel load(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < LevelOffset + 4 || in.getInt(0) != Magic) {
+            throw new IOException("Not a mapped FemtoZip model");
+        }
+        int version = in.getInt(4);
+        if (version != Version && version != CompactIndexVersion) {
+            throw new IOException("Unknown mapped model version " + version);
+        }
+        long length = in.getLong(8);
+        if (length > in.remaining() || length < LevelOffset + 4) {
+            throw new IOException("Bad mapped model.  Length " + length + " but only " + in.remaining() + " bytes");
+        }
+        in.limit((int)length);
+
+        int dictionaryOffset = in.getInt(16);
+        int dictionaryLength = in.getInt(20);
+        ByteBuffer dictionary = section(in, dictionaryOffset, dictionaryLength, 1);
+
+        int indexOffset = in.getInt(24);
+        PrefixHash dictionaryHash;
+        if (version == CompactIndexVersion) {
+            if (dictionaryLength > PrefixHash.MaxCompactLength) {
+                throw new IOException("Bad mapped model.  Compact index over a dictionary of " + dictionaryLength + " bytes");
+            }
+            int hashLength = PrefixHash.getCompactHashLength(dictionaryLength);
+            CharBuffer hash = section(in, indexOffset, 2L * hashLength, 2).order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+            CharBuffer heap = section(in, indexOffset + 2L * hashLength, 2L * dictionaryLength, 2).order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+            dictionaryHash = new PrefixHash(dictionary, hash, heap);
+        }
+        else {
+            int hashLength = PrefixHash.getHashLength(dictionaryLength);
+            IntBuffer hash = section(in, indexOffset, 4L * hashLength, 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            IntBuffer heap = section(in, indexOffset + 4L * hashLength, 4L * dictionaryLength, 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            dictionaryHash = new PrefixHash(dictionary, hash, heap);
+        }
+
+        FrequencyHuffmanModel[] codes = new FrequencyHuffmanModel[HuffmanModelCount];
+        for (int i = 0; i < codes.length; i++) {
+            int header = HuffmanHeaderOffset + i * HuffmanHeaderLength;
+            int symbolCount = in.getInt(header);
+            IntBuffer encodeTable = section(in, in.getInt(header + 8), 8L * symbolCount, 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            IntBuffer decodeTable = section(in, in.getInt(header + 12), 4L * in.getInt(header + 16), 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            DecodeTable decoding = DecodeTable.map(decodeTable, in.getInt(header + 20), symbolCount);
+            codes[i] = FrequencyHuffmanModel.map(encodeTable, decoding, in.getInt(header + 4) != 0);
+        }
+        if (codes[0].getSymbolCount() != 256 + 256 + 1) {
+            throw new IOException("Bad mapped model.  Literal/length code has " + codes[0].getSymbolCount() + " symbols");
+        }
+        for (int i = 1; i < codes.length; i++) {
+            if (codes[i].getSymbolCount() != 16) {
+                throw new IOException("Bad mapped model.  Offset code has " + codes[i].getSymbolCount() + " symbols");
+            }
+        }
+
+        int levelLength = in.getInt(LevelOffset);
+        if (levelLength < 0 || levelLength > MaxLevelNameLength || LevelOffset + 4 + levelLength > length) {
+            throw new IOException("Bad mapped model.  Corrupt compression level");
+        }
+        byte[] level = new byte[levelLength];
+        in.position(LevelOffset + 4);
+        in.get(level);
+        String levelName = new String(level, StandardCharsets.US_ASCII);
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel(
+                new FemtoZipHuffmanModel(codes[0], codes[1], codes[2], codes[3], codes[4]), dictionary, dictionaryHash);
+        try {
+            model.setLevel(CompressionLevel.valueOf(levelName));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown compression level " + levelName);
+        }
+        return model;
+    }
+
+    private static FrequencyHuffmanModel[] getCodes(FemtoZipHuffmanModel codeModel) {
+        FrequencyHuffmanModel[] codes = new FrequencyHuffmanModel[HuffmanModelCount];
+        codes[0] = codeModel.getLiteralLengthModel();
+        for (int i = 1; i < codes.length; i++) {
+            codes[i] = codeModel.getOffsetNibbleModel(i - 1);
+        }
+        return codes;
+    }
+
+    /**
+     * Returns the length bytes at offset in buffer, checking they are within
+     * it and aligned to alignment.
+     */
+    private static ByteBuffer section(ByteBuffer buffer, long offset, long length, int alignment) throws IOException {
+        if (offset < LevelOffset || length < 0 || offset + length > buffer.limit() || offset % alignment != 0) {
+            throw new IOException("Bad mapped model.  Section of " + length + " bytes at " + offset + " out of range");
+        }
+        ByteBuffer section = buffer.duplicate();
+        section.position((int)offset);
+        section.limit((int)(offset + length));
+        return section.slice();
+    }
+
+    private static IntBuffer intSection(ByteBuffer buffer, int offset) {
+        ByteBuffer section = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        section.position(offset);
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+}
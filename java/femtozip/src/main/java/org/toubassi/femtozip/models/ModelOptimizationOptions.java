@@ -0,0 +1,110 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Controls how CompressionModelBase.buildOptimalModel chooses a model.  By
+ * default every variant is built and measured on every held out document, one
+ * after another.
+ * @see CompressionModelBase#buildOptimalModel(org.toubassi.femtozip.DocumentList, java.util.List, ModelOptimizationOptions)
+ */
+public class ModelOptimizationOptions {
+
+    /**
+     * The default z score for early stopping, which wrongly stops early for a
+     * given runner up about once in a thousand times.
+     */
+    public static final double DefaultEarlyStopZScore = 3.1;
+
+    private CompressionModelVariant[] variants;
+    private boolean verify;
+    private ExecutorService executor;
+    private int earlyStopSample;
+    private double earlyStopZScore = DefaultEarlyStopZScore;
+
+    public CompressionModelVariant[] getVariants() {
+        return variants;
+    }
+
+    /**
+     * Sets the variants which compete.  Null or empty (the default) means all of them.
+     */
+    public void setVariants(CompressionModelVariant... variants) {
+        this.variants = variants == null ? null : variants.clone();
+    }
+
+    public boolean getVerify() {
+        return verify;
+    }
+
+    /**
+     * Sets whether each measured document is also decompressed and checked.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor the variants are built and measured on, e.g.
+     * ForkJoinPool.commonPool().  Null (the default) does everything on the
+     * calling thread.  The chosen model and the measured sizes are the same
+     * either way.  The DocumentList must support concurrent reads, as it must
+     * for CompressionModel.compressAll.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public int getEarlyStopSample() {
+        return earlyStopSample;
+    }
+
+    public double getEarlyStopZScore() {
+        return earlyStopZScore;
+    }
+
+    /**
+     * Measures the held out documents in growing samples, starting with
+     * initialSample documents and doubling, and stops once the smallest model
+     * leads every other by a clear margin: the mean of the per document size
+     * differences is at least zScore standard errors above zero.  The results
+     * then only total the documents measured.  An initialSample of 0 (the
+     * default) measures every document.
+     */
+    public void setEarlyStop(int initialSample, double zScore) {
+        if (initialSample < 0) {
+            throw new IllegalArgumentException("initialSample must not be negative: " + initialSample);
+        }
+        if (!(zScore > 0)) {
+            throw new IllegalArgumentException("zScore must be positive: " + zScore);
+        }
+        this.earlyStopSample = initialSample;
+        this.earlyStopZScore = zScore;
+    }
+
+    /**
+     * @see #setEarlyStop(int, double)
+     */
+    public void setEarlyStop(int initialSample) {
+        setEarlyStop(initialSample, DefaultEarlyStopZScore);
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.substring.SubstringPacker;
+
+/**
+ * Loads FemtoZip models saved by CompressionModelBase.save on demand and keeps
+ * as many of them as fit in a memory budget, for serving far more models than
+ * fit in memory when only some are in use at any one time.
+ * <ul>
+ * <li>A model is loaded on its first acquire, without its saved dictionary
+ * index.  The index is built on the model's first compress, and its decode
+ * tables on its first decompress, so memory goes only to what it is used
+ * for.</li>
+ * <li>Models with identical dictionaries share one copy of the dictionary and
+ * its index.</li>
+ * <li>Whenever the models' footprints add up to more than the budget, the
+ * least recently acquired are closed and dropped until they fit.  A model
+ * which is still acquired keeps working until it is released, and is loaded
+ * again by the next acquire.</li>
+ * </ul>
+ * A model's footprint is measured when it is acquired, so one which has grown
+ * since (as the above are built) is only accounted for once it is acquired
+ * again.  Thread safe.  Models are loaded without holding the registry's
+ * lock, so a slow load doesn't hold up acquiring the models already loaded.
+ */
+public class ModelRegistry implements Closeable {
+
+    private final long memoryBudget;
+    private final HashMap<String, String> paths = new HashMap<String, String>();
+
+    // In access order, so the least recently acquired model comes first
+    private final LinkedHashMap<String, Entry> models = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // Keyed by the dictionaries' contents, see ByteBuffer.equals
+    private final HashMap<ByteBuffer, SharedDictionary> dictionaries = new HashMap<ByteBuffer, SharedDictionary>();
+
+    private long footprint;
+    private boolean closed;
+
+    private static class Entry {
+        final FemtoZipCompressionModel model;
+        final SharedDictionary dictionary;
+        // The code model's footprint, the dictionary's is accounted for once in SharedDictionary
+        long footprint;
+
+        Entry(FemtoZipCompressionModel model, SharedDictionary dictionary) {
+            this.model = model;
+            this.dictionary = dictionary;
+        }
+    }
+
+    private static class SharedDictionary {
+        final ByteBuffer dictionary;
+        final SubstringPacker packer;
+        int models;
+        long footprint;
+
+        SharedDictionary(ByteBuffer dictionary) {
+            this.dictionary = dictionary;
+            packer = new SubstringPacker(dictionary);
+        }
+    }
+
+    /**
+     * @param memoryBudget how many bytes the loaded models may take, as
+     * measured by FemtoZipCompressionModel.getMemoryFootprint (counting shared
+     * dictionaries once).  The per thread scratch space compress and
+     * decompress use is shared by every model, and so isn't counted, and
+     * holds nothing of a model once it is evicted.
+     */
+    public ModelRegistry(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget must not be negative");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Makes acquire(id) load the model saved at path.  If a different path
+     * was registered for id, the model loaded from it is dropped.
+     */
+    public synchronized void register(String id, String path) {
+        checkOpen();
+        String previous = paths.put(id, path);
+        if (previous != null && !previous.equals(path)) {
+            invalidate(id);
+        }
+    }
+
+    /**
+     * Returns the model registered as id, loading it if it isn't loaded.  An
+     * id which hasn't been registered is taken to be the path of the model.
+     * The model is retained for the caller, who must release it once done
+     * with it.
+     * @throws IOException if the model can't be loaded, or isn't a FemtoZip model
+     */
+    public FemtoZipCompressionModel acquire(String id) throws IOException {
+        String path;
+        synchronized (this) {
+            checkOpen();
+            Entry entry = models.get(id);
+            if (entry != null) {
+                return retain(entry);
+            }
+            path = paths.containsKey(id) ? paths.get(id) : id;
+        }
+
+        FemtoZipCompressionModel loaded = load(path);
+
+        synchronized (this) {
+            checkOpen();
+            Entry entry = models.get(id);
+            if (entry == null) {
+                // Unless another thread loaded it in the meantime
+                entry = add(id, loaded);
+            }
+            return retain(entry);
+        }
+    }
+
+    /**
+     * Drops the model registered as id, if it is loaded, so the next acquire
+     * loads it again.  Callers which have acquired it can keep using it until
+     * they release it.
+     * @return whether the model was loaded
+     */
+    public synchronized boolean invalidate(String id) {
+        Entry entry = models.remove(id);
+        if (entry != null) {
+            drop(entry);
+        }
+        return entry != null;
+    }
+
+    /**
+     * Returns whether the model registered as id is loaded.
+     */
+    public synchronized boolean isLoaded(String id) {
+        return models.containsKey(id);
+    }
+
+    /**
+     * Returns how many models are loaded.
+     */
+    public synchronized int size() {
+        return models.size();
+    }
+
+    /**
+     * Returns how many bytes the loaded models take, as last measured.
+     */
+    public synchronized long getMemoryFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Drops every loaded model.  Models which have been acquired keep
+     * working until they are released.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (Entry entry : models.values()) {
+                drop(entry);
+            }
+            models.clear();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("ModelRegistry is closed");
+        }
+    }
+
+    private static FemtoZipCompressionModel load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            CompressionModel model = CompressionModelBase.loadModel(in, true);
+            if (!(model instanceof FemtoZipCompressionModel)) {
+                throw new IOException(path + " is a " + model.getClass().getSimpleName() + ", not a FemtoZipCompressionModel");
+            }
+            return (FemtoZipCompressionModel)model;
+        }
+    }
+
+    private Entry add(String id, FemtoZipCompressionModel loaded) {
+        ByteBuffer dictionary = loaded.getDictionary().duplicate();
+        SharedDictionary shared = dictionaries.get(dictionary);
+        if (shared == null) {
+            shared = new SharedDictionary(dictionary);
+            dictionaries.put(dictionary, shared);
+        }
+        shared.models++;
+
+        // A duplicate, since saving a model moves its dictionary's position and that would change the key's hash
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel(loaded.getCodeModel(), shared.dictionary.duplicate(), shared.packer);
+        model.setLevel(loaded.getLevel());
+        Entry entry = new Entry(model, shared);
+        models.put(id, entry);
+        return entry;
+    }
+
+    /**
+     * Measures entry's model again, evicts what no longer fits in the budget
+     * (other than entry), and returns the model retained for the caller.
+     */
+    private FemtoZipCompressionModel retain(Entry entry) {
+        long modelFootprint = entry.model.getCodeModel().getMemoryFootprint();
+        footprint += modelFootprint - entry.footprint;
+        entry.footprint = modelFootprint;
+
+        SharedDictionary shared = entry.dictionary;
+        long dictionaryFootprint = shared.packer.getMemoryFootprint();
+        footprint += dictionaryFootprint - shared.footprint;
+        shared.footprint = dictionaryFootprint;
+
+        for (Iterator<Entry> i = models.values().iterator(); footprint > memoryBudget && i.hasNext(); ) {
+            Entry eldest = i.next();
+            if (eldest != entry) {
+                i.remove();
+                drop(eldest);
+            }
+        }
+        return entry.model.retain();
+    }
+
+    /**
+     * Closes the model of an entry already removed from models, and accounts
+     * for the memory that frees.
+     */
+    private void drop(Entry entry) {
+        entry.model.close();
+        footprint -= entry.footprint;
+        SharedDictionary shared = entry.dictionary;
+        if (--shared.models == 0) {
+            dictionaries.remove(shared.dictionary);
+            footprint -= shared.footprint;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compresses and decompresses frames (see FemtoZipCompressionModel.compressFrame)
+ * with models acquired from a ModelRegistry, decompressing each frame with
+ * whichever model its header names.  Frames are routed by the model id in
+ * their header, or failing that by the model's fingerprint.  A retrained
+ * model is rolled out by registering it, routing a new id to it and
+ * compressing with that id, while frames written with the old id still go
+ * to the old model.  Nothing has to be recompressed, and the old route can
+ * be removed once nothing refers to it.  Thread safe.
+ */
+public class ModelRouter {
+
+    private final ModelRegistry registry;
+    private final ConcurrentHashMap<Integer, String> routes = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentHashMap<Integer, String> fingerprintRoutes = new ConcurrentHashMap<Integer, String>();
+
+    public ModelRouter(ModelRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Routes frames with modelId to the model registered in the registry as
+     * registryId, replacing any route modelId had.
+     */
+    public void addRoute(int modelId, String registryId) {
+        if (modelId < 0) {
+            throw new IllegalArgumentException("modelId must not be negative");
+        }
+        routes.put(modelId, registryId);
+    }
+
+    /**
+     * Routes frames without a routed model id, but with a fingerprint, to
+     * the model registered as registryId.  The model is acquired to compute
+     * its fingerprint.
+     * @return the model's fingerprint
+     * @throws IOException if the model can't be loaded
+     */
+    public int addFingerprintRoute(String registryId) throws IOException {
+        FemtoZipCompressionModel model = registry.acquire(registryId);
+        try {
+            int fingerprint = model.getFingerprint();
+            fingerprintRoutes.put(fingerprint, registryId);
+            return fingerprint;
+        }
+        finally {
+            model.release();
+        }
+    }
+
+    /**
+     * Removes modelId's route, returning the registry id it routed to, or
+     * null if there was none.
+     */
+    public String removeRoute(int modelId) {
+        return routes.remove(modelId);
+    }
+
+    /**
+     * Compresses decompressedIn into a frame with modelId, using the model it
+     * routes to.
+     * @param flags any of FrameHeader.HasFingerprint and HasLength, HasModelId is implied
+     * @return the number of bytes written, including the header
+     * @throws IOException if modelId has no route or its model can't be loaded
+     * @see FemtoZipCompressionModel#compressFrame(ByteBuffer, ByteBuffer, int, int)
+     */
+    public int compress(int modelId, ByteBuffer decompressedIn, ByteBuffer compressedOut, int flags) throws IOException {
+        String registryId = routes.get(modelId);
+        if (registryId == null) {
+            throw new IOException("No route for model id " + modelId);
+        }
+        FemtoZipCompressionModel model = registry.acquire(registryId);
+        try {
+            return model.compressFrame(decompressedIn, compressedOut, flags | FrameHeader.HasModelId, modelId);
+        }
+        finally {
+            model.release();
+        }
+    }
+
+    /**
+     * Decompresses the frame from compressedIn's position to its limit into
+     * decompressedOut, with the model its header routes to.  If the header
+     * has a fingerprint as well as a model id, the model is checked against
+     * it, so a route changed to a different model fails rather than
+     * returning garbage.
+     * @return the number of bytes decompressed
+     * @throws IOException if the header is corrupt, no model matches it, or
+     * the model can't be loaded
+     */
+    public int decompress(ByteBuffer compressedIn, ByteBuffer decompressedOut) throws IOException {
+        FrameHeader header = FrameHeader.read(compressedIn);
+        String registryId = header.hasModelId() ? routes.get(header.getModelId()) : null;
+        if (registryId == null && header.hasFingerprint()) {
+            registryId = fingerprintRoutes.get(header.getFingerprint());
+        }
+        if (registryId == null) {
+            throw new IOException("No route for frame"
+                    + (header.hasModelId() ? ", model id " + header.getModelId() : "")
+                    + (header.hasFingerprint() ? ", fingerprint " + Integer.toHexString(header.getFingerprint()) : ""));
+        }
+
+        FemtoZipCompressionModel model = registry.acquire(registryId);
+        try {
+            if (header.hasFingerprint() && model.getFingerprint() != header.getFingerprint()) {
+                throw new IOException("Frame was compressed with a different model than " + registryId);
+            }
+            return model.decompress(compressedIn, decompressedOut);
+        }
+        finally {
+            model.release();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.DocumentList;
+import org.toubassi.femtozip.models.CompressionModelBase.ModelOptimizationResult;
+import org.toubassi.femtozip.util.ConcurrentUtil;
+
+/**
+ * Implements the building and measuring of buildOptimalModel, on the calling
+ * thread or on an executor.  Documents are measured in contiguous chunks, each
+ * by one task with its own buffers, and the sizes are added up in chunk order,
+ * so the results are the same however the chunks are scheduled.
+ */
+class ModelSelection {
+
+    // More chunks than threads so uneven documents still balance out
+    private static final int ChunksPerThread = 4;
+
+    /**
+     * Builds a model of each variant, adding a result for each to results in
+     * the order of variants.
+     */
+    static void build(CompressionModelVariant[] variants, final DocumentList documents, ByteBuffer dictionary, List<ModelOptimizationResult> results, ExecutorService executor) throws IOException {
+        if (executor == null) {
+            for (CompressionModelVariant variant : variants) {
+                results.add(new ModelOptimizationResult(CompressionModelBase.buildModel(variant, documents, dictionary.slice())));
+            }
+            return;
+        }
+
+        List<Callable<CompressionModel>> tasks = new ArrayList<>(variants.length);
+        for (final CompressionModelVariant variant : variants) {
+            final ByteBuffer variantDictionary = dictionary.slice();
+            tasks.add(new Callable<CompressionModel>() {
+                @Override
+                public CompressionModel call() throws IOException {
+                    // Building reads the documents through their positions, so each build gets its own
+                    return CompressionModelBase.buildModel(variant, new DuplicatingDocumentList(documents), variantDictionary);
+                }
+            });
+        }
+        for (CompressionModel model : ConcurrentUtil.invokeAll(executor, tasks)) {
+            results.add(new ModelOptimizationResult(model));
+        }
+    }
+
+    /**
+     * Compresses the documents with each result's model, adding up the sizes
+     * in the result.
+     */
+    static void measure(List<? extends ModelOptimizationResult> results, DocumentList documents, ModelOptimizationOptions options) throws IOException {
+        CompressionModel[] models = new CompressionModel[results.size()];
+        for (int m = 0; m < models.length; m++) {
+            models[m] = results.get(m).model;
+        }
+
+        int count = documents.size();
+        boolean earlyStop = options.getEarlyStopSample() > 0;
+        int[][] documentSizes = earlyStop ? new int[models.length][count] : null;
+
+        int measured = 0;
+        long sample = earlyStop ? options.getEarlyStopSample() : count;
+        while (measured < count) {
+            int to = (int)Math.min(count, sample);
+            for (Chunk chunk : measure(models, documents, measured, to, documentSizes, options)) {
+                for (int m = 0; m < models.length; m++) {
+                    results.get(m).totalCompressedSize += chunk.compressedSizes[m];
+                    results.get(m).totalDataSize += chunk.dataSize;
+                }
+            }
+            measured = to;
+
+            if (earlyStop && hasClearLeader(documentSizes, measured, options.getEarlyStopZScore())) {
+                break;
+            }
+            sample *= 2;
+        }
+    }
+
+    private static List<Chunk> measure(CompressionModel[] models, DocumentList documents, int from, int to, int[][] documentSizes, ModelOptimizationOptions options) throws IOException {
+        ExecutorService executor = options.getExecutor();
+        if (executor == null) {
+            List<Chunk> chunks = new ArrayList<>(1);
+            chunks.add(new Chunk(models, documents, from, to, documentSizes, options.getVerify()).call());
+            return chunks;
+        }
+
+        int count = to - from;
+        int chunkCount = Math.max(1, Math.min(count, ConcurrentUtil.getParallelism(executor) * ChunksPerThread));
+        List<Chunk> tasks = new ArrayList<>(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            tasks.add(new Chunk(models, documents, from + (int)((long)count * c / chunkCount),
+                    from + (int)((long)count * (c + 1) / chunkCount), documentSizes, options.getVerify()));
+        }
+        return ConcurrentUtil.invokeAll(executor, tasks);
+    }
+
+    /**
+     * Returns whether the model with the smallest total over the first count
+     * documents is smaller than every other by at least zScore standard errors
+     * of their paired per document differences.
+     */
+    static boolean hasClearLeader(int[][] documentSizes, int count, double zScore) {
+        if (count < 2) {
+            return false;
+        }
+
+        int leader = 0;
+        long leaderTotal = Long.MAX_VALUE;
+        for (int m = 0; m < documentSizes.length; m++) {
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += documentSizes[m][i];
+            }
+            if (total < leaderTotal) {
+                leader = m;
+                leaderTotal = total;
+            }
+        }
+
+        for (int m = 0; m < documentSizes.length; m++) {
+            if (m == leader) {
+                continue;
+            }
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (int i = 0; i < count; i++) {
+                double difference = documentSizes[m][i] - documentSizes[leader][i];
+                sum += difference;
+                sumOfSquares += difference * difference;
+            }
+            double mean = sum / count;
+            double variance = Math.max(0, (sumOfSquares - sum * mean) / (count - 1));
+            if (mean <= 0 || mean < zScore * Math.sqrt(variance / count)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Measures documents [from, to), reusing its buffers from one document to the next.
+     */
+    private static class Chunk implements Callable<Chunk> {
+        private final CompressionModel[] models;
+        private final DocumentList documents;
+        private final int from;
+        private final int to;
+        private final int[][] documentSizes;
+        private final boolean verify;
+
+        final int[] compressedSizes;
+        int dataSize;
+
+        private ByteBuffer compressed = ByteBuffer.allocate(0);
+        private ByteBuffer decompressed = ByteBuffer.allocate(0);
+
+        Chunk(CompressionModel[] models, DocumentList documents, int from, int to, int[][] documentSizes, boolean verify) {
+            this.models = models;
+            this.documents = documents;
+            this.from = from;
+            this.to = to;
+            this.documentSizes = documentSizes;
+            this.verify = verify;
+            compressedSizes = new int[models.length];
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            for (int i = from; i < to; i++) {
+                ByteBuffer data = documents.getBB(i).duplicate();
+                data.rewind();
+                int size = data.remaining();
+
+                for (int m = 0; m < models.length; m++) {
+                    data.rewind();
+                    if (compressed.capacity() < size * 2) {
+                        compressed = ByteBuffer.allocate(size * 2);
+                    }
+                    compressed.clear();
+                    models[m].compress(data, compressed);
+                    int compressedSize = compressed.remaining();
+
+                    if (verify) {
+                        data.rewind();
+                        if (decompressed.capacity() < size) {
+                            decompressed = ByteBuffer.allocate(size);
+                        }
+                        decompressed.clear();
+                        models[m].decompress(compressed, decompressed);
+
+                        if (!decompressed.equals(data)) {
+                            throw new RuntimeException("Compress/Decompress round trip failed for " + models[m].getClass().getSimpleName());
+                        }
+                    }
+
+                    compressedSizes[m] += compressedSize;
+                    if (documentSizes != null) {
+                        documentSizes[m][i] = compressedSize;
+                    }
+                }
+                dataSize += size;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A view of a DocumentList whose documents are duplicates of the
+     * underlying ones, so their positions can be moved independently.
+     */
+    private static class DuplicatingDocumentList implements DocumentList {
+        private final DocumentList documents;
+
+        DuplicatingDocumentList(DocumentList documents) {
+            this.documents = documents;
+        }
+
+        @Override
+        public int size() {
+            return documents.size();
+        }
+
+        @Override
+        public ByteBuffer getBB(int i) throws IOException {
+            return documents.getBB(i).duplicate();
+        }
+
+        @Override
+        public byte[] get(int i) throws IOException {
+            ByteBuffer document = getBB(i);
+            byte[] bytes = new byte[document.remaining()];
+            document.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -77,9 +77,9 @@ public class PureHuffmanCompressionModel implements CompressionModel {
     @Override
     public int decompress(ByteBuffer compressedIn, ByteBuffer decompressedOut) {
         try {
-
-            ByteBufferInputStream bytesIn = new ByteBufferInputStream(compressedIn);
-            return decompress(bytesIn, decompressedOut);
+            int written = decompress(new HuffmanDecoder(codeModel, compressedIn), decompressedOut);
+            compressedIn.position(compressedIn.limit());
+            return written;
         }
         catch (IOException e) {
             throw new RuntimeException("should never occure", e);
@@ -88,9 +88,11 @@ public class PureHuffmanCompressionModel implements CompressionModel {
 
     @Override
     public int decompress(InputStream compressedIn, ByteBuffer decompressedOut) throws IOException {
+        return decompress(new HuffmanDecoder(codeModel, compressedIn), decompressedOut);
+    }
 
+    private int decompress(HuffmanDecoder decoder, ByteBuffer decompressedOut) throws IOException {
         int initalPosition = decompressedOut.position();
-        HuffmanDecoder decoder = new HuffmanDecoder(codeModel, compressedIn);
 
         int nextSymbol;
         while ((nextSymbol = decoder.decodeSymbol()) != -1) {
@@ -106,7 +108,7 @@ public class PureHuffmanCompressionModel implements CompressionModel {
 
     public void save(DataOutputStream out) throws IOException {
         out.writeUTF(getClass().getName());
-        out.writeInt(0); //Version
+        out.writeInt(1); //Version
 
         codeModel.save(out);
     }
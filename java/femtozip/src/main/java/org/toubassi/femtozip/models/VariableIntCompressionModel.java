@@ -101,9 +101,10 @@ public class VariableIntCompressionModel implements CompressionModel {
         }
 
         byte[] bytes = Integer.toString(i).getBytes(Charset.forName("UTF-8"));
+        int initialPosition = decompressedOut.position();
         decompressedOut.put(bytes);
-        decompressedOut.limit(bytes.length);
-        decompressedOut.rewind();
+        decompressedOut.limit(initialPosition + bytes.length);
+        decompressedOut.position(initialPosition);
 
         return bytes.length;
     }
@@ -172,12 +173,13 @@ public class VariableIntCompressionModel implements CompressionModel {
     private int decompressAsNonInt(ByteBuffer compressedData, ByteBuffer compressed) {
         //ByteBuffer slice = compressedData.slice();
         byte[] toreturn = new byte[compressedData.remaining() - 6];
-        compressedData.position(6);
+        compressedData.position(compressedData.position() + 6);
         compressedData.get(toreturn);
 
+        int initialPosition = compressed.position();
         compressed.put(toreturn);
-        compressed.limit(toreturn.length);
-        compressed.rewind();
+        compressed.limit(initialPosition + toreturn.length);
+        compressed.position(initialPosition);
         return toreturn.length;
     }
 }
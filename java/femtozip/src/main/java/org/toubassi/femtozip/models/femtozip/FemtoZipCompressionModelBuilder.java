@@ -1,13 +1,29 @@
 package org.toubassi.femtozip.models.femtozip;
 
 import org.toubassi.femtozip.DocumentList;
+import org.toubassi.femtozip.substring.PrefixHash;
 import org.toubassi.femtozip.substring.SubstringPacker;
+import org.toubassi.femtozip.util.ConcurrentUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
+/**
+ * Builds the Huffman model for a dictionary by packing the training documents
+ * against it and counting the literals, lengths and offsets.  The documents
+ * are split into contiguous shards, each packed into its own
+ * FemtoZipHuffmanModelBuilder, and the counts are summed once every shard is
+ * done, so the model is the same however many threads build it.
+ */
 public class FemtoZipCompressionModelBuilder {
 
+    // More shards than threads so uneven documents still balance out
+    private static final int ShardsPerThread = 4;
+
     private final ByteBuffer dictionary;
     private final DocumentList documents;
 
@@ -21,16 +37,59 @@ public class FemtoZipCompressionModelBuilder {
         return fzcmb.buildModel();
     }
 
-
+    /**
+     * Builds the model on the calling thread, reading the documents one at a
+     * time.
+     */
     public FemtoZipHuffmanModel buildModel() throws IOException {
+        return pack(new SubstringPacker(dictionary), 0, documents.size()).createModel();
+    }
 
-        SubstringPacker modelBuildingPacker = new SubstringPacker(dictionary);
-        FemtoZipHuffmanModelBuilder modelBuilder = new FemtoZipHuffmanModelBuilder();
-        for (int i = 0, count = documents.size(); i < count; i++) {
-            ByteBuffer bb = documents.getBB(i);
-            modelBuildingPacker.pack(bb, modelBuilder, null);
+    /**
+     * Builds the model, packing the documents on executor.  The documents are
+     * read concurrently, so the DocumentList must support that (as it must for
+     * CompressionModel.compressAll).  The model is the same as buildModel()
+     * builds.
+     */
+    public FemtoZipHuffmanModel buildModel(ExecutorService executor) throws IOException {
+        final SubstringPacker modelBuildingPacker = new SubstringPacker(dictionary);
+
+        int count = documents.size();
+        int threads = ConcurrentUtil.getParallelism(executor);
+        int shardCount = Math.max(1, Math.min(count, threads * ShardsPerThread));
+        if (threads == 1 || shardCount == 1) {
+            return pack(modelBuildingPacker, 0, count).createModel();
+        }
+
+        List<Callable<FemtoZipHuffmanModelBuilder>> tasks = new ArrayList<>(shardCount);
+        for (int s = 0; s < shardCount; s++) {
+            final int from = (int)((long)count * s / shardCount);
+            final int to = (int)((long)count * (s + 1) / shardCount);
+            tasks.add(new Callable<FemtoZipHuffmanModelBuilder>() {
+                @Override
+                public FemtoZipHuffmanModelBuilder call() throws IOException {
+                    return pack(modelBuildingPacker, from, to);
+                }
+            });
         }
 
+        FemtoZipHuffmanModelBuilder modelBuilder = new FemtoZipHuffmanModelBuilder();
+        for (FemtoZipHuffmanModelBuilder shard : ConcurrentUtil.invokeAll(executor, tasks)) {
+            modelBuilder.merge(shard);
+        }
         return modelBuilder.createModel();
     }
+
+    /**
+     * Packs documents [from, to) into a new builder.
+     */
+    private FemtoZipHuffmanModelBuilder pack(SubstringPacker packer, int from, int to) throws IOException {
+        FemtoZipHuffmanModelBuilder modelBuilder = new FemtoZipHuffmanModelBuilder();
+        PrefixHash hash = new PrefixHash();
+        for (int i = from; i < to; i++) {
+            ByteBuffer bb = documents.getBB(i).duplicate();
+            packer.pack(bb, hash, modelBuilder, null);
+        }
+        return modelBuilder;
+    }
 }
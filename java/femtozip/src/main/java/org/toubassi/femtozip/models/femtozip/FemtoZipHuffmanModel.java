@@ -19,21 +19,36 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import org.toubassi.femtozip.coding.huffman.BitOutput;
 import org.toubassi.femtozip.coding.huffman.Codeword;
 import org.toubassi.femtozip.coding.huffman.FrequencyHuffmanModel;
+import org.toubassi.femtozip.coding.huffman.HuffmanDecoder;
 import org.toubassi.femtozip.coding.huffman.HuffmanModel;
 
+/**
+ * The codes for the FemtoZip token stream.  A token is either a literal byte,
+ * or a match, which is a length symbol followed by the four nibbles of the
+ * offset, each nibble with its own code.  Literals and lengths share the
+ * literalLength code, which also holds EOF.
+ *
+ * The codes are immutable.  Which code applies is implied by the method called
+ * rather than tracked in the model, so one instance is shared by every thread.
+ * Only the deprecated HuffmanModel methods, which see one symbol at a time,
+ * track which code comes next, so they must be called on a copy from
+ * createModel() used by one thread.
+ */
 public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
 
     private enum State {
         LiteralLengthState, OffsetNibble0State, OffsetNibble1State, OffsetNibble2State, OffsetNibble3State;
     }
 
-    private FrequencyHuffmanModel literalLengthModel;
-    private FrequencyHuffmanModel offsetNibble0Model;
-    private FrequencyHuffmanModel offsetNibble1Model;
-    private FrequencyHuffmanModel offsetNibble2Model;
-    private FrequencyHuffmanModel offsetNibble3Model;
+    private final FrequencyHuffmanModel literalLengthModel;
+    private final FrequencyHuffmanModel offsetNibble0Model;
+    private final FrequencyHuffmanModel offsetNibble1Model;
+    private final FrequencyHuffmanModel offsetNibble2Model;
+    private final FrequencyHuffmanModel offsetNibble3Model;
+    // Only used by the HuffmanModel methods
     private State state = State.LiteralLengthState;
 
     public FemtoZipHuffmanModel(FrequencyHuffmanModel literalLengthModel,
@@ -50,17 +65,28 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
     }
     
     public FemtoZipHuffmanModel(DataInputStream in) throws IOException {
-        literalLengthModel = new FrequencyHuffmanModel(in);
-        offsetNibble0Model = new FrequencyHuffmanModel(in);
-        offsetNibble1Model = new FrequencyHuffmanModel(in);
-        offsetNibble2Model = new FrequencyHuffmanModel(in);
-        offsetNibble3Model = new FrequencyHuffmanModel(in);
+        this(in, FrequencyHuffmanModel.CodewordFormat);
+    }
+
+    /**
+     * Reads the five models, each in the specified FrequencyHuffmanModel format.
+     */
+    public FemtoZipHuffmanModel(DataInputStream in, int format) throws IOException {
+        literalLengthModel = new FrequencyHuffmanModel(in, format);
+        offsetNibble0Model = new FrequencyHuffmanModel(in, format);
+        offsetNibble1Model = new FrequencyHuffmanModel(in, format);
+        offsetNibble2Model = new FrequencyHuffmanModel(in, format);
+        offsetNibble3Model = new FrequencyHuffmanModel(in, format);
     }
     
+    /**
+     * Returns a copy sharing this model's codes, with its own state for the
+     * HuffmanModel methods.
+     */
     public FemtoZipHuffmanModel createModel() {
         return clone();
     }
-    
+
     public void save(DataOutputStream out) throws IOException {
         literalLengthModel.save(out);
         offsetNibble0Model.save(out);
@@ -69,10 +95,96 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
         offsetNibble3Model.save(out);
     }
 
+    /**
+     * Returns the code for literals, match lengths and EOF, which is also the
+     * one to create a HuffmanDecoder with.
+     */
+    public FrequencyHuffmanModel getLiteralLengthModel() {
+        return literalLengthModel;
+    }
+
+    /**
+     * Returns the code for the specified nibble (0 lowest) of match offsets.
+     */
+    public FrequencyHuffmanModel getOffsetNibbleModel(int nibble) {
+        switch (nibble) {
+            case 0: return offsetNibble0Model;
+            case 1: return offsetNibble1Model;
+            case 2: return offsetNibble2Model;
+            case 3: return offsetNibble3Model;
+        }
+        throw new IllegalArgumentException("Nibble " + nibble + " out of range [0,3]");
+    }
+
+    /**
+     * Returns roughly how many bytes of heap the five codes' tables take.
+     * @see FrequencyHuffmanModel#getMemoryFootprint()
+     */
+    public long getMemoryFootprint() {
+        return literalLengthModel.getMemoryFootprint() + offsetNibble0Model.getMemoryFootprint()
+                + offsetNibble1Model.getMemoryFootprint() + offsetNibble2Model.getMemoryFootprint()
+                + offsetNibble3Model.getMemoryFootprint();
+    }
+
+    public void encodeLiteral(int aByte, BitOutput out) throws IOException {
+        literalLengthModel.encode(aByte, out);
+    }
+
+    /**
+     * Writes a match of the specified length (1 to 255) and offset (1 to 65535).
+     */
+    public void encodeMatch(int length, int offset, BitOutput out) throws IOException {
+        literalLengthModel.encode(256 + length, out);
+        offsetNibble0Model.encode(offset & 0xf, out);
+        offsetNibble1Model.encode((offset >> 4) & 0xf, out);
+        offsetNibble2Model.encode((offset >> 8) & 0xf, out);
+        offsetNibble3Model.encode((offset >> 12) & 0xf, out);
+    }
+
+    public void encodeEOF(BitOutput out) throws IOException {
+        literalLengthModel.encodeEOF(out);
+    }
+
+    /**
+     * Decodes the next token's first symbol: a literal byte, 256 plus the
+     * length of a match (whose offset follows, see decodeOffset), or -1 at EOF.
+     */
+    public int decodeLiteralLength(HuffmanDecoder decoder) throws IOException {
+        return decoder.decodeSymbol(literalLengthModel);
+    }
+
+    /**
+     * Decodes the four offset nibbles that follow a match length.
+     */
+    public int decodeOffset(HuffmanDecoder decoder) throws IOException {
+        int offset = decoder.decodeRawSymbol(offsetNibble0Model)
+                | (decoder.decodeRawSymbol(offsetNibble1Model) << 4)
+                | (decoder.decodeRawSymbol(offsetNibble2Model) << 8)
+                | (decoder.decodeRawSymbol(offsetNibble3Model) << 12);
+        if (offset <= 0) {
+            // The stream ended mid offset (making it negative), or the offset is 0
+            throw new IOException("Corrupt compressed data, match offset " + offset);
+        }
+        return offset;
+    }
+
+    /**
+     * @deprecated use encodeEOF(BitOutput)
+     */
+    @Deprecated
+    @Override
     public Codeword getCodewordForEOF() {
         return literalLengthModel.getCodewordForEOF();
     }
 
+    /**
+     * Returns the codeword for the next symbol of a token stream, switching
+     * to the offset nibble codes after a match length.
+     * @deprecated use encodeLiteral and encodeMatch, which don't depend on
+     * the model's state
+     */
+    @Deprecated
+    @Override
     public Codeword encode(int symbol) {
         switch (state) {
         case LiteralLengthState:
@@ -97,11 +209,18 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
         }
     }
 
+    /**
+     * The counterpart of encode(int).
+     * @deprecated use decodeLiteralLength and decodeOffset, which don't
+     * depend on the model's state
+     */
+    @Deprecated
+    @Override
     public Codeword decode(int bits) {
         switch (state) {
         case LiteralLengthState:
             Codeword codeword = literalLengthModel.decode(bits);
-            if (codeword.getSymbol() > 255) {
+            if (codeword != null && codeword.getSymbol() > 255) {
                 state = State.OffsetNibble0State;
             }
             return codeword;
@@ -121,11 +240,16 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
             throw new RuntimeException();
         }
     }
-    
+
+    /**
+     * @deprecated see decode(int)
+     */
+    @Deprecated
+    @Override
     public boolean isEOF(Codeword codeword) {
         return state == State.OffsetNibble0State && getCodewordForEOF().equals(codeword);
     }
-    
+
     @Override
     protected FemtoZipHuffmanModel clone() {
         FemtoZipHuffmanModel clonedModel = new FemtoZipHuffmanModel(
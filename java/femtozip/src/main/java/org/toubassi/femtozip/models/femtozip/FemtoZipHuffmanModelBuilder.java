@@ -38,6 +38,24 @@ public class FemtoZipHuffmanModelBuilder implements SubstringPacker.Consumer {
         offsetHistogramNibble3[(offset >> 12) & 0xf]++;
     }
 
+    /**
+     * Adds the counts collected by other into this builder's, so documents can
+     * be packed into separate builders (e.g. one per thread) and combined.
+     */
+    public void merge(FemtoZipHuffmanModelBuilder other) {
+        add(literalLengthHistogram, other.literalLengthHistogram);
+        add(offsetHistogramNibble0, other.offsetHistogramNibble0);
+        add(offsetHistogramNibble1, other.offsetHistogramNibble1);
+        add(offsetHistogramNibble2, other.offsetHistogramNibble2);
+        add(offsetHistogramNibble3, other.offsetHistogramNibble3);
+    }
+
+    private static void add(int[] histogram, int[] other) {
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] += other[i];
+        }
+    }
+
     public FemtoZipHuffmanModel createModel() {
         return new FemtoZipHuffmanModel(
                 new FrequencyHuffmanModel(literalLengthHistogram, false),
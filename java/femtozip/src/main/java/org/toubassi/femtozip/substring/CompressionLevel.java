@@ -0,0 +1,73 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.substring;
+
+/**
+ * Trades compression ratio for speed in SubstringPacker.  Max is the
+ * historical behavior (and the default), the faster levels bound the work
+ * done per input byte.
+ */
+public enum CompressionLevel {
+
+    Fastest(4, 16, false, 4),
+    Fast(16, 64, false, 6),
+    Balanced(64, 128, true, 0),
+    Max(Integer.MAX_VALUE, 255, true, 0);
+
+    private final int maxChainDepth;
+    private final int niceLength;
+    private final boolean lazy;
+    private final int skipTrigger;
+
+    CompressionLevel(int maxChainDepth, int niceLength, boolean lazy, int skipTrigger) {
+        this.maxChainDepth = maxChainDepth;
+        this.niceLength = niceLength;
+        this.lazy = lazy;
+        this.skipTrigger = skipTrigger;
+    }
+
+    /**
+     * The maximum number of PrefixHash chain entries examined per lookup.
+     */
+    public int getMaxChainDepth() {
+        return maxChainDepth;
+    }
+
+    /**
+     * Once a match at least this long is found, the chain walk stops.
+     */
+    public int getNiceLength() {
+        return niceLength;
+    }
+
+    /**
+     * Whether the packer defers a match by one byte to see if the next
+     * position yields a longer one.  When false, matches are taken greedily.
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * LZ4 style acceleration for the greedy packer.  After every
+     * 2^skipTrigger consecutive positions without a match, the packer steps one
+     * byte further before searching again, so incompressible runs are skipped
+     * quickly.  0 disables skipping.
+     */
+    public int getSkipTrigger() {
+        return skipTrigger;
+    }
+}
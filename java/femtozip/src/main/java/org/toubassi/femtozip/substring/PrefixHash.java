@@ -15,63 +15,464 @@
  */
 package org.toubassi.femtozip.substring;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 
 import java.util.Arrays;
 
+import org.toubassi.femtozip.util.StreamUtil;
+
 public class PrefixHash {
-    
+
     public static final int PrefixLength = 4;
-    
-    final private ByteBuffer buffer;
-    final int[] hash;
-    final int[] heap;
-    
+
+    /**
+     * The longest buffer forDictionary gives a compact hash, whose entries
+     * (index + 1) have to fit in a char.  Only indexes before the last
+     * PrefixLength bytes are hashed, so a full 64KB dictionary fits.  Matches
+     * are limited to distances below 64k anyway, so dictionaries are rarely
+     * longer.
+     */
+    public static final int MaxCompactLength = 64 * 1024;
+
+    private static final int CompactHashMultiplier = 0x9E3779B1;
+
+    private ByteBuffer buffer;
+    private int bufferLength;
+    private int[] hash;
+    private int[] heap;
+    private int hashLength;
+
+    // Set instead of hash and heap for a read only hash over a mapped model,
+    // holding entries as saved (index + 1, 0 for empty).
+    private IntBuffer mappedHash;
+    private IntBuffer mappedHeap;
+
+    // Set instead of hash and heap for a read only hash over a dictionary of
+    // at most MaxCompactLength bytes, holding entries as index + 1 (0 for
+    // empty) in a power of two table indexed by a multiplicative hash.  They
+    // wrap char[]s, or are mapped like mappedHash and mappedHeap.
+    private CharBuffer compactHash;
+    private CharBuffer compactHeap;
+    private int compactShift;
+
+    // Entries in hash and heap are stored as (generation + index).  Anything
+    // below the current generation was written for a previous buffer and reads
+    // as empty, so reset() can reuse the arrays without clearing them.
+    private int generation = 1;
+
     public PrefixHash(ByteBuffer buf, boolean addToHash) {
-        buffer = buf;
-        hash = new int[(int)(1.75 * buf.remaining())];
-        Arrays.fill(hash, -1);
-        heap = new int[buf.remaining()];
-        Arrays.fill(heap, -1);
+        this();
+        reset(buf);
         if (addToHash) {
             for (int i = 0, count = buf.remaining() - PrefixLength; i < count; i++) {
                 put(i);
             }
         }
     }
-    
+
+    /**
+     * Creates an empty hash which must be reset() before use.  The arrays
+     * grow to fit the largest buffer seen and are then reused.
+     */
+    public PrefixHash() {
+        hash = new int[0];
+        heap = new int[0];
+    }
+
+    /**
+     * Restores a hash over buf previously written by save(), without rehashing
+     * buf.  The arrays are validated so that a corrupt model can't send
+     * getBestMatch into a cycle.
+     */
+    public PrefixHash(ByteBuffer buf, DataInputStream in) throws IOException {
+        int length = buf.remaining();
+        int savedHashLength = in.readInt();
+        int savedHeapLength = in.readInt();
+        if (savedHashLength != getHashLength(length) || savedHeapLength != length) {
+            throw new IOException("Bad model in stream.  Saved dictionary hash does not match dictionary of length " + length);
+        }
+
+        buffer = buf;
+        bufferLength = length;
+        hashLength = savedHashLength;
+        hash = new int[hashLength];
+        heap = new int[length];
+        StreamUtil.readInts(in, hash, hashLength);
+        StreamUtil.readInts(in, heap, length);
+
+        // Saved entries are index + 1, with 0 for empty, i.e. generation 1.
+        for (int i = 0; i < hashLength; i++) {
+            if (hash[i] < 0 || hash[i] > length) {
+                throw new IOException("Bad model in stream.  Corrupt dictionary hash");
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (heap[i] < 0 || heap[i] > i) {
+                throw new IOException("Bad model in stream.  Corrupt dictionary hash");
+            }
+        }
+    }
+
+    /**
+     * Returns a read only hash over buf which reads its entries in place from
+     * hash and heap, as written by write.  Unlike the DataInputStream
+     * constructor the entries aren't validated up front, which would mean
+     * reading all of them, but getBestMatch stops at any that are out of
+     * range, so a corrupt index costs matches rather than looping.
+     */
+    public PrefixHash(ByteBuffer buf, IntBuffer hash, IntBuffer heap) throws IOException {
+        int length = buf.remaining();
+        if (hash.remaining() != getHashLength(length) || heap.remaining() != length) {
+            throw new IOException("Bad model.  Dictionary hash does not match dictionary of length " + length);
+        }
+        buffer = buf;
+        bufferLength = length;
+        hashLength = hash.remaining();
+        mappedHash = hash.slice();
+        mappedHeap = heap.slice();
+    }
+
+    /**
+     * Returns a read only compact hash over buf which reads its entries in
+     * place from hash and heap, as written by write(CharBuffer).  As with
+     * PrefixHash(ByteBuffer, IntBuffer, IntBuffer) the entries aren't
+     * validated up front.
+     */
+    public PrefixHash(ByteBuffer buf, CharBuffer hash, CharBuffer heap) throws IOException {
+        int length = buf.remaining();
+        if (length > MaxCompactLength || hash.remaining() != getCompactHashLength(length) || heap.remaining() != length) {
+            throw new IOException("Bad model.  Dictionary hash does not match dictionary of length " + length);
+        }
+        initCompact(buf, hash, heap);
+    }
+
+    private void initCompact(ByteBuffer buf, CharBuffer hash, CharBuffer heap) {
+        buffer = buf;
+        bufferLength = buf.remaining();
+        hashLength = hash.remaining();
+        compactHash = hash.slice();
+        compactHeap = heap.slice();
+        compactShift = Integer.numberOfLeadingZeros(hashLength) + 1;
+    }
+
+    /**
+     * Returns a read only hash over dictionary for SubstringPacker, compact if
+     * the dictionary is at most MaxCompactLength bytes.  The compact hash takes
+     * less than half the memory and, with an unlimited chain depth, finds the
+     * same matches of PrefixLength or more bytes.
+     */
+    public static PrefixHash forDictionary(ByteBuffer dictionary) {
+        int length = dictionary.remaining();
+        if (length > MaxCompactLength) {
+            return new PrefixHash(dictionary, true);
+        }
+
+        char[] hash = new char[getCompactHashLength(length)];
+        char[] heap = new char[length];
+        int shift = Integer.numberOfLeadingZeros(hash.length) + 1;
+        for (int i = 0, count = length - PrefixLength; i < count; i++) {
+            int hashIndex = compactHashIndex(dictionary, i, shift);
+            heap[i] = hash[hashIndex];
+            hash[hashIndex] = (char)(i + 1);
+        }
+        return newCompact(dictionary, hash, heap);
+    }
+
+    private static PrefixHash newCompact(ByteBuffer buf, char[] hash, char[] heap) {
+        PrefixHash compact = new PrefixHash();
+        compact.initCompact(buf, CharBuffer.wrap(hash), CharBuffer.wrap(heap));
+        return compact;
+    }
+
+    /**
+     * Restores a compact hash over buf previously written by save(), validating
+     * it as PrefixHash(ByteBuffer, DataInputStream) does.
+     */
+    public static PrefixHash loadCompact(ByteBuffer buf, DataInputStream in) throws IOException {
+        int length = buf.remaining();
+        int savedHashLength = in.readInt();
+        int savedHeapLength = in.readInt();
+        if (length > MaxCompactLength || savedHashLength != getCompactHashLength(length) || savedHeapLength != length) {
+            throw new IOException("Bad model in stream.  Saved dictionary hash does not match dictionary of length " + length);
+        }
+
+        char[] hash = new char[savedHashLength];
+        char[] heap = new char[length];
+        StreamUtil.readChars(in, hash, savedHashLength);
+        StreamUtil.readChars(in, heap, length);
+        int maxEntry = Math.max(0, length - PrefixLength);
+        for (int i = 0; i < savedHashLength; i++) {
+            if (hash[i] > maxEntry) {
+                throw new IOException("Bad model in stream.  Corrupt dictionary hash");
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (heap[i] > i) {
+                throw new IOException("Bad model in stream.  Corrupt dictionary hash");
+            }
+        }
+        return newCompact(buf, hash, heap);
+    }
+
+    /**
+     * Skips a hash written by save(), compact or not, without reading its
+     * entries.
+     */
+    public static void skip(DataInputStream in, boolean compact) throws IOException {
+        long hashLength = in.readInt();
+        long heapLength = in.readInt();
+        if (hashLength < 0 || heapLength < 0) {
+            throw new IOException("Bad model in stream.  Corrupt dictionary hash");
+        }
+        long length = (hashLength + heapLength) * (compact ? 2 : 4);
+        while (length > 0) {
+            int skipped = in.skipBytes((int)Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("Bad model in stream.  Dictionary hash truncated");
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Returns the number of hash entries in a compact hash for a buffer of
+     * length bytes, the smallest power of two (and at least 2) not below it.
+     */
+    public static int getCompactHashLength(int length) {
+        return Math.max(2, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    }
+
+    /**
+     * Returns whether this is a compact hash, as returned by forDictionary or
+     * loadCompact.  Compact hashes save in their own format, and are written
+     * for mapping by write(CharBuffer) rather than write(IntBuffer).
+     */
+    public boolean isCompact() {
+        return compactHash != null;
+    }
+
+    /**
+     * Returns how many bytes of heap the hash's arrays take, which is 0 for a
+     * mapped hash.
+     */
+    public long getMemoryFootprint() {
+        if (mappedHash != null) {
+            return 0;
+        }
+        if (compactHash != null) {
+            return compactHash.hasArray() ? 2L * (compactHash.capacity() + compactHeap.capacity()) : 0;
+        }
+        return 4L * (hash.length + heap.length);
+    }
+
+    /**
+     * Returns the number of hash entries (as written by write) for a buffer of length bytes.
+     */
+    public static int getHashLength(int length) {
+        return (int)(1.75 * length);
+    }
+
+    /**
+     * Writes the hash entries, then the heap entries, to out for reading in
+     * place with PrefixHash(ByteBuffer, IntBuffer, IntBuffer).  There are
+     * getHashLength(length) hash entries and length heap entries.
+     */
+    public void write(IntBuffer out) {
+        if (compactHash != null) {
+            throw new IllegalStateException("A compact PrefixHash is written with write(CharBuffer)");
+        }
+        if (mappedHash != null) {
+            out.put(mappedHash.duplicate());
+            out.put(mappedHeap.duplicate());
+        }
+        else if (generation == 1) {
+            out.put(hash, 0, hashLength);
+            out.put(heap, 0, bufferLength);
+        }
+        else {
+            out.put(rebase(hash, hashLength));
+            out.put(rebase(heap, bufferLength));
+        }
+    }
+
+    /**
+     * Writes a compact hash's entries, then its heap entries, to out for
+     * reading in place with PrefixHash(ByteBuffer, CharBuffer, CharBuffer).
+     * There are getCompactHashLength(length) hash entries and length heap
+     * entries.
+     */
+    public void write(CharBuffer out) {
+        if (compactHash == null) {
+            throw new IllegalStateException("Only a compact PrefixHash is written with write(CharBuffer)");
+        }
+        out.put(compactHash.duplicate());
+        out.put(compactHeap.duplicate());
+    }
+
+    /**
+     * Writes the hash so it can be restored over the same buffer with
+     * PrefixHash(ByteBuffer, DataInputStream), or loadCompact if isCompact().
+     */
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(hashLength);
+        out.writeInt(bufferLength);
+        if (compactHash != null) {
+            char[] entries = new char[Math.max(hashLength, bufferLength)];
+            compactHash.duplicate().get(entries, 0, hashLength);
+            StreamUtil.writeChars(out, entries, hashLength);
+            compactHeap.duplicate().get(entries, 0, bufferLength);
+            StreamUtil.writeChars(out, entries, bufferLength);
+        }
+        else if (mappedHash != null) {
+            for (int i = 0; i < hashLength; i++) {
+                out.writeInt(mappedHash.get(i));
+            }
+            for (int i = 0; i < bufferLength; i++) {
+                out.writeInt(mappedHeap.get(i));
+            }
+        }
+        else if (generation == 1) {
+            StreamUtil.writeInts(out, hash, hashLength);
+            StreamUtil.writeInts(out, heap, bufferLength);
+        }
+        else {
+            StreamUtil.writeInts(out, rebase(hash, hashLength), hashLength);
+            StreamUtil.writeInts(out, rebase(heap, bufferLength), bufferLength);
+        }
+    }
+
+    private int[] rebase(int[] entries, int count) {
+        int[] rebased = new int[count];
+        for (int i = 0; i < count; i++) {
+            rebased[i] = Math.max(0, entries[i] - generation + 1);
+        }
+        return rebased;
+    }
+
+    public void reset(ByteBuffer buf) {
+        checkWritable();
+        int length = buf.remaining();
+
+        if ((long)generation + bufferLength + length > Integer.MAX_VALUE) {
+            Arrays.fill(hash, 0);
+            generation = 1;
+        }
+        else {
+            generation += bufferLength;
+        }
+
+        buffer = buf;
+        bufferLength = length;
+        hashLength = getHashLength(length);
+        if (hash.length < hashLength) {
+            hash = new int[hashLength];
+        }
+        if (heap.length < length) {
+            heap = new int[length];
+        }
+    }
+
     private int hashIndex(ByteBuffer buf, int i) {
-        int code = (buf.get(i) & 0xff) | ((buf.get(i + 1) & 0xff) << 8) | ((buf.get(i + 2) & 0xff) << 16) | ((buf.get(i + 3) & 0xff) << 24);
-        return (code & 0x7fffff) % hash.length;
+        // The prefix is read as a single little endian int, whatever the buffer's byte order
+        int code = buf.getInt(i);
+        if (buf.order() == ByteOrder.BIG_ENDIAN) {
+            code = Integer.reverseBytes(code);
+        }
+        return (code & 0x7fffff) % hashLength;
+    }
+
+    private static int compactHashIndex(ByteBuffer buf, int i, int shift) {
+        int code = buf.getInt(i);
+        if (buf.order() == ByteOrder.BIG_ENDIAN) {
+            code = Integer.reverseBytes(code);
+        }
+        return (code * CompactHashMultiplier) >>> shift;
+    }
+
+
+    /**
+     * Moves every entry down by shift, as if the first shift bytes of the
+     * buffer had been removed and the rest moved to the front.  Entries for
+     * the removed bytes are dropped.  Used to slide a window over a stream.
+     */
+    public void slide(int shift) {
+        checkWritable();
+        for (int i = 0; i < hashLength; i++) {
+            hash[i] = rebaseEntry(hash[i], shift);
+        }
+        for (int i = shift; i < bufferLength; i++) {
+            heap[i - shift] = rebaseEntry(heap[i], shift);
+        }
+    }
+
+    private int rebaseEntry(int entry, int shift) {
+        int index = entry - generation - shift;
+        return index < 0 ? 0 : generation + index;
+    }
+
+    private void checkWritable() {
+        if (mappedHash != null || compactHash != null) {
+            throw new IllegalStateException("A " + (compactHash != null ? "compact" : "mapped") + " PrefixHash is read only");
+        }
     }
 
-    
     public void put(int index) {
         int hashIndex = hashIndex(buffer, index);
         heap[index] = hash[hashIndex];
-        hash[hashIndex] = index;
+        hash[hashIndex] = generation + index;
     }
 
     public final long getBestMatch(final int index, final ByteBuffer targetBuf) {
+        return getBestMatch(index, targetBuf, Integer.MAX_VALUE, 255);
+    }
+
+    /**
+     * Like getBestMatch(int, ByteBuffer), but examines at most maxChainDepth
+     * candidates and stops as soon as a match of niceLength bytes is found.
+     */
+    public final long getBestMatch(final int index, final ByteBuffer targetBuf, int maxChainDepth, final int niceLength) {
+        return getBestMatch(index, targetBuf, 0, maxChainDepth, niceLength);
+    }
+
+    /**
+     * Like getBestMatch(int, ByteBuffer, int, int), for a targetBuf which is a
+     * window whose index 0 is targetOffset bytes into the document being packed.
+     * targetOffset only affects the distance to candidates in this hash's buffer.
+     */
+    public final long getBestMatch(final int index, final ByteBuffer targetBuf, final int targetOffset, int maxChainDepth, final int niceLength) {
         int bestMatchIndex = 0;
         int bestMatchLength = 0;
 
-        final int bufLen = this.buffer.remaining();
+        final int bufLen = this.bufferLength;
 
         if (bufLen == 0) {
             return (((long) 0) << 32) | (0 & 0xffffffffL);
         }
 
+        if (compactHash != null) {
+            return getCompactBestMatch(index, targetBuf, targetOffset, maxChainDepth, niceLength);
+        }
+        if (mappedHash != null) {
+            return getMappedBestMatch(index, targetBuf, targetOffset, maxChainDepth, niceLength);
+        }
+
         final int targetBufLen = targetBuf.remaining();
 
         final int maxLimit = Math.min(255, targetBufLen - index);
 
         int targetHashIndex = hashIndex(targetBuf, index);
-        int candidateIndex = hash[targetHashIndex];
-        while (candidateIndex >= 0) {
+        int candidateIndex = hash[targetHashIndex] - generation;
+        while (candidateIndex >= 0 && maxChainDepth-- > 0) {
             int distance;
             if (targetBuf != this.buffer) {
-                distance = index + bufLen - candidateIndex;
+                distance = index + targetOffset + bufLen - candidateIndex;
             } else {
                 distance = index - candidateIndex;
             }
@@ -81,22 +482,169 @@ public class PrefixHash {
                 break;
             }
 
-            final int maxMatchJ = index + Math.min(maxLimit, bufLen - candidateIndex);
-            int j, k;
-            for (j = index, k = candidateIndex; j < maxMatchJ; j++, k++) {
-                if (this.buffer.get(k) != targetBuf.get(j)) {
-                    break;
+            // A candidate can only beat the current best if it also matches the byte
+            // just past the best match, so check that before comparing the rest.
+            final int maxMatch = Math.min(maxLimit, bufLen - candidateIndex);
+            if (maxMatch > bestMatchLength && this.buffer.get(candidateIndex + bestMatchLength) == targetBuf.get(index + bestMatchLength)) {
+                final int matchLength = matchLength(this.buffer, candidateIndex, targetBuf, index, maxMatch);
+                if (matchLength > bestMatchLength) {
+                    bestMatchIndex = candidateIndex;
+                    bestMatchLength = matchLength;
+                    if (matchLength >= niceLength || matchLength == maxLimit) {
+                        // Good enough, and no candidate can match more than maxLimit bytes
+                        break;
+                    }
+                }
+            }
+            candidateIndex = heap[candidateIndex] - generation;
+        }
+
+        return (((long) bestMatchIndex) << 32) | (bestMatchLength & 0xffffffffL);
+    }
+
+    /**
+     * getBestMatch for a compact hash.  Like getMappedBestMatch it checks each
+     * candidate is in range and before the last, since mapped entries aren't
+     * validated, but unlike it allows targetBuf to be this hash's buffer.
+     */
+    private long getCompactBestMatch(final int index, final ByteBuffer targetBuf, final int targetOffset, int maxChainDepth, final int niceLength) {
+        int bestMatchIndex = 0;
+        int bestMatchLength = 0;
+
+        final int bufLen = this.bufferLength;
+        final int maxLimit = Math.min(255, targetBuf.remaining() - index);
+        final CharBuffer heap = this.compactHeap;
+
+        int candidateIndex = compactHash.get(compactHashIndex(targetBuf, index, compactShift)) - 1;
+        int previousIndex = bufLen;
+        while (candidateIndex >= 0 && candidateIndex < previousIndex && maxChainDepth-- > 0) {
+            int distance;
+            if (targetBuf != this.buffer) {
+                distance = index + targetOffset + bufLen - candidateIndex;
+            } else {
+                distance = index - candidateIndex;
+            }
+            if (distance > (2 << 15) - 1) {
+                break;
+            }
+
+            final int maxMatch = Math.min(maxLimit, bufLen - candidateIndex);
+            if (maxMatch > bestMatchLength && this.buffer.get(candidateIndex + bestMatchLength) == targetBuf.get(index + bestMatchLength)) {
+                final int matchLength = matchLength(this.buffer, candidateIndex, targetBuf, index, maxMatch);
+                if (matchLength > bestMatchLength) {
+                    bestMatchIndex = candidateIndex;
+                    bestMatchLength = matchLength;
+                    if (matchLength >= niceLength || matchLength == maxLimit) {
+                        break;
+                    }
                 }
             }
+            previousIndex = candidateIndex;
+            candidateIndex = heap.get(candidateIndex) - 1;
+        }
 
-            final int matchLength = j - index;
-            if (matchLength > bestMatchLength) {
-                bestMatchIndex = candidateIndex;
-                bestMatchLength = matchLength;
+        return (((long) bestMatchIndex) << 32) | (bestMatchLength & 0xffffffffL);
+    }
+
+    /**
+     * getBestMatch for a mapped hash, which is always over a dictionary rather
+     * than targetBuf.  Kept apart so the common case's loop reads int[]s, and
+     * checks that each candidate is in range and before the last, which the
+     * validated arrays don't need.
+     */
+    private long getMappedBestMatch(final int index, final ByteBuffer targetBuf, final int targetOffset, int maxChainDepth, final int niceLength) {
+        int bestMatchIndex = 0;
+        int bestMatchLength = 0;
+
+        final int bufLen = this.bufferLength;
+        final int maxLimit = Math.min(255, targetBuf.remaining() - index);
+
+        int candidateIndex = mappedHash.get(hashIndex(targetBuf, index)) - 1;
+        int previousIndex = bufLen;
+        while (candidateIndex >= 0 && candidateIndex < previousIndex && maxChainDepth-- > 0) {
+            int distance = index + targetOffset + bufLen - candidateIndex;
+            if (distance > (2 << 15) - 1) {
+                break;
             }
-            candidateIndex = heap[candidateIndex];
+
+            final int maxMatch = Math.min(maxLimit, bufLen - candidateIndex);
+            if (maxMatch > bestMatchLength && this.buffer.get(candidateIndex + bestMatchLength) == targetBuf.get(index + bestMatchLength)) {
+                final int matchLength = matchLength(this.buffer, candidateIndex, targetBuf, index, maxMatch);
+                if (matchLength > bestMatchLength) {
+                    bestMatchIndex = candidateIndex;
+                    bestMatchLength = matchLength;
+                    if (matchLength >= niceLength || matchLength == maxLimit) {
+                        break;
+                    }
+                }
+            }
+            previousIndex = candidateIndex;
+            candidateIndex = mappedHeap.get(candidateIndex) - 1;
         }
 
         return (((long) bestMatchIndex) << 32) | (bestMatchLength & 0xffffffffL);
     }
+
+    /**
+     * Returns how many bytes starting at a[aIndex] and b[bIndex] are equal, up to maxLength.
+     * Compares 8 bytes at a time and locates the first mismatching byte from
+     * the XOR of the two words, falling back to single bytes for the tail.
+     * Direct buffers are read with ByteBuffer.getLong, which is an unaligned
+     * load.  A heap buffer's getLong assembles the word a byte at a time
+     * through its bounds checked accessors (on Java 8 at least), so when both
+     * buffers have arrays the words are built from the arrays instead.
+     */
+    static int matchLength(ByteBuffer a, int aIndex, ByteBuffer b, int bIndex, int maxLength) {
+        if (a.hasArray() && b.hasArray()) {
+            return matchLength(a.array(), a.arrayOffset() + aIndex, b.array(), b.arrayOffset() + bIndex, maxLength);
+        }
+        int length = 0;
+        if (maxLength >= 8) {
+            ByteOrder order = a.order();
+            boolean swap = order != b.order();
+            for (int wordEnd = maxLength - 8; length <= wordEnd; length += 8) {
+                long bWord = b.getLong(bIndex + length);
+                long diff = a.getLong(aIndex + length) ^ (swap ? Long.reverseBytes(bWord) : bWord);
+                if (diff != 0) {
+                    if (order == ByteOrder.LITTLE_ENDIAN) {
+                        return length + (Long.numberOfTrailingZeros(diff) >>> 3);
+                    }
+                    return length + (Long.numberOfLeadingZeros(diff) >>> 3);
+                }
+            }
+        }
+        for (; length < maxLength; length++) {
+            if (a.get(aIndex + length) != b.get(bIndex + length)) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private static int matchLength(byte[] a, int aIndex, byte[] b, int bIndex, int maxLength) {
+        int length = 0;
+        for (int wordEnd = maxLength - 8; length <= wordEnd; length += 8) {
+            long diff = getLittleEndianLong(a, aIndex + length) ^ getLittleEndianLong(b, bIndex + length);
+            if (diff != 0) {
+                return length + (Long.numberOfTrailingZeros(diff) >>> 3);
+            }
+        }
+        for (; length < maxLength; length++) {
+            if (a[aIndex + length] != b[bIndex + length]) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private static long getLittleEndianLong(byte[] bytes, int i) {
+        return (bytes[i] & 0xffL)
+                | (bytes[i + 1] & 0xffL) << 8
+                | (bytes[i + 2] & 0xffL) << 16
+                | (bytes[i + 3] & 0xffL) << 24
+                | (bytes[i + 4] & 0xffL) << 32
+                | (bytes[i + 5] & 0xffL) << 40
+                | (bytes[i + 6] & 0xffL) << 48
+                | (bytes[i + 7] & 0xffL) << 56;
+    }
 }
@@ -0,0 +1,284 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.substring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Packs a document of any length, supplied incrementally, in constant memory.
+ * SubstringPacker hashes the whole document, but offsets can't reach more than
+ * 65535 bytes back, so this keeps only a window of the most recent input (and
+ * its PrefixHash) and slides it along the document.  The consumer sees exactly
+ * the calls SubstringPacker.pack would make for the same document and level.
+ * Not thread safe.
+ */
+public class SlidingWindowPacker {
+    private static final int MinimumMatchLength = PrefixHash.PrefixLength;
+
+    // The furthest back a match can reach
+    private static final int MaxDistance = (2 << 15) - 1;
+
+    // Bytes kept before the current position when the window slides
+    private static final int History = MaxDistance + 1;
+
+    // Bytes that must follow a position before it can be packed without knowing
+    // the end of the document: a 255 byte match, one byte of lazy lookahead and
+    // the hashed prefix past that.
+    private static final int Lookahead = 512;
+
+    private static final int WindowSize = 2 * History + Lookahead;
+
+    private final PrefixHash dictHash;
+    private final int dictLen;
+    private final CompressionLevel level;
+    private final SubstringPacker.Consumer consumer;
+    private final Object consumerContext;
+
+    private final ByteBuffer window = ByteBuffer.allocate(WindowSize);
+    private final PrefixHash hash = new PrefixHash();
+    private long windowStart; // Offset in the document of window index 0
+    private int filled;
+    private int curr;
+    private boolean finished;
+
+    // Lazy matching state carried between pack calls, with match indices in
+    // SubstringPacker's coordinates (dictionary index, or dictLen + document offset)
+    private long previousMatchIndex;
+    private int previousMatchLength;
+    private int misses;
+
+    // Set by findMatch
+    private long matchIndex;
+
+    public SlidingWindowPacker(SubstringPacker packer, CompressionLevel level, SubstringPacker.Consumer consumer, Object consumerContext) {
+        this.dictHash = packer.getDictionaryHash();
+        this.dictLen = packer.getDictionaryLength();
+        this.level = level;
+        this.consumer = consumer;
+        this.consumerContext = consumerContext;
+        hash.reset(window);
+        window.limit(0);
+    }
+
+    /**
+     * Appends the remaining bytes of src to the document.
+     */
+    public void write(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int n = reserve(src.remaining());
+            src.get(window.array(), filled, n);
+            filled += n;
+        }
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int n = reserve(length);
+            System.arraycopy(bytes, offset, window.array(), filled, n);
+            filled += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Appends whatever a single read of channel returns, reading straight
+     * into the window.
+     * @return the number of bytes read, or -1 at the end of the channel
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        reserve(1);
+        window.limit(WindowSize);
+        window.position(filled);
+        try {
+            int read = channel.read(window);
+            if (read > 0) {
+                filled += read;
+            }
+            return read;
+        }
+        finally {
+            window.position(0);
+        }
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getLength() {
+        return windowStart + filled;
+    }
+
+    /**
+     * Packs the rest of the document and calls the consumer's endEncoding.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        pack(filled);
+        finished = true;
+        consumer.endEncoding(consumerContext);
+    }
+
+    /**
+     * Makes room in the window, packing and sliding it along if it is full.
+     * @return how many of the wanted bytes fit
+     */
+    private int reserve(int wanted) {
+        if (finished) {
+            throw new IllegalStateException("Already finished");
+        }
+        if (filled == WindowSize) {
+            pack(filled - Lookahead);
+            slide();
+        }
+        return Math.min(wanted, WindowSize - filled);
+    }
+
+    private void slide() {
+        int shift = curr - History;
+        byte[] bytes = window.array();
+        System.arraycopy(bytes, shift, bytes, 0, filled - shift);
+        hash.slide(shift);
+        windowStart += shift;
+        filled -= shift;
+        curr -= shift;
+    }
+
+    private void pack(int end) {
+        window.limit(filled);
+        if (level.isLazy()) {
+            packLazy(end);
+        }
+        else {
+            packGreedy(end);
+        }
+    }
+
+    /**
+     * Finds the best match at window index curr, returning its length and
+     * leaving its index, in SubstringPacker's coordinates, in matchIndex.
+     */
+    private int findMatch(int curr, int maxChainDepth, int niceLength) {
+        matchIndex = 0;
+        int matchLength = 0;
+
+        // Dictionary matches are only in reach near the start of the document
+        if (windowStart + curr < MaxDistance) {
+            long match = dictHash.getBestMatch(curr, window, (int)windowStart, maxChainDepth, niceLength);
+            matchIndex = (int)(match >> 32);
+            matchLength = (int)match;
+        }
+
+        long match = hash.getBestMatch(curr, window, maxChainDepth, niceLength);
+        // Prefer the nearer match from the document on ties, as SubstringPacker does
+        if ((int)match >= matchLength) {
+            matchIndex = windowStart + (int)(match >> 32) + dictLen;
+            matchLength = (int)match;
+        }
+        return matchLength;
+    }
+
+    /**
+     * The loop of SubstringPacker.pack, made resumable.  Positions before end are
+     * packed, and end leaves enough lookahead that every decision is the same one
+     * SubstringPacker would make with the whole document in hand.
+     */
+    private void packLazy(int end) {
+        final int maxChainDepth = level.getMaxChainDepth();
+        final int niceLength = level.getNiceLength();
+
+        for (; curr < end; curr++) {
+            long bestMatchIndex = 0;
+            int bestMatchLength = 0;
+
+            if (curr + PrefixHash.PrefixLength - 1 < filled) {
+                bestMatchLength = findMatch(curr, maxChainDepth, niceLength);
+                bestMatchIndex = matchIndex;
+                hash.put(curr);
+            }
+
+            if (bestMatchLength < MinimumMatchLength) {
+                bestMatchIndex = bestMatchLength = 0;
+            }
+
+            if (previousMatchLength > 0 && bestMatchLength <= previousMatchLength) {
+                consumer.encodeSubstring(-(int)(windowStart + curr + dictLen - 1 - previousMatchIndex), previousMatchLength, consumerContext);
+
+                int endMatch = curr - 1 + previousMatchLength;
+                curr++;
+                while (curr < endMatch && curr + PrefixHash.PrefixLength < filled) {
+                    hash.put(curr);
+                    curr++;
+                }
+                curr = endMatch - 1;
+                previousMatchIndex = previousMatchLength = 0;
+            }
+            else if (previousMatchLength > 0 && bestMatchLength > previousMatchLength) {
+                previousMatchIndex = bestMatchIndex;
+                previousMatchLength = bestMatchLength;
+                consumer.encodeLiteral(((int)window.get(curr - 1)) & 0xff, consumerContext);
+            }
+            else if (bestMatchLength > 0) {
+                previousMatchIndex = bestMatchIndex;
+                previousMatchLength = bestMatchLength;
+            }
+            else if (bestMatchLength == 0 && previousMatchLength == 0) {
+                consumer.encodeLiteral(((int)window.get(curr)) & 0xff, consumerContext);
+            }
+        }
+    }
+
+    /**
+     * The greedy loop of SubstringPacker, made resumable like packLazy.
+     */
+    private void packGreedy(int end) {
+        final int maxChainDepth = level.getMaxChainDepth();
+        final int niceLength = level.getNiceLength();
+        final int skipTrigger = level.getSkipTrigger();
+
+        while (curr < end) {
+            long bestMatchIndex = 0;
+            int bestMatchLength = 0;
+
+            if (curr + PrefixHash.PrefixLength - 1 < filled) {
+                bestMatchLength = findMatch(curr, maxChainDepth, niceLength);
+                bestMatchIndex = matchIndex;
+                hash.put(curr);
+            }
+
+            if (bestMatchLength >= MinimumMatchLength) {
+                consumer.encodeSubstring(-(int)(windowStart + curr + dictLen - bestMatchIndex), bestMatchLength, consumerContext);
+
+                int endMatch = curr + bestMatchLength;
+                for (curr++; curr < endMatch && curr + PrefixHash.PrefixLength < filled; curr++) {
+                    hash.put(curr);
+                }
+                curr = endMatch;
+                misses = 0;
+            }
+            else {
+                int step = skipTrigger > 0 ? Math.min(1 + (misses++ >> skipTrigger), SubstringPacker.MaxSkip) : 1;
+                for (int stepEnd = Math.min(curr + step, filled); curr < stepEnd; curr++) {
+                    consumer.encodeLiteral(((int)window.get(curr)) & 0xff, consumerContext);
+                }
+            }
+        }
+    }
+}
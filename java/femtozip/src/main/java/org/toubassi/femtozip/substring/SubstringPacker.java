@@ -20,9 +20,13 @@ import java.nio.ByteBuffer;
 
 public class SubstringPacker {
     private static final int MinimumMatchLength = PrefixHash.PrefixLength;
+
+    // The furthest the greedy packer steps over unmatched input at once
+    static final int MaxSkip = 256;
     
-    private PrefixHash dictHash;
-    private int dictLen;
+    private final ByteBuffer dictionary;
+    private volatile PrefixHash dictHash;
+    private final int dictLen;
     
     public interface Consumer {
         public void encodeLiteral(int aByte, Object context);
@@ -30,13 +34,82 @@ public class SubstringPacker {
         public void endEncoding(Object context);
     }
     
+    /**
+     * Creates a packer whose dictionary hash is built when it is first
+     * needed, so one which never packs never builds it.  A packer holds no
+     * other state, so it can be shared by any number of models and threads.
+     */
     public SubstringPacker(ByteBuffer dictionary) {
-        dictHash = new PrefixHash(dictionary, true);
+        this.dictionary = dictionary;
+        dictLen = dictionary.remaining();
+    }
+
+    /**
+     * Creates a packer using an already populated hash of the dictionary,
+     * e.g. one restored from a saved model.
+     */
+    public SubstringPacker(ByteBuffer dictionary, PrefixHash dictionaryHash) {
+        this.dictionary = dictionary;
+        dictHash = dictionaryHash;
         dictLen = dictionary.remaining();
     }
+
+    /**
+     * Returns the dictionary hash, building it if this is the first call.
+     */
+    public PrefixHash getDictionaryHash() {
+        PrefixHash dictHash = this.dictHash;
+        if (dictHash == null) {
+            synchronized (this) {
+                dictHash = this.dictHash;
+                if (dictHash == null) {
+                    dictHash = PrefixHash.forDictionary(dictionary);
+                    this.dictHash = dictHash;
+                }
+            }
+        }
+        return dictHash;
+    }
+
+    /**
+     * Returns roughly how many bytes the dictionary and its hash (once built) take.
+     */
+    public long getMemoryFootprint() {
+        PrefixHash dictHash = this.dictHash;
+        return dictLen + (dictHash != null ? dictHash.getMemoryFootprint() : 0);
+    }
+
+    int getDictionaryLength() {
+        return dictLen;
+    }
     
     public void pack(ByteBuffer rawBytes, SubstringPacker.Consumer consumer, Object consumerContext) {
-        PrefixHash hash = new PrefixHash(rawBytes, false);
+        pack(rawBytes, new PrefixHash(), consumer, consumerContext);
+    }
+
+    /**
+     * Packs rawBytes using the caller supplied hash as scratch space.  The hash
+     * is reset to rawBytes, so a single PrefixHash can be reused across calls
+     * (but not across threads) to avoid reallocating it for every document.
+     */
+    public void pack(ByteBuffer rawBytes, PrefixHash hash, SubstringPacker.Consumer consumer, Object consumerContext) {
+        pack(rawBytes, hash, CompressionLevel.Max, consumer, consumerContext);
+    }
+
+    /**
+     * Packs rawBytes at the specified level.  CompressionLevel.Max produces the
+     * same output as the other pack methods.
+     */
+    public void pack(ByteBuffer rawBytes, PrefixHash hash, CompressionLevel level, SubstringPacker.Consumer consumer, Object consumerContext) {
+        hash.reset(rawBytes);
+        final PrefixHash dictHash = getDictionaryHash();
+        if (!level.isLazy()) {
+            packGreedy(rawBytes, dictHash, hash, level, consumer, consumerContext);
+            return;
+        }
+
+        final int maxChainDepth = level.getMaxChainDepth();
+        final int niceLength = level.getNiceLength();
 
         int previousMatchIndex = 0;
         int previousMatchLength = 0;
@@ -49,11 +122,11 @@ public class SubstringPacker {
             int bestMatchLength = 0;
             
             if (curr + PrefixHash.PrefixLength - 1 < count) {
-                long match = dictHash.getBestMatch(curr, rawBytes);
+                long match = dictHash.getBestMatch(curr, rawBytes, maxChainDepth, niceLength);
                 bestMatchIndex = (int)(match >> 32);
                 bestMatchLength = (int) match;
 
-                match = hash.getBestMatch(curr, rawBytes);
+                match = hash.getBestMatch(curr, rawBytes, maxChainDepth, niceLength);
                 int tempbestMatchIndex = (int)(match>> 32);
                 int tempbestMatchLength = (int)match;
 
@@ -105,4 +178,56 @@ public class SubstringPacker {
         consumer.endEncoding(consumerContext);
     }
 
+    /**
+     * Takes the best match at each position without lazy evaluation.  Runs of
+     * positions without a match are stepped over progressively faster according
+     * to the level's skip trigger, and are emitted as literals.
+     */
+    private void packGreedy(ByteBuffer rawBytes, PrefixHash dictHash, PrefixHash hash, CompressionLevel level, SubstringPacker.Consumer consumer, Object consumerContext) {
+        final int maxChainDepth = level.getMaxChainDepth();
+        final int niceLength = level.getNiceLength();
+        final int skipTrigger = level.getSkipTrigger();
+
+        int initialPosition = rawBytes.position();
+        int count = rawBytes.remaining();
+        int misses = 0;
+        int curr = 0;
+        while (curr < count) {
+            int bestMatchIndex = 0;
+            int bestMatchLength = 0;
+
+            if (curr + PrefixHash.PrefixLength - 1 < count) {
+                long match = dictHash.getBestMatch(curr, rawBytes, maxChainDepth, niceLength);
+                bestMatchIndex = (int)(match >> 32);
+                bestMatchLength = (int) match;
+
+                match = hash.getBestMatch(curr, rawBytes, maxChainDepth, niceLength);
+                if ((int)match >= bestMatchLength) {
+                    bestMatchIndex = (int)(match >> 32) + dictLen;
+                    bestMatchLength = (int)match;
+                }
+                hash.put(curr);
+            }
+
+            if (bestMatchLength >= MinimumMatchLength) {
+                consumer.encodeSubstring(-(curr + dictLen - bestMatchIndex), bestMatchLength, consumerContext);
+
+                int endMatch = curr + bestMatchLength;
+                for (curr++; curr < endMatch && curr + PrefixHash.PrefixLength < count; curr++) {
+                    hash.put(curr);
+                }
+                curr = endMatch;
+                misses = 0;
+            }
+            else {
+                int step = skipTrigger > 0 ? Math.min(1 + (misses++ >> skipTrigger), MaxSkip) : 1;
+                for (int end = Math.min(curr + step, count); curr < end; curr++) {
+                    consumer.encodeLiteral(((int)rawBytes.get(curr)) & 0xff, consumerContext);
+                }
+            }
+        }
+        rawBytes.position(initialPosition + count);
+        consumer.endEncoding(consumerContext);
+    }
+
 }
@@ -15,21 +15,46 @@
  */
 package org.toubassi.femtozip.substring;
 
-import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
-
-import java.io.ByteArrayOutputStream;
-
+/**
+ * Rebuilds a document from the literals and matches of SubstringPacker.
+ * Matches are copied in bulk, straight within the backing array of bytesOut
+ * when it has one, with a single bounds check per match.
+ */
 public class SubstringUnpacker implements SubstringPacker.Consumer {
     private ByteBuffer dictionary;
-    private final ByteBuffer bytesOut;
+    private ByteBuffer bytesOut;
+    // Offsets are relative to the document, which starts at bytesOut's initial position
+    private int start;
+
+    // Views for bulk copies when the buffers have no accessible array
+    private ByteBuffer dictionaryView;
+    private ByteBuffer outView;
+
+    private static final ByteBuffer NoDictionary = ByteBuffer.allocate(0);
 
     public SubstringUnpacker(ByteBuffer dictionary, ByteBuffer bytesOut) {
-        this.dictionary = dictionary == null ? ByteBuffer.allocate(0) : dictionary;
-        this.bytesOut = bytesOut;
+        reset(dictionary, bytesOut);
+    }
+
+    /**
+     * Starts a new document against another dictionary, so one unpacker can
+     * serve several models.  Passing nulls drops the references to both buffers.
+     */
+    public void reset(ByteBuffer dictionary, ByteBuffer bytesOut) {
+        this.dictionary = dictionary == null ? NoDictionary : dictionary;
+        this.dictionaryView = null;
+        reset(bytesOut);
     }
     
+    public void reset(ByteBuffer bytesOut) {
+        this.bytesOut = bytesOut;
+        this.start = bytesOut == null ? 0 : bytesOut.position();
+        this.outView = bytesOut == null || bytesOut.hasArray() ? null : bytesOut.duplicate();
+    }
+
     public void encodeLiteral(int aByte, Object context) {
         bytesOut.put((byte)aByte);
     }
@@ -37,30 +62,69 @@ public class SubstringUnpacker implements SubstringPacker.Consumer {
     public void encodeSubstring(int offset, int length, Object context) {
         int dictLength = dictionary.remaining();
         int currentIndex = bytesOut.position();
+        int distance = -offset;
+        int documentLength = currentIndex - start;
 
-        if (currentIndex + offset < 0) {
-            int startDict = currentIndex + offset + dictLength;
-            int endDict = startDict + length;
-            int end = 0;
-            
-            if (endDict > dictLength) {
-                end = endDict - dictLength;
-                endDict = dictLength;
-            }
-            for (int i = startDict; i < endDict; i++) {
-                bytesOut.put(dictionary.get(i));
-            }
-            
-            if (end > 0) {
-                for (int i = 0; i < end; i++) {
-                    bytesOut.put(bytesOut.get(i));
-                }
-            }
+        if (distance < 1 || distance > documentLength + dictLength) {
+            throw new IllegalArgumentException("Offset " + offset + " out of range at " + documentLength + " with a dictionary of " + dictLength);
+        }
+        if (length > bytesOut.remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        if (distance > documentLength) {
+            // The match starts in the dictionary, and may run on into the document
+            int startDict = dictLength - (distance - documentLength);
+            int fromDictionary = Math.min(length, dictLength - startDict);
+            copyFromDictionary(startDict, currentIndex, fromDictionary);
+            copy(start, currentIndex + fromDictionary, length - fromDictionary);
+        }
+        else {
+            copy(currentIndex - distance, currentIndex, length);
+        }
+        bytesOut.position(currentIndex + length);
+    }
+
+    private void copyFromDictionary(int from, int to, int length) {
+        if (dictionary.hasArray() && bytesOut.hasArray()) {
+            System.arraycopy(dictionary.array(), dictionary.arrayOffset() + from, bytesOut.array(), bytesOut.arrayOffset() + to, length);
         }
         else {
-            for (int i = currentIndex + offset, count = currentIndex + offset + length; i < count; i++) {
-                bytesOut.put(bytesOut.get(i));
+            if (dictionaryView == null) {
+                dictionaryView = dictionary.duplicate();
             }
+            dictionaryView.limit(from + length);
+            dictionaryView.position(from);
+            bytesOut.position(to);
+            bytesOut.put(dictionaryView);
+        }
+    }
+
+    /**
+     * Copies length bytes within bytesOut from index from to index to, where
+     * from is before to.  When the ranges overlap the bytes in between repeat,
+     * so the copy is done in steps that double the repeated pattern each time.
+     */
+    private void copy(int from, int to, int length) {
+        int copied = 0;
+        while (copied < length) {
+            int n = Math.min(to + copied - from, length - copied);
+            copyNonOverlapping(from, to + copied, n);
+            copied += n;
+        }
+    }
+
+    private void copyNonOverlapping(int from, int to, int length) {
+        if (outView == null) {
+            byte[] array = bytesOut.array();
+            int arrayOffset = bytesOut.arrayOffset();
+            System.arraycopy(array, arrayOffset + from, array, arrayOffset + to, length);
+        }
+        else {
+            outView.limit(from + length);
+            outView.position(from);
+            bytesOut.position(to);
+            bytesOut.put(outView);
         }
     }
     
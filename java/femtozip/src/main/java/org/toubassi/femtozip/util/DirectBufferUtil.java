@@ -0,0 +1,78 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees direct and mapped buffers without waiting for the garbage collector,
+ * via sun.misc.Unsafe.invokeCleaner on Java 9 and later, or the buffer's
+ * cleaner on Java 8.
+ */
+public class DirectBufferUtil {
+
+    private static final Object Unsafe;
+    private static final Method InvokeCleaner;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            // Java 8, see free
+            invokeCleaner = null;
+        }
+        Unsafe = unsafe;
+        InvokeCleaner = invokeCleaner;
+    }
+
+    /**
+     * Frees the memory of buffer, which must be a direct or mapped buffer
+     * created by ByteBuffer.allocateDirect or FileChannel.map (not a slice or
+     * duplicate of one).  Nothing may use the buffer, or any view of it,
+     * afterwards.
+     * @return false if the memory couldn't be freed, and is left to the garbage collector
+     */
+    public static boolean free(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return false;
+        }
+        try {
+            if (InvokeCleaner != null) {
+                InvokeCleaner.invoke(Unsafe, buffer);
+            }
+            else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner == null) {
+                    return false;
+                }
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -18,6 +18,10 @@ package org.toubassi.femtozip.util;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 
 public class StreamUtil {
 
@@ -43,4 +47,72 @@ public class StreamUtil {
         }
         return bytesOut.toByteArray();
     }
+
+    /**
+     * Reads count big endian ints into dest, in the same format as
+     * DataOutputStream.writeInt, but converting a block at a time.
+     */
+    public static void readInts(InputStream in, int[] dest, int count) throws IOException {
+        byte[] buf = new byte[Math.min(8192, count * 4)];
+        IntBuffer ints = ByteBuffer.wrap(buf).asIntBuffer();
+        for (int offset = 0; offset < count; ) {
+            int n = Math.min(buf.length / 4, count - offset);
+            if (readBytes(in, buf, n * 4) != n * 4) {
+                throw new IOException("Unexpected end of stream reading " + count + " ints");
+            }
+            ints.clear();
+            ints.get(dest, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Writes count ints from src as big endian, readable by readInts or
+     * DataInputStream.readInt.
+     */
+    public static void writeInts(OutputStream out, int[] src, int count) throws IOException {
+        byte[] buf = new byte[Math.min(8192, count * 4)];
+        IntBuffer ints = ByteBuffer.wrap(buf).asIntBuffer();
+        for (int offset = 0; offset < count; ) {
+            int n = Math.min(buf.length / 4, count - offset);
+            ints.clear();
+            ints.put(src, offset, n);
+            out.write(buf, 0, n * 4);
+            offset += n;
+        }
+    }
+
+    /**
+     * Reads count big endian chars into dest, in the same format as
+     * DataOutputStream.writeChar, but converting a block at a time.
+     */
+    public static void readChars(InputStream in, char[] dest, int count) throws IOException {
+        byte[] buf = new byte[Math.min(8192, count * 2)];
+        CharBuffer chars = ByteBuffer.wrap(buf).asCharBuffer();
+        for (int offset = 0; offset < count; ) {
+            int n = Math.min(buf.length / 2, count - offset);
+            if (readBytes(in, buf, n * 2) != n * 2) {
+                throw new IOException("Unexpected end of stream reading " + count + " chars");
+            }
+            chars.clear();
+            chars.get(dest, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Writes count chars from src as big endian, readable by readChars or
+     * DataInputStream.readChar.
+     */
+    public static void writeChars(OutputStream out, char[] src, int count) throws IOException {
+        byte[] buf = new byte[Math.min(8192, count * 2)];
+        CharBuffer chars = ByteBuffer.wrap(buf).asCharBuffer();
+        for (int offset = 0; offset < count; ) {
+            int n = Math.min(buf.length / 2, count - offset);
+            chars.clear();
+            chars.put(src, offset, n);
+            out.write(buf, 0, n * 2);
+            offset += n;
+        }
+    }
 }
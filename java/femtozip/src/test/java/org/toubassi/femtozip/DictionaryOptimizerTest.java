@@ -51,6 +51,54 @@ public class DictionaryOptimizerTest {
         Assert.assertEquals("000011111", d);
     }
 
+    @Test
+    public void testSubstringsScoredByDocumentCount() throws IOException {
+        DictionaryOptimizer optimizer = new DictionaryOptimizer(new ArrayDocumentList(
+                "garrick garrick garrick toubassi", "toubassi", "", "http://espn.com", "http://google.com"));
+        optimizer.optimize(64*1024);
+
+        // Occurring in two documents beats occurring three times in one
+        int count = optimizer.getSubstringCount();
+        assertEquals("toubassi", new String(optimizer.getSubstringBytes(count - 1), "UTF-8"));
+        assertEquals(125, optimizer.getSubstringScore(count - 1));
+
+        // No substring spans the boundary between two documents
+        for (int i = 0; i < count; i++) {
+            String substring = new String(optimizer.getSubstringBytes(i), "UTF-8");
+            Assert.assertFalse(substring, substring.contains("comhttp") || substring.contains("ssihttp"));
+        }
+    }
+
+    @Test
+    public void testRepeatedOptimizeMatchesFresh() throws IOException {
+        DictionaryOptimizer reused = new DictionaryOptimizer(new ArrayDocumentList(TestUtil.generateJsonDocs(300, new java.util.Random(42))));
+        for (int desiredLength : new int[] {4096, 10, 500, 64*1024, 0, 2000}) {
+            ByteBuffer fresh = new DictionaryOptimizer(new ArrayDocumentList(TestUtil.generateJsonDocs(300, new java.util.Random(42)))).optimize(desiredLength);
+            Assert.assertEquals(getString(fresh), getString(reused.optimize(desiredLength)));
+        }
+    }
+
+    @Test
+    public void testLowMemoryMatches() throws IOException {
+        String[] documents = new String[200];
+        java.util.Random random = new java.util.Random(99);
+        for (int i = 0; i < documents.length; i++) {
+            StringBuilder document = new StringBuilder();
+            for (int j = random.nextInt(40); j > 0; j--) {
+                document.append(random.nextInt(4) == 0 ? "http://" : "").append((char)('a' + random.nextInt(5)));
+            }
+            documents[i] = document.toString();
+        }
+
+        DictionaryOptimizer optimizer = new DictionaryOptimizer(new ArrayDocumentList(documents));
+        DictionaryOptimizer lowMemoryOptimizer = new DictionaryOptimizer(new ArrayDocumentList(documents));
+        lowMemoryOptimizer.setLowMemory(true);
+
+        Assert.assertTrue(lowMemoryOptimizer.estimatePeakMemory() < optimizer.estimatePeakMemory());
+        Assert.assertEquals(getString(optimizer.optimize(1024)), getString(lowMemoryOptimizer.optimize(1024)));
+        Assert.assertEquals(getString(optimizer.optimize(100)), getString(lowMemoryOptimizer.optimize(100)));
+    }
+
     @Test
     public void testNoCrashWhenEmptyDocuments() throws IOException {
         DictionaryOptimizer optimizer = new DictionaryOptimizer(new ArrayDocumentList("", "", ""));
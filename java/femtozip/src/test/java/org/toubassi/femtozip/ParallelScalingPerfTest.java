@@ -0,0 +1,60 @@
+package org.toubassi.femtozip;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reports batch compression and decompression throughput on 1 to N cores.
+ */
+@Ignore
+public class ParallelScalingPerfTest {
+
+    @Test
+    public void testScaling() throws IOException {
+        Random random = new Random(1234);
+        CompressionModel model = CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.generateJsonDocs(1000, random)));
+
+        ArrayList<ByteBuffer> docs = TestUtil.generateJsonDocs(200000, random);
+        ArrayDocumentList documents = new ArrayDocumentList(docs);
+        long rawBytes = 0;
+        for (ByteBuffer doc : docs) {
+            rawBytes += doc.remaining();
+        }
+
+        ByteBuffer arena = ByteBuffer.allocate((int)rawBytes * 2);
+        ByteBuffer out = ByteBuffer.allocate((int)rawBytes + 1024);
+        int[] offsets = new int[docs.size() + 1];
+        int[] outOffsets = new int[docs.size() + 1];
+
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads++) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                // Warm up
+                model.compressAll(documents, arena, offsets, pool);
+
+                long start = System.nanoTime();
+                model.compressAll(documents, arena, offsets, pool);
+                long compressNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                model.decompressAll(arena, offsets, docs.size(), out, outOffsets, pool);
+                long decompressNanos = System.nanoTime() - start;
+
+                System.out.println("threads:" + threads
+                        + " compress MB/s:" + (rawBytes * 1000 / compressNanos)
+                        + " decompress MB/s:" + (rawBytes * 1000 / decompressNanos));
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+    }
+}
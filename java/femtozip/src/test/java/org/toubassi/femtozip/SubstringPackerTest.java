@@ -18,10 +18,13 @@ package org.toubassi.femtozip;
 import java.io.UnsupportedEncodingException;
 
 import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.toubassi.femtozip.models.VerboseStringCompressionModel;
+import org.toubassi.femtozip.substring.SubstringPacker;
+import org.toubassi.femtozip.substring.SubstringUnpacker;
 
 import static org.toubassi.femtozip.util.FileUtil.getString;
 
@@ -98,6 +101,47 @@ public class SubstringPackerTest {
         
     }
 
+
+    @Test
+    public void testUnpackIntoAnyBuffer() {
+        // Long dictionary matches, matches running from the dictionary into
+        // the document, and overlapping run length matches
+        byte[] dictionary = "the quick brown fox jumps over the lazy dog ".getBytes();
+        StringBuilder document = new StringBuilder("over the lazy dog and ");
+        Random random = new Random(1234567);
+        for (int i = 0; i < 200; i++) {
+            int kind = random.nextInt(3);
+            if (kind == 0) {
+                for (int j = random.nextInt(300); j >= 0; j--) {
+                    document.append('z');
+                }
+            }
+            else if (kind == 1) {
+                document.append("the quick brown fox ");
+            }
+            else {
+                document.append((char)('a' + random.nextInt(26)));
+            }
+        }
+        byte[] raw = document.toString().getBytes();
+
+        ByteBuffer[] dictionaries = {ByteBuffer.wrap(dictionary), ByteBuffer.wrap(dictionary).asReadOnlyBuffer()};
+        ByteBuffer[] outputs = {ByteBuffer.allocate(raw.length + 10), ByteBuffer.allocateDirect(raw.length + 10)};
+        for (ByteBuffer dict : dictionaries) {
+            for (ByteBuffer out : outputs) {
+                out.clear();
+                out.position(7);
+                SubstringPacker packer = new SubstringPacker(dict);
+                packer.pack(ByteBuffer.wrap(raw), new SubstringUnpacker(dict, out), null);
+                Assert.assertEquals(7 + raw.length, out.position());
+
+                byte[] unpacked = new byte[raw.length];
+                out.position(7);
+                out.get(unpacked);
+                Assert.assertArrayEquals(raw, unpacked);
+            }
+        }
+    }
     
     private String pack(String s) {
         return pack(s, null);
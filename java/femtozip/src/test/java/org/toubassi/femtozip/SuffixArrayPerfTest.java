@@ -0,0 +1,39 @@
+package org.toubassi.femtozip;
+
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.toubassi.femtozip.dictionary.SuffixArray;
+
+/**
+ * Reports suffix array construction time for each algorithm across input
+ * sizes and repetitiveness (see SuffixArrayTest.sample).
+ */
+@Ignore
+public class SuffixArrayPerfTest {
+
+    @Test
+    public void testAlgorithms() {
+        Random random = new Random(1234);
+        String[] kinds = { "random", "json", "single byte" };
+        for (int length = 1 << 16; length <= 1 << 24; length <<= 2) {
+            for (int repetitiveness = 0; repetitiveness < kinds.length; repetitiveness++) {
+                byte[] bytes = SuffixArrayTest.sample(length, repetitiveness, random);
+                StringBuilder line = new StringBuilder(length + " bytes, " + kinds[repetitiveness] + ":");
+                for (SuffixArray.Algorithm algorithm : SuffixArray.Algorithm.values()) {
+                    // Warm up, then time the best of 3
+                    SuffixArray.computeSuffixArray(bytes, algorithm);
+                    long best = Long.MAX_VALUE;
+                    for (int i = 0; i < 3; i++) {
+                        long start = System.nanoTime();
+                        SuffixArray.computeSuffixArray(bytes, algorithm);
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    line.append(" ").append(algorithm).append(" ").append(best / 1000000).append("ms");
+                }
+                System.out.println(line);
+            }
+        }
+    }
+}
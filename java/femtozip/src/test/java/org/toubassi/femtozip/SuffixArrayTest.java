@@ -0,0 +1,94 @@
+package org.toubassi.femtozip;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.dictionary.SuffixArray;
+
+public class SuffixArrayTest {
+
+    /**
+     * Returns sample input of the specified length.  repetitiveness 0 is
+     * random bytes, 1 a few JSON records repeated with small changes, and 2
+     * a single byte repeated.
+     */
+    static byte[] sample(int length, int repetitiveness, Random random) {
+        byte[] bytes = new byte[length];
+        if (repetitiveness == 0) {
+            random.nextBytes(bytes);
+        }
+        else if (repetitiveness == 1) {
+            for (int i = 0; i < length; ) {
+                ByteBuffer record = TestUtil.generateJsonDocs(1, random).get(0);
+                int n = Math.min(record.remaining(), length - i);
+                record.get(bytes, i, n);
+                i += n;
+            }
+        }
+        else {
+            Arrays.fill(bytes, (byte)'a');
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testAlgorithmsAgree() {
+        Random random = new Random(1234567);
+        for (int repetitiveness = 0; repetitiveness <= 2; repetitiveness++) {
+            for (int length = 1; length < 3000; length += 1 + length / 3) {
+                byte[] bytes = sample(length, repetitiveness, random);
+                int[] expected = SuffixArray.computeSuffixArray(bytes, SuffixArray.Algorithm.PrefixDoubling);
+                int[] actual = SuffixArray.computeSuffixArray(bytes, SuffixArray.Algorithm.SAIS);
+                Assert.assertArrayEquals("length " + length + " repetitiveness " + repetitiveness, expected, actual);
+                Assert.assertArrayEquals(SuffixArray.computeLCP(bytes, expected), SuffixArray.computeLCP(bytes, actual));
+            }
+        }
+
+        // Small alphabets give the most recursion
+        for (int trial = 0; trial < 200; trial++) {
+            byte[] bytes = new byte[1 + random.nextInt(200)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte)random.nextInt(3);
+            }
+            Assert.assertArrayEquals(SuffixArray.computeSuffixArray(bytes, SuffixArray.Algorithm.PrefixDoubling),
+                    SuffixArray.computeSuffixArray(bytes, SuffixArray.Algorithm.SAIS));
+        }
+    }
+
+    @Test
+    public void testEmptyInput() {
+        // Just the empty suffix
+        Assert.assertArrayEquals(new int[] { 0 }, SuffixArray.computeSuffixArraySAIS(new byte[0]));
+        int[] suffixArray = SuffixArray.computeSuffixArray(new byte[0]);
+        Assert.assertArrayEquals(new int[] { 0 }, suffixArray);
+        Assert.assertArrayEquals(new int[] { 0 }, SuffixArray.computeLCP(new byte[0], suffixArray));
+    }
+
+    @Test
+    public void testLCP() {
+        Random random = new Random(7654321);
+        for (int repetitiveness = 0; repetitiveness <= 2; repetitiveness++) {
+            for (int length = 1; length < 2000; length += 1 + length / 3) {
+                byte[] bytes = sample(length, repetitiveness, random);
+                int[] suffixArray = SuffixArray.computeSuffixArray(bytes);
+                int[] copy = suffixArray.clone();
+
+                int[] lcp = SuffixArray.computeLCPLowMemory(bytes, suffixArray);
+                Assert.assertArrayEquals(SuffixArray.computeLCP(bytes, suffixArray), lcp);
+
+                Assert.assertArrayEquals(copy, suffixArray);
+                Assert.assertEquals(0, lcp[0]);
+                for (int i = 1; i < lcp.length; i++) {
+                    int a = suffixArray[i - 1], b = suffixArray[i], common = 0;
+                    while (a + common < length && b + common < length && bytes[a + common] == bytes[b + common]) {
+                        common++;
+                    }
+                    Assert.assertEquals("length " + length + " index " + i, common, lcp[i]);
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package org.toubassi.femtozip;
 
+import org.toubassi.femtozip.models.CompressionModelBase;
 import org.toubassi.femtozip.models.CompressionModelVariant;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Random;
 
 public class TestUtil {
 
@@ -36,6 +42,22 @@ public class TestUtil {
         return allCombinations;
     }
 
+    /**
+     * Returns count small JSON records with a few repeated field values, the
+     * same for the same random seed.
+     */
+    public static ArrayList<ByteBuffer> generateJsonDocs(int count, Random random) {
+        String[] names = { "alice", "bob", "carol", "dave", "erin", "frank" };
+        String[] cities = { "Berlin", "Paris", "New York", "Tokyo", "Sydney" };
+        ArrayList<ByteBuffer> docs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String doc = "{\"id\":" + random.nextInt(1000000) + ",\"name\":\"" + names[random.nextInt(names.length)]
+                    + "\",\"city\":\"" + cities[random.nextInt(cities.length)] + "\",\"guests\":" + random.nextInt(5) + "}";
+            docs.add(ByteBuffer.wrap(doc.getBytes(Charset.forName("UTF-8"))));
+        }
+        return docs;
+    }
+
     public static ArrayList<ByteBuffer> getTrainingDocs() {
         ArrayList<ByteBuffer> trainingDocs = new ArrayList<>();
         for (int i = 0; i < 10; i++) {
@@ -44,4 +66,42 @@ public class TestUtil {
         return trainingDocs;
     }
 
+    /**
+     * Returns length random lower case letters, the same for the same seed.
+     */
+    public static ByteBuffer generateDictionary(long seed, int length) {
+        Random random = new Random(seed);
+        byte[] dictionary = new byte[length];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = (byte)('a' + random.nextInt(26));
+        }
+        return ByteBuffer.wrap(dictionary);
+    }
+
+    public static FemtoZipCompressionModel buildFemtoZipModel() throws IOException {
+        return (FemtoZipCompressionModel)CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(getTrainingDocs()));
+    }
+
+    public static FemtoZipCompressionModel buildFemtoZipModel(ByteBuffer dictionary) throws IOException {
+        return (FemtoZipCompressionModel)CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(getTrainingDocs()), dictionary);
+    }
+
+    /**
+     * Saves model to a temporary file, deleted when the JVM exits, returning its path.
+     */
+    public static String saveModel(CompressionModel model) throws IOException {
+        File file = File.createTempFile("femtozip", ".fzm");
+        file.deleteOnExit();
+        new CompressionModelBase().save(model, file.getPath());
+        return file.getPath();
+    }
+
+    /**
+     * Compresses doc with model, leaving doc's position alone.
+     */
+    public static ByteBuffer compress(FemtoZipCompressionModel model, ByteBuffer doc) {
+        ByteBuffer compressed = ByteBuffer.allocate(doc.remaining() * 2 + 64);
+        model.compress(doc.duplicate(), compressed);
+        return compressed;
+    }
 }
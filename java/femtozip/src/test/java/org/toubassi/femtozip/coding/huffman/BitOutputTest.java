@@ -0,0 +1,63 @@
+package org.toubassi.femtozip.coding.huffman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitOutputTest {
+
+    @Test
+    public void testWriteBitsMatchesWriteBit() throws IOException {
+        Random random = new Random(1234567);
+        int[] values = new int[5000];
+        int[] lengths = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            lengths[i] = random.nextInt(33);
+            values[i] = random.nextInt();
+        }
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BitOutputOutputStreamImpl bitwise = new BitOutputOutputStreamImpl(expected);
+        for (int i = 0; i < values.length; i++) {
+            for (int j = 0; j < lengths[i]; j++) {
+                bitwise.writeBit((values[i] >>> j) & 1);
+            }
+        }
+        bitwise.close();
+        byte[] expectedBytes = expected.toByteArray();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BitOutputOutputStreamImpl streamOut = new BitOutputOutputStreamImpl(stream);
+        for (int i = 0; i < values.length; i++) {
+            streamOut.writeBits(values[i], lengths[i]);
+        }
+        streamOut.close();
+        Assert.assertArrayEquals(expectedBytes, stream.toByteArray());
+        Assert.assertEquals(expectedBytes.length, streamOut.getWrittenBytes());
+
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(expectedBytes.length + 10), ByteBuffer.allocateDirect(expectedBytes.length + 10)}) {
+                buffer.order(order);
+                buffer.position(3);
+                BitOutputByteBufferImpl bufferOut = new BitOutputByteBufferImpl(buffer);
+                for (int i = 0; i < values.length; i++) {
+                    bufferOut.writeBits(values[i], lengths[i]);
+                }
+                bufferOut.close();
+                Assert.assertEquals(expectedBytes.length, bufferOut.getWrittenBytes());
+                Assert.assertEquals(3 + expectedBytes.length, buffer.position());
+
+                byte[] written = new byte[expectedBytes.length];
+                buffer.position(3);
+                buffer.get(written);
+                Assert.assertTrue(Arrays.equals(expectedBytes, written));
+            }
+        }
+    }
+}
@@ -17,15 +17,20 @@ package org.toubassi.femtozip.coding.huffman;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.PriorityQueue;
 import java.util.Random;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.toubassi.femtozip.models.femtozip.FemtoZipHuffmanModel;
 
 public class HuffmanModelTest {
     
@@ -49,7 +54,7 @@ public class HuffmanModelTest {
         testDataWithModel(data, model);
     }
 
-    private void testDataWithModel(int[] data, FrequencyHuffmanModel model) throws IOException {
+    private void testDataWithModel(int[] data, HuffmanModel model) throws IOException {
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
         HuffmanEncoder encoder = new HuffmanEncoder(model, new BitOutputOutputStreamImpl(bytesOut));
         
@@ -70,6 +75,20 @@ public class HuffmanModelTest {
         for (int i = 0, count = data.length; i < count; i++) {
             Assert.assertEquals(data[i], decompressed.get(i).intValue());
         }
+
+        // Decode straight from ByteBuffers of either kind and byte order, not starting at 0
+        ByteBuffer heap = ByteBuffer.allocate(compressedBytes.length + 3);
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressedBytes.length + 3).order(ByteOrder.LITTLE_ENDIAN);
+        for (ByteBuffer buffer : new ByteBuffer[] {heap, direct}) {
+            buffer.position(3);
+            buffer.put(compressedBytes);
+            buffer.position(3);
+            decoder = new HuffmanDecoder(model, buffer);
+            for (int i = 0, count = data.length; i < count; i++) {
+                Assert.assertEquals(data[i], decoder.decodeSymbol());
+            }
+            Assert.assertEquals(-1, decoder.decodeSymbol());
+        }
     }
     
     @Test
@@ -93,4 +112,192 @@ public class HuffmanModelTest {
         }
     }
 
+    @Test
+    public void testLongCodewords() throws IOException {
+        // Fibonacci weights give a maximally skewed Huffman tree, deeper than
+        // MaxCodeLength, so the lengths come from package-merge
+        int[] histogram = new int[25];
+        histogram[0] = histogram[1] = 1;
+        for (int i = 2; i < histogram.length; i++) {
+            histogram[i] = histogram[i - 1] + histogram[i - 2];
+        }
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel(histogram, true);
+        int[] lengths = model.getCodeLengths();
+        long kraftSum = 0;
+        for (int length : lengths) {
+            Assert.assertTrue(length <= FrequencyHuffmanModel.MaxCodeLength);
+            kraftSum += 1L << (FrequencyHuffmanModel.MaxCodeLength - length);
+        }
+        // Package-merge codes are complete
+        Assert.assertEquals(1L << FrequencyHuffmanModel.MaxCodeLength, kraftSum);
+
+        Random random = new Random(1234567);
+        int[] data = new int[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(histogram.length - 1);
+        }
+        testDataWithModel(data, model);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Random random = new Random(1234567);
+        int[] histogram = new int[513];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = random.nextInt(3) == 0 ? 0 : random.nextInt(1000);
+        }
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel(histogram, false);
+
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        model.save(new DataOutputStream(bytesOut));
+        // A count, a flag, and a byte per symbol
+        Assert.assertEquals(4 + 1 + histogram.length, bytesOut.size());
+
+        FrequencyHuffmanModel loaded = new FrequencyHuffmanModel(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())), FrequencyHuffmanModel.CodeLengthFormat);
+        Assert.assertArrayEquals(model.getCodeLengths(), loaded.getCodeLengths());
+        for (int i = 0; i < histogram.length; i++) {
+            Assert.assertEquals(model.encode(i), loaded.encode(i));
+        }
+    }
+
+    @Test
+    public void testLoadNonCanonicalCodewordFormat() throws IOException {
+        // The codewords 1, 00 and 01 (written first bit first), which aren't canonical
+        int[][] codewords = {{1, 1}, {0, 2}, {2, 2}};
+        ByteArrayOutputStream legacyBytes = new ByteArrayOutputStream();
+        DataOutputStream legacyOut = new DataOutputStream(legacyBytes);
+        legacyOut.writeInt(codewords.length);
+        for (int i = 0; i < codewords.length; i++) {
+            legacyOut.writeBoolean(true);
+            legacyOut.writeInt(codewords[i][0]);
+            legacyOut.writeInt(codewords[i][1]);
+            legacyOut.writeInt(i);
+        }
+        FrequencyHuffmanModel legacy = new FrequencyHuffmanModel(new DataInputStream(new ByteArrayInputStream(legacyBytes.toByteArray())));
+
+        // Saving keeps the codewords, so data compressed with them still decodes
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        legacy.save(new DataOutputStream(bytesOut));
+        FrequencyHuffmanModel loaded = new FrequencyHuffmanModel(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())), FrequencyHuffmanModel.CodeLengthFormat);
+        for (int i = 0; i < codewords.length; i++) {
+            Assert.assertEquals(codewords[i][0], loaded.encode(i).value);
+            Assert.assertEquals(codewords[i][1], loaded.encode(i).bitLength);
+        }
+        testDataWithModel(new int[] {0, 1, 0, 0, 1, 1, 0}, loaded);
+    }
+
+    @Test
+    public void testPackageMergeIsOptimal() {
+        // When the limit doesn't bind, package-merge costs the same as an
+        // optimal Huffman code, whose cost is the sum of all merged weights
+        Random random = new Random(1234567);
+        for (int trial = 0; trial < 50; trial++) {
+            int[] histogram = new int[2 + random.nextInt(300)];
+            PriorityQueue<Long> queue = new PriorityQueue<Long>();
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = 1 + random.nextInt(1000);
+                queue.add((long)histogram[i]);
+            }
+            long optimalCost = 0;
+            while (queue.size() > 1) {
+                long merged = queue.poll() + queue.poll();
+                optimalCost += merged;
+                queue.add(merged);
+            }
+
+            int[] limited = FrequencyHuffmanModel.computeLimitedCodeLengths(histogram, 30);
+            long limitedCost = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                limitedCost += (long)histogram[i] * limited[i];
+            }
+            Assert.assertEquals(optimalCost, limitedCost);
+        }
+    }
+
+    @Test
+    public void testDefaultMethodsMatchModel() throws IOException {
+        int[] histogram = new int[300];
+        Random random = new Random(1234567);
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = 1 + random.nextInt(1000);
+        }
+        final FrequencyHuffmanModel model = new FrequencyHuffmanModel(histogram, false);
+
+        // Implements only the Codeword methods, as models predating the bit output methods do
+        HuffmanModel codewordsOnly = new HuffmanModel() {
+            public Codeword getCodewordForEOF() {
+                return model.getCodewordForEOF();
+            }
+            public Codeword encode(int symbol) {
+                return model.encode(symbol);
+            }
+            public Codeword decode(int bits) {
+                return model.decode(bits);
+            }
+            public boolean isEOF(Codeword codeword) {
+                return model.isEOF(codeword);
+            }
+        };
+
+        for (int bits = 0; bits < 1 << 16; bits++) {
+            Assert.assertEquals(model.decodeEntry(bits), codewordsOnly.decodeEntry(bits));
+        }
+
+        int[] data = new int[2000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(histogram.length - 1);
+        }
+        testDataWithModel(data, codewordsOnly);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testFemtoZipModelAsHuffmanModel() throws IOException {
+        Random random = new Random(1234567);
+        FrequencyHuffmanModel[] codes = new FrequencyHuffmanModel[5];
+        for (int i = 0; i < codes.length; i++) {
+            int[] histogram = new int[i == 0 ? 256 + 256 + 1 : 16];
+            for (int j = 0; j < histogram.length; j++) {
+                histogram[j] = 1 + random.nextInt(100);
+            }
+            codes[i] = new FrequencyHuffmanModel(histogram, false);
+        }
+        FemtoZipHuffmanModel model = new FemtoZipHuffmanModel(codes[0], codes[1], codes[2], codes[3], codes[4]);
+
+        // The same tokens, through the stateless methods and as a symbol stream
+        ByteArrayOutputStream tokenBytes = new ByteArrayOutputStream();
+        BitOutputOutputStreamImpl tokenOut = new BitOutputOutputStreamImpl(tokenBytes);
+        ByteArrayOutputStream symbolBytes = new ByteArrayOutputStream();
+        HuffmanEncoder encoder = new HuffmanEncoder(model.createModel(), new BitOutputOutputStreamImpl(symbolBytes));
+        ArrayList<Integer> symbols = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            if (random.nextBoolean()) {
+                int literal = random.nextInt(256);
+                model.encodeLiteral(literal, tokenOut);
+                symbols.add(literal);
+            }
+            else {
+                int length = 1 + random.nextInt(255);
+                int offset = 1 + random.nextInt(65535);
+                model.encodeMatch(length, offset, tokenOut);
+                symbols.add(256 + length);
+                for (int shift = 0; shift < 16; shift += 4) {
+                    symbols.add((offset >> shift) & 0xf);
+                }
+            }
+        }
+        model.encodeEOF(tokenOut);
+        tokenOut.close();
+        for (int symbol : symbols) {
+            encoder.encodeSymbol(symbol);
+        }
+        encoder.close();
+        Assert.assertArrayEquals(tokenBytes.toByteArray(), symbolBytes.toByteArray());
+
+        HuffmanDecoder decoder = new HuffmanDecoder(model.createModel(), new ByteArrayInputStream(symbolBytes.toByteArray()));
+        for (int symbol : symbols) {
+            Assert.assertEquals(symbol, decoder.decodeSymbol());
+        }
+        Assert.assertEquals(-1, decoder.decodeSymbol());
+    }
 }
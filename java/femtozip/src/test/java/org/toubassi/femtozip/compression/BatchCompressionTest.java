@@ -0,0 +1,103 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+@RunWith(Parameterized.class)
+public class BatchCompressionTest {
+
+    private final CompressionModelVariant variant;
+
+    public BatchCompressionTest(CompressionModelVariant variant) {
+        this.variant = variant;
+    }
+
+    @Parameterized.Parameters()
+    public static Iterable<Object[]> data() {
+        return TestUtil.getActiveCompressionModels();
+    }
+
+    @Test
+    public void testCompressAllMatchesSingleCompress() throws IOException {
+        CompressionModel model = CompressionModelBase.buildModel(variant, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+
+        ArrayList<ByteBuffer> docs = new ArrayList<>();
+        int totalLength = 0;
+        for (int i = 0; i < 20; i++) {
+            ByteBuffer doc = TestUtil.generateSampleDoc(i * 37 % 300);
+            docs.add(doc);
+            totalLength += doc.remaining();
+        }
+        ArrayDocumentList documents = new ArrayDocumentList(docs);
+
+        ByteBuffer arena = ByteBuffer.allocate(totalLength * 3 + 1000);
+        arena.position(7);
+        int[] offsets = new int[docs.size() + 1];
+        int written = model.compressAll(documents, arena, offsets);
+
+        Assert.assertEquals(7, arena.position());
+        Assert.assertEquals(7 + written, arena.limit());
+        Assert.assertEquals(7, offsets[0]);
+        Assert.assertEquals(arena.limit(), offsets[docs.size()]);
+
+        for (int i = 0; i < docs.size(); i++) {
+            ByteBuffer single = ByteBuffer.allocate(docs.get(i).remaining() * 3 + 100);
+            int length = model.compress(docs.get(i), single);
+            docs.get(i).rewind();
+
+            ByteBuffer batched = arena.duplicate();
+            batched.position(offsets[i]);
+            batched.limit(offsets[i + 1]);
+            Assert.assertEquals(variant.name() + " document " + i, length, batched.remaining());
+            Assert.assertEquals(variant.name() + " document " + i, single, batched);
+        }
+
+        if (variant == CompressionModelVariant.VerboseString) {
+            // A debugging format which can't represent arbitrary bytes such as '<'
+            return;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(totalLength + 100);
+        out.position(3);
+        int[] outOffsets = new int[docs.size() + 1];
+        int decompressed = model.decompressAll(arena, offsets, docs.size(), out, outOffsets);
+        Assert.assertEquals(totalLength, decompressed);
+        Assert.assertEquals(3, out.position());
+
+        for (int i = 0; i < docs.size(); i++) {
+            ByteBuffer doc = out.duplicate();
+            doc.position(outOffsets[i]);
+            doc.limit(outOffsets[i + 1]);
+            Assert.assertEquals(variant.name() + " document " + i, docs.get(i), doc);
+        }
+    }
+
+    @Test
+    public void testCompressRange() throws IOException {
+        CompressionModel model = CompressionModelBase.buildModel(variant, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+        ArrayDocumentList documents = new ArrayDocumentList(TestUtil.getTrainingDocs());
+
+        ByteBuffer whole = ByteBuffer.allocate(10000);
+        int[] wholeOffsets = new int[documents.size() + 1];
+        model.compressAll(documents, whole, wholeOffsets);
+
+        ByteBuffer range = ByteBuffer.allocate(10000);
+        int[] rangeOffsets = new int[4];
+        model.compressAll(documents, 4, 7, range, rangeOffsets);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(wholeOffsets[i + 5] - wholeOffsets[i + 4], rangeOffsets[i + 1] - rangeOffsets[i]);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.substring.CompressionLevel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class CompressionLevelTest {
+
+    @Test
+    public void testAllLevelsRoundTrip() throws IOException {
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for (ByteBuffer record : TestUtil.generateJsonDocs(200, new Random(27))) {
+            text.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+        }
+        ByteBuffer[] docs = { TestUtil.generateSampleDoc(3000), ByteBuffer.wrap(text.toByteArray()), TestUtil.generateSampleDoc(3) };
+
+        for (ByteBuffer doc : docs) {
+            for (CompressionLevel level : CompressionLevel.values()) {
+                ByteBuffer compressed = ByteBuffer.allocate(doc.remaining() * 3 + 16);
+                model.compress(doc, compressed, level);
+                doc.rewind();
+
+                ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+                model.decompress(compressed, decompressed);
+                Assert.assertEquals(level.name(), doc, decompressed);
+            }
+        }
+    }
+
+    @Test
+    public void testMaxIsDefault() throws IOException {
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+        ByteBuffer doc = TestUtil.generateSampleDoc(2000);
+
+        ByteBuffer byDefault = ByteBuffer.allocate(6000);
+        model.compress(doc, byDefault);
+        doc.rewind();
+
+        ByteBuffer atMax = ByteBuffer.allocate(6000);
+        model.compress(doc, atMax, CompressionLevel.Max);
+
+        Assert.assertEquals(byDefault, atMax);
+    }
+
+    @Test
+    public void testLevelIsSaved() throws IOException {
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+        model.setLevel(CompressionLevel.Fast);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        model.save(out);
+        out.close();
+
+        FemtoZipCompressionModel restored = (FemtoZipCompressionModel) CompressionModelBase.loadModel(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertEquals(CompressionLevel.Fast, restored.getLevel());
+    }
+}
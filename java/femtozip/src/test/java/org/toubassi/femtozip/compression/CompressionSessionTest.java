@@ -0,0 +1,114 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class CompressionSessionTest {
+
+    @Test
+    public void testReusedSessionMatchesFreshSession() throws IOException {
+        ArrayList<ByteBuffer> trainingDocs = TestUtil.getTrainingDocs();
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(trainingDocs));
+
+        FemtoZipCompressionModel.Compressor compressor = model.newCompressor();
+        FemtoZipCompressionModel.Decompressor decompressor = model.newDecompressor();
+
+        // Shrink and grow so the pooled hash sees stale entries from larger documents
+        int[] lengths = {2000, 10, 300, 1, 5000, 4, 700, 2000};
+        for (int length : lengths) {
+            ByteBuffer doc = TestUtil.generateSampleDoc(length);
+
+            ByteBuffer reused = ByteBuffer.allocate(length * 3 + 16);
+            compressor.compress(doc, reused);
+            doc.rewind();
+
+            ByteBuffer fresh = ByteBuffer.allocate(length * 3 + 16);
+            model.newCompressor().compress(doc, fresh);
+            doc.rewind();
+
+            Assert.assertEquals("Length " + length, fresh, reused);
+
+            ByteBuffer decompressed = ByteBuffer.allocate(length);
+            decompressor.decompress(reused, decompressed);
+            Assert.assertEquals("Length " + length, doc, decompressed);
+        }
+    }
+
+    @Test
+    public void testStreamCompressMatchesBufferCompress() throws IOException {
+        final FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+        final ByteBuffer inner = TestUtil.generateSampleDoc(3000);
+        final ByteBuffer innerExpected = TestUtil.compress(model, inner);
+
+        for (int length : new int[] {2000, 10, 5000, 300}) {
+            ByteBuffer doc = TestUtil.generateSampleDoc(length);
+            ByteBuffer expected = TestUtil.compress(model, doc);
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            Assert.assertEquals(expected.remaining(), model.compress(doc.duplicate(), streamed));
+            Assert.assertEquals(expected, ByteBuffer.wrap(streamed.toByteArray()));
+
+            // A stream which compresses on the same thread as it is written to
+            final ByteArrayOutputStream nested = new ByteArrayOutputStream();
+            OutputStream compressing = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte)b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    nested.write(b, off, len);
+                    Assert.assertEquals(innerExpected, TestUtil.compress(model, inner));
+                    model.compress(inner.duplicate(), new ByteArrayOutputStream());
+                }
+            };
+            model.compress(doc.duplicate(), compressing);
+            Assert.assertEquals(expected, ByteBuffer.wrap(nested.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testUsedModelsCanBeCollected() throws IOException {
+        ArrayList<ByteBuffer> trainingDocs = TestUtil.getTrainingDocs();
+        ByteBuffer doc = TestUtil.generateSampleDoc(1000);
+
+        ArrayList<WeakReference<FemtoZipCompressionModel>> references = new ArrayList<WeakReference<FemtoZipCompressionModel>>();
+        for (int i = 0; i < 5; i++) {
+            FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(trainingDocs));
+            ByteBuffer compressed = ByteBuffer.allocate(4000);
+            model.compress(doc.duplicate(), compressed);
+            ByteBuffer decompressed = ByteBuffer.allocate(1000);
+            model.decompress(compressed, decompressed);
+            Assert.assertEquals(doc, decompressed);
+            model.close();
+            references.add(new WeakReference<FemtoZipCompressionModel>(model));
+        }
+
+        for (int attempt = 0; attempt < 20 && !allCleared(references); attempt++) {
+            System.gc();
+        }
+        Assert.assertTrue("A closed model is still reachable from this thread", allCleared(references));
+    }
+
+    private static boolean allCleared(ArrayList<WeakReference<FemtoZipCompressionModel>> references) {
+        for (WeakReference<FemtoZipCompressionModel> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -15,8 +15,12 @@
  */
 package org.toubassi.femtozip.compression;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import java.nio.ByteBuffer;
 
@@ -24,10 +28,15 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.toubassi.femtozip.ArrayDocumentList;
 import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.TestUtil;
 import org.toubassi.femtozip.dictionary.DictionaryOptimizer;
 import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
 import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.models.ModelOptimizationOptions;
 import org.toubassi.femtozip.models.VariableIntCompressionModel;
+import org.toubassi.femtozip.models.femtozip.FemtoZipCompressionModelBuilder;
+import org.toubassi.femtozip.models.femtozip.FemtoZipHuffmanModel;
 
 import static org.toubassi.femtozip.util.FileUtil.getString;
 
@@ -111,4 +120,151 @@ public class CompressionTest {
         String decompressedString = getString(decompressed);
         Assert.assertEquals(source, decompressedString);
     }
+
+    @Test
+    public void testSweepDictionarySizes() throws IOException {
+        ArrayDocumentList documentList = getJsonDocuments(200);
+
+        int[] sizes = {64, 256, 1024, 64 * 1024};
+        List<CompressionModelBase.DictionarySizeResult> results = CompressionModelBase.sweepDictionarySizes(documentList, sizes);
+
+        Assert.assertEquals(sizes.length, results.size());
+        for (int i = 0; i < sizes.length; i++) {
+            CompressionModelBase.DictionarySizeResult result = results.get(i);
+            Assert.assertEquals(sizes[i], result.desiredDictionaryLength);
+            Assert.assertTrue(result.dictionaryLength <= sizes[i]);
+            Assert.assertTrue(result.model instanceof FemtoZipCompressionModel);
+            Assert.assertTrue(result.totalDataSize > 0);
+            Assert.assertTrue(result.totalCompressedSize < result.totalDataSize);
+        }
+        // A dictionary with room for the common text beats a tiny one
+        Assert.assertTrue(results.get(3).totalCompressedSize < results.get(0).totalCompressedSize);
+    }
+
+    @Test
+    public void testHuffmanModelIndependentOfThreads() throws IOException {
+        // DictionaryOptimizer reads the documents to their end, so each build gets its own
+        ByteBuffer dictionary = new DictionaryOptimizer(getJsonDocuments(500)).optimize(1024);
+
+        // Built sequentially, as buildModel() does
+        ArrayDocumentList sequentialDocuments = getJsonDocuments(500);
+        FemtoZipHuffmanModel sequential = new FemtoZipCompressionModelBuilder(dictionary.slice(), sequentialDocuments).buildModel();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        sequential.save(new DataOutputStream(expected));
+
+        // The model was trained on the documents, so it compresses them well
+        FemtoZipCompressionModel compressionModel = new FemtoZipCompressionModel(sequential, dictionary.slice());
+        ByteBuffer document = sequentialDocuments.getBB(0).duplicate();
+        ByteBuffer compressed = ByteBuffer.allocate(document.remaining() * 3 + 64);
+        int length = document.remaining();
+        Assert.assertTrue(compressionModel.compress(document, compressed) * 3 < length);
+
+        for (int threads : new int[] {1, 2, 7}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                FemtoZipHuffmanModel model = new FemtoZipCompressionModelBuilder(dictionary.slice(), getJsonDocuments(500)).buildModel(pool);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                model.save(new DataOutputStream(bytes));
+                Assert.assertArrayEquals("threads " + threads, expected.toByteArray(), bytes.toByteArray());
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static ArrayDocumentList getJsonDocuments(int count) throws IOException {
+        return new ArrayDocumentList(TestUtil.generateJsonDocs(count, new java.util.Random(count)));
+    }
+
+    private static CompressionModelVariant[] getNonNativeVariants() {
+        ArrayList<CompressionModelVariant> variants = new ArrayList<>();
+        for (Object[] variant : TestUtil.getActiveCompressionModels()) {
+            variants.add((CompressionModelVariant)variant[0]);
+        }
+        return variants.toArray(new CompressionModelVariant[0]);
+    }
+
+    @Test
+    public void testParallelOptimalModelMatchesSequential() throws IOException {
+        ArrayDocumentList documents = getJsonDocuments(400);
+
+        ModelOptimizationOptions options = new ModelOptimizationOptions();
+        options.setVariants(getNonNativeVariants());
+        options.setVerify(true);
+        List<CompressionModelBase.ModelOptimizationResult> sequential = new ArrayList<>();
+        CompressionModel sequentialModel = CompressionModelBase.buildOptimalModel(documents, sequential, options);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            options.setExecutor(pool);
+            List<CompressionModelBase.ModelOptimizationResult> parallel = new ArrayList<>();
+            CompressionModel parallelModel = CompressionModelBase.buildOptimalModel(documents, parallel, options);
+
+            Assert.assertTrue(sequentialModel instanceof FemtoZipCompressionModel);
+            Assert.assertEquals(sequentialModel.getClass(), parallelModel.getClass());
+            Assert.assertEquals(sequential.size(), parallel.size());
+            for (int i = 0; i < sequential.size(); i++) {
+                Assert.assertEquals(sequential.get(i).model.getClass(), parallel.get(i).model.getClass());
+                Assert.assertEquals(sequential.get(i).totalCompressedSize, parallel.get(i).totalCompressedSize);
+                Assert.assertEquals(sequential.get(i).totalDataSize, parallel.get(i).totalDataSize);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelMeasureWithSharedDocuments() throws IOException {
+        // Each buffer is listed twice in a row, so however the documents are
+        // chunked some buffer is measured by two chunks at once
+        ArrayDocumentList unique = getJsonDocuments(200);
+        ArrayList<ByteBuffer> shared = new ArrayList<>();
+        for (int i = 0; i < unique.size(); i++) {
+            shared.add(unique.getBB(i));
+            shared.add(unique.getBB(i));
+        }
+
+        ModelOptimizationOptions options = new ModelOptimizationOptions();
+        options.setVariants(getNonNativeVariants());
+        options.setVerify(true);
+        List<CompressionModelBase.ModelOptimizationResult> sequential = new ArrayList<>();
+        CompressionModelBase.buildOptimalModel(new ArrayDocumentList(shared), sequential, options);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            options.setExecutor(pool);
+            for (int run = 0; run < 5; run++) {
+                List<CompressionModelBase.ModelOptimizationResult> parallel = new ArrayList<>();
+                CompressionModelBase.buildOptimalModel(new ArrayDocumentList(shared), parallel, options);
+                Assert.assertEquals(sequential.size(), parallel.size());
+                for (int i = 0; i < sequential.size(); i++) {
+                    Assert.assertEquals(sequential.get(i).totalDataSize, parallel.get(i).totalDataSize);
+                    Assert.assertEquals(sequential.get(i).totalCompressedSize, parallel.get(i).totalCompressedSize);
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testOptimalModelEarlyStop() throws IOException {
+        ArrayDocumentList documents = new ArrayDocumentList(TestUtil.generateJsonDocs(2000, new java.util.Random(7)));
+
+        ModelOptimizationOptions options = new ModelOptimizationOptions();
+        options.setVariants(getNonNativeVariants());
+        List<CompressionModelBase.ModelOptimizationResult> full = new ArrayList<>();
+        CompressionModelBase.buildOptimalModel(documents, full, options);
+
+        options.setEarlyStop(32);
+        List<CompressionModelBase.ModelOptimizationResult> sampled = new ArrayList<>();
+        CompressionModel model = CompressionModelBase.buildOptimalModel(documents, sampled, options);
+
+        // FemtoZip wins by a wide margin on these, so a small sample settles it
+        Assert.assertEquals(full.get(0).model.getClass(), model.getClass());
+        Assert.assertTrue(sampled.get(0).totalDataSize < full.get(0).totalDataSize);
+    }
 }
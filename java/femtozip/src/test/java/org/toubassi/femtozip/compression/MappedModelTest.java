@@ -0,0 +1,180 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.substring.CompressionLevel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class MappedModelTest {
+
+    private static FemtoZipCompressionModel buildModel(Random random) throws IOException {
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel)CompressionModelBase.buildModel(
+                CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.generateJsonDocs(500, random)));
+        model.setLevel(CompressionLevel.Fast);
+        return model;
+    }
+
+    private static void assertSameCompression(FemtoZipCompressionModel expected, FemtoZipCompressionModel actual, ArrayList<ByteBuffer> docs) {
+        for (ByteBuffer doc : docs) {
+            ByteBuffer compressed = TestUtil.compress(actual, doc);
+            Assert.assertEquals(TestUtil.compress(expected, doc), compressed);
+
+            ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+            actual.decompress(compressed, decompressed);
+            Assert.assertEquals(doc, decompressed);
+        }
+    }
+
+    @Test
+    public void testSaveAndLoadMapped() throws IOException {
+        Random random = new Random(21);
+        FemtoZipCompressionModel model = buildModel(random);
+
+        File file = File.createTempFile("femtozip", ".fzmm");
+        try {
+            CompressionModelBase.saveMapped(model, file.getPath());
+            FemtoZipCompressionModel mapped = CompressionModelBase.loadMapped(file.getPath());
+
+            Assert.assertEquals(CompressionLevel.Fast, mapped.getLevel());
+            assertSameCompression(model, mapped, TestUtil.generateJsonDocs(200, random));
+
+            // Saving a mapped model in the stream format rebuilds what the stream format needs
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            mapped.save(new DataOutputStream(bytes));
+            FemtoZipCompressionModel restored = (FemtoZipCompressionModel)CompressionModelBase.loadModel(
+                    new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertSameCompression(model, restored, TestUtil.generateJsonDocs(50, random));
+
+            // As does saving it mapped again
+            File copy = File.createTempFile("femtozip", ".fzmm");
+            try {
+                CompressionModelBase.saveMapped(mapped, copy.getPath());
+                Assert.assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(copy.toPath()));
+            }
+            finally {
+                copy.delete();
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLoadMappedFromBuffer() throws IOException {
+        Random random = new Random(22);
+        FemtoZipCompressionModel model = buildModel(random);
+
+        File file = File.createTempFile("femtozip", ".fzmm");
+        try {
+            CompressionModelBase.saveMapped(model, file.getPath());
+            byte[] bytes = Files.readAllBytes(file.toPath());
+
+            // At an offset into a direct buffer, as when several models are packed into one file
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 8);
+            buffer.position(8);
+            buffer.put(bytes);
+            buffer.position(8);
+            assertSameCompression(model, CompressionModelBase.loadMapped(buffer), TestUtil.generateJsonDocs(100, random));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFullSizeDictionary() throws IOException {
+        Random random = new Random(24);
+        // 64KB, the standard dictionary size, has a compact index, a byte more a wide one
+        for (int length : new int[] { 64 * 1024, 64 * 1024 + 1 }) {
+            FemtoZipCompressionModel model = TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(length, length));
+            File file = File.createTempFile("femtozip", ".fzmm");
+            try {
+                CompressionModelBase.saveMapped(model, file.getPath());
+                try (FemtoZipCompressionModel mapped = CompressionModelBase.loadMapped(file.getPath())) {
+                    assertSameCompression(model, mapped, TestUtil.generateJsonDocs(50, random));
+                    Assert.assertEquals(file.length(), mapped.getMemoryFootprint());
+                }
+
+                // Mapped in place from a buffer the model doesn't own, its index takes no heap
+                FemtoZipCompressionModel inPlace = CompressionModelBase.loadMapped(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+                assertSameCompression(model, inPlace, TestUtil.generateJsonDocs(10, random));
+                Assert.assertTrue(inPlace.getMemoryFootprint() < model.getMemoryFootprint());
+            }
+            finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptMappedModel() throws IOException {
+        Random random = new Random(23);
+        FemtoZipCompressionModel model = buildModel(random);
+
+        File file = File.createTempFile("femtozip", ".fzmm");
+        byte[] bytes;
+        try {
+            CompressionModelBase.saveMapped(model, file.getPath());
+            bytes = Files.readAllBytes(file.toPath());
+        }
+        finally {
+            file.delete();
+        }
+
+        byte[] badMagic = bytes.clone();
+        badMagic[0] ^= 1;
+        assertLoadFails(badMagic);
+
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertLoadFails(truncated);
+
+        // The last bytes are the last decode table, whose entries are checked
+        byte[] badTable = bytes.clone();
+        for (int i = bytes.length - 64; i < bytes.length; i++) {
+            badTable[i] = (byte)0x7f;
+        }
+        assertLoadFails(badTable);
+
+        // The dictionary index isn't checked on load, but garbage in it only costs matches
+        byte[] badIndex = bytes.clone();
+        int dictionaryOffset = ByteBuffer.wrap(bytes).order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt(16);
+        int indexOffset = ByteBuffer.wrap(bytes).order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt(24);
+        Assert.assertTrue(indexOffset > dictionaryOffset);
+        for (int i = indexOffset; i < indexOffset + 40000 && i < bytes.length; i++) {
+            badIndex[i] = (byte)random.nextInt();
+        }
+        FemtoZipCompressionModel corrupt = CompressionModelBase.loadMapped(ByteBuffer.wrap(badIndex));
+        for (ByteBuffer doc : TestUtil.generateJsonDocs(100, random)) {
+            ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+            corrupt.decompress(TestUtil.compress(corrupt, doc), decompressed);
+            Assert.assertEquals(doc, decompressed);
+        }
+    }
+
+    private static void assertLoadFails(byte[] bytes) {
+        try {
+            CompressionModelBase.loadMapped(ByteBuffer.wrap(bytes));
+            Assert.fail("Loaded a corrupt mapped model");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.models.ModelRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ModelRegistryTest {
+
+    @Test
+    public void testAcquireSharesModelsAndDictionaries() throws IOException {
+        FemtoZipCompressionModel original = TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(1, 4000));
+        String path = TestUtil.saveModel(original);
+        String samePath = TestUtil.saveModel(TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(1, 4000)));
+
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            registry.register("tenant", path);
+            FemtoZipCompressionModel model = registry.acquire("tenant");
+            Assert.assertSame(model, registry.acquire("tenant"));
+            model.release();
+            Assert.assertEquals(1, registry.size());
+
+            // A model with the same dictionary, acquired by path, only adds its Huffman tables
+            long footprint = registry.getMemoryFootprint();
+            FemtoZipCompressionModel same = registry.acquire(samePath);
+            Assert.assertTrue(registry.isLoaded(samePath));
+            Assert.assertEquals(same.getMemoryFootprint() - 4000, registry.getMemoryFootprint() - footprint);
+
+            for (ByteBuffer doc : TestUtil.getTrainingDocs()) {
+                ByteBuffer compressed = TestUtil.compress(model, doc);
+                Assert.assertEquals(TestUtil.compress(original, doc), compressed);
+
+                // Its Huffman tables were built separately, so only its own output has to round trip
+                ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+                same.decompress(TestUtil.compress(same, doc), decompressed);
+                Assert.assertEquals(doc, decompressed);
+            }
+            model.release();
+            same.release();
+        }
+    }
+
+    @Test
+    public void testTablesBuiltOnFirstUse() throws IOException {
+        String path = TestUtil.saveModel(TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(2, 4000)));
+        ByteBuffer doc = TestUtil.generateSampleDoc(500);
+
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            FemtoZipCompressionModel model = registry.acquire(path);
+            long loaded = model.getMemoryFootprint();
+            long registryLoaded = registry.getMemoryFootprint();
+
+            ByteBuffer compressed = TestUtil.compress(model, doc);
+            long compressing = model.getMemoryFootprint();
+            Assert.assertTrue(compressing > loaded + 4000);
+
+            model.decompress(compressed, ByteBuffer.allocate(doc.remaining()));
+            Assert.assertTrue(model.getMemoryFootprint() > compressing);
+            model.release();
+
+            // The registry catches up when the model is next acquired
+            Assert.assertEquals(registryLoaded, registry.getMemoryFootprint());
+            registry.acquire(path).release();
+            Assert.assertEquals(model.getMemoryFootprint(), registry.getMemoryFootprint());
+        }
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyAcquired() throws IOException {
+        String[] paths = new String[3];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = TestUtil.saveModel(TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(3 + i, 4000)));
+        }
+
+        long modelFootprint;
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            registry.acquire(paths[0]).release();
+            modelFootprint = registry.getMemoryFootprint();
+        }
+
+        try (ModelRegistry registry = new ModelRegistry(modelFootprint * 5 / 2)) {
+            registry.acquire(paths[0]).release();
+            registry.acquire(paths[1]).release();
+            registry.acquire(paths[0]).release();
+            FemtoZipCompressionModel held = registry.acquire(paths[2]);
+
+            Assert.assertEquals(2, registry.size());
+            Assert.assertFalse(registry.isLoaded(paths[1]));
+            Assert.assertTrue(registry.isLoaded(paths[0]));
+            Assert.assertTrue(registry.getMemoryFootprint() <= registry.getMemoryBudget());
+
+            // An evicted model works until it is released
+            registry.acquire(paths[1]).release();
+            registry.acquire(paths[0]).release();
+            Assert.assertFalse(registry.isLoaded(paths[2]));
+            Assert.assertTrue(held.isOpen());
+            ByteBuffer doc = TestUtil.generateSampleDoc(300);
+            ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+            held.decompress(TestUtil.compress(held, doc), decompressed);
+            Assert.assertEquals(doc, decompressed);
+            held.release();
+            Assert.assertFalse(held.isOpen());
+
+            Assert.assertTrue(registry.invalidate(paths[0]));
+            Assert.assertEquals(1, registry.size());
+        }
+    }
+
+    @Test
+    public void testRejectsOtherModels() throws IOException {
+        String path = TestUtil.saveModel(CompressionModelBase.buildModel(CompressionModelVariant.GZip, new ArrayDocumentList(TestUtil.getTrainingDocs())));
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            registry.acquire(path);
+            Assert.fail("Acquired a GZip model");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
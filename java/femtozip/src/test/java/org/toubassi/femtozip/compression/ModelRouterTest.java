@@ -0,0 +1,157 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.models.FrameHeader;
+import org.toubassi.femtozip.models.ModelRegistry;
+import org.toubassi.femtozip.models.ModelRouter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class ModelRouterTest {
+
+    private static ByteBuffer decompress(ModelRouter router, ByteBuffer frame, int length) throws IOException {
+        ByteBuffer decompressed = ByteBuffer.allocate(length);
+        router.decompress(frame.duplicate(), decompressed);
+        return decompressed;
+    }
+
+    @Test
+    public void testFrameHeader() throws IOException {
+        int[] ids = { 0, 127, 128, 300000, Integer.MAX_VALUE };
+        for (int flags = 0; flags < 8; flags++) {
+            for (int id : ids) {
+                ByteBuffer buffer = ByteBuffer.allocate(32);
+                int written = new FrameHeader(flags, id, 0xcafebabe, id / 3).write(buffer);
+                Assert.assertEquals(written, buffer.position());
+                buffer.flip();
+
+                FrameHeader header = FrameHeader.read(buffer);
+                Assert.assertEquals(written, buffer.position());
+                Assert.assertEquals(flags, header.getFlags());
+                Assert.assertEquals(header.hasModelId() ? id : -1, header.getModelId());
+                Assert.assertEquals(header.hasFingerprint() ? 0xcafebabe : 0, header.getFingerprint());
+                Assert.assertEquals(header.hasLength() ? id / 3 : -1, header.getLength());
+
+                for (int truncated = 0; truncated < written; truncated++) {
+                    ByteBuffer partial = ByteBuffer.wrap(buffer.array(), 0, truncated);
+                    try {
+                        FrameHeader.read(partial);
+                        Assert.fail("Read a truncated header");
+                    }
+                    catch (IOException e) {
+                        // expected
+                    }
+                }
+            }
+        }
+        Assert.assertEquals(2, new FrameHeader(FrameHeader.HasModelId, 5, 0, 0).write(ByteBuffer.allocate(8)));
+
+        try {
+            FrameHeader.read(ByteBuffer.wrap(new byte[] { 0x7f, 0, 0, 0 }));
+            Assert.fail("Read a header with an unknown version");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFingerprint() throws IOException {
+        FemtoZipCompressionModel model = TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(1, 2000));
+        String path = TestUtil.saveModel(model);
+
+        Assert.assertEquals(model.getFingerprint(), ((FemtoZipCompressionModel)CompressionModelBase.loadModel(path)).getFingerprint());
+        try (FemtoZipCompressionModel offHeap = model.toOffHeap()) {
+            Assert.assertEquals(model.getFingerprint(), offHeap.getFingerprint());
+        }
+        Assert.assertTrue(model.getFingerprint() != TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(2, 2000)).getFingerprint());
+    }
+
+    @Test
+    public void testOldAndNewModelsSideBySide() throws IOException {
+        FemtoZipCompressionModel oldModel = TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(3, 2000));
+        FemtoZipCompressionModel newModel = TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(4, 2000));
+
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            registry.register("tenant-v1", TestUtil.saveModel(oldModel));
+            registry.register("tenant-v2", TestUtil.saveModel(newModel));
+            ModelRouter router = new ModelRouter(registry);
+            router.addRoute(1, "tenant-v1");
+
+            ArrayList<ByteBuffer> docs = TestUtil.getTrainingDocs();
+            ArrayList<ByteBuffer> oldFrames = new ArrayList<ByteBuffer>();
+            for (ByteBuffer doc : docs) {
+                ByteBuffer frame = ByteBuffer.allocate(doc.remaining() * 2 + 64);
+                int written = router.compress(1, doc.duplicate(), frame, FrameHeader.HasLength);
+                Assert.assertEquals(written, frame.remaining());
+                oldFrames.add(frame);
+
+                // The data after the header is just what compress writes
+                ByteBuffer payload = frame.duplicate();
+                FrameHeader header = FrameHeader.read(payload);
+                Assert.assertEquals(1, header.getModelId());
+                Assert.assertEquals(doc.remaining(), header.getLength());
+                ByteBuffer compressed = ByteBuffer.allocate(doc.remaining() * 2 + 64);
+                oldModel.compress(doc.duplicate(), compressed);
+                Assert.assertEquals(compressed, payload);
+            }
+
+            // Roll out the new model, frames from the old one still decompress
+            router.addRoute(2, "tenant-v2");
+            for (int i = 0; i < docs.size(); i++) {
+                ByteBuffer doc = docs.get(i);
+                ByteBuffer frame = ByteBuffer.allocate(doc.remaining() * 2 + 64);
+                router.compress(2, doc.duplicate(), frame, FrameHeader.HasFingerprint);
+                Assert.assertEquals(doc, decompress(router, frame, doc.remaining()));
+                Assert.assertEquals(doc, decompress(router, oldFrames.get(i), doc.remaining()));
+            }
+
+            router.removeRoute(1);
+            try {
+                decompress(router, oldFrames.get(0), docs.get(0).remaining());
+                Assert.fail("Decompressed a frame without a route");
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testFingerprintRouting() throws IOException {
+        FemtoZipCompressionModel oldModel = TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(5, 2000));
+        ByteBuffer doc = TestUtil.generateSampleDoc(400);
+
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            registry.register("tenant-v1", TestUtil.saveModel(oldModel));
+            registry.register("tenant-v2", TestUtil.saveModel(TestUtil.buildFemtoZipModel(TestUtil.generateDictionary(6, 2000))));
+            ModelRouter router = new ModelRouter(registry);
+
+            // A frame with only a fingerprint
+            ByteBuffer frame = ByteBuffer.allocate(doc.remaining() * 2 + 64);
+            oldModel.compressFrame(doc.duplicate(), frame, FrameHeader.HasFingerprint, -1);
+            Assert.assertEquals(oldModel.getFingerprint(), router.addFingerprintRoute("tenant-v1"));
+            Assert.assertEquals(doc, decompress(router, frame, doc.remaining()));
+
+            // An id routed to a different model than the frame's fingerprint names is rejected
+            ByteBuffer misrouted = ByteBuffer.allocate(doc.remaining() * 2 + 64);
+            oldModel.compressFrame(doc.duplicate(), misrouted, FrameHeader.HasModelId | FrameHeader.HasFingerprint, 7);
+            router.addRoute(7, "tenant-v2");
+            try {
+                decompress(router, misrouted, doc.remaining());
+                Assert.fail("Decompressed with the wrong model");
+            }
+            catch (IOException e) {
+                // expected
+            }
+            router.addRoute(7, "tenant-v1");
+            Assert.assertEquals(doc, decompress(router, misrouted, doc.remaining()));
+        }
+    }
+}
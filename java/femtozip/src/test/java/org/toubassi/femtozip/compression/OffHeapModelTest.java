@@ -0,0 +1,148 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+
+public class OffHeapModelTest {
+
+    @Test
+    public void testOffHeapMatchesHeap() throws IOException {
+        FemtoZipCompressionModel model = TestUtil.buildFemtoZipModel();
+        ArrayList<ByteBuffer> docs = TestUtil.getTrainingDocs();
+        docs.add(TestUtil.generateSampleDoc(5000));
+
+        try (FemtoZipCompressionModel offHeap = model.toOffHeap()) {
+            for (ByteBuffer doc : docs) {
+                ByteBuffer compressed = TestUtil.compress(offHeap, doc);
+                Assert.assertEquals(TestUtil.compress(model, doc), compressed);
+
+                ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+                offHeap.decompress(compressed, decompressed);
+                Assert.assertEquals(doc, decompressed);
+            }
+        }
+
+        // The original doesn't share the off heap copy's memory
+        ByteBuffer doc = docs.get(0);
+        ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+        model.decompress(TestUtil.compress(model, doc), decompressed);
+        Assert.assertEquals(doc, decompressed);
+    }
+
+    @Test
+    public void testReferenceCounting() throws IOException {
+        FemtoZipCompressionModel model = TestUtil.buildFemtoZipModel().toOffHeap();
+        ByteBuffer doc = TestUtil.generateSampleDoc(300);
+
+        Assert.assertSame(model, model.retain());
+        model.close();
+        model.close();
+        Assert.assertTrue(model.isOpen());
+        TestUtil.compress(model, doc);
+
+        model.release();
+        Assert.assertFalse(model.isOpen());
+        try {
+            TestUtil.compress(model, doc);
+            Assert.fail("Compressed with a freed model");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            model.retain();
+            Assert.fail("Retained a freed model");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            model.release();
+            Assert.fail("Released a freed model");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseDuringCompress() throws IOException {
+        final FemtoZipCompressionModel model = TestUtil.buildFemtoZipModel().toOffHeap();
+        final ByteBuffer doc = TestUtil.generateSampleDoc(300000);
+        FemtoZipCompressionModel copy = model.toOffHeap();
+
+        // Closes the model part way through the document, as another thread might
+        final ByteBuffer source = doc.duplicate();
+        ReadableByteChannel channel = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                if (source.position() > 0) {
+                    model.close();
+                }
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(Math.min(source.limit(), source.position() + Math.min(dst.remaining(), 10000)));
+                dst.put(chunk);
+                int read = chunk.position() - source.position();
+                source.position(chunk.position());
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Assert.assertEquals(doc.remaining(), model.compress(channel, compressed));
+        Assert.assertFalse(model.isOpen());
+
+        ByteBuffer decompressed = ByteBuffer.allocate(doc.remaining());
+        copy.decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressed);
+        Assert.assertEquals(doc, decompressed);
+        copy.close();
+    }
+
+    @Test
+    public void testCloseMappedModel() throws IOException {
+        FemtoZipCompressionModel model = TestUtil.buildFemtoZipModel();
+        File file = File.createTempFile("femtozip", ".fzmm");
+        try {
+            CompressionModelBase.saveMapped(model, file.getPath());
+            FemtoZipCompressionModel mapped = CompressionModelBase.loadMapped(file.getPath());
+            ByteBuffer doc = TestUtil.generateSampleDoc(300);
+            Assert.assertEquals(TestUtil.compress(model, doc), TestUtil.compress(mapped, doc));
+
+            mapped.close();
+            try {
+                mapped.decompress(TestUtil.compress(model, doc), ByteBuffer.allocate(300));
+                Assert.fail("Decompressed with a closed model");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        finally {
+            // Deleting a mapped file fails on some platforms, so this also checks it was unmapped
+            Assert.assertTrue(file.delete());
+        }
+    }
+}
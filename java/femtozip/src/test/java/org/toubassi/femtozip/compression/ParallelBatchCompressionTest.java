@@ -0,0 +1,84 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+@RunWith(Parameterized.class)
+public class ParallelBatchCompressionTest {
+
+    private final CompressionModelVariant variant;
+
+    public ParallelBatchCompressionTest(CompressionModelVariant variant) {
+        this.variant = variant;
+    }
+
+    @Parameterized.Parameters()
+    public static Iterable<Object[]> data() {
+        return TestUtil.getActiveCompressionModels();
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException {
+        CompressionModel model = CompressionModelBase.buildModel(variant, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+
+        ArrayList<ByteBuffer> docs = new ArrayList<>();
+        for (int i = 0; i < 101; i++) {
+            docs.add(TestUtil.generateSampleDoc(i * 53 % 400));
+        }
+        // Decompresses to far more than its compressed size, so the scratch buffers have to grow
+        byte[] repetitive = new byte[20000];
+        Arrays.fill(repetitive, (byte)'a');
+        docs.add(ByteBuffer.wrap(repetitive));
+        ArrayDocumentList documents = new ArrayDocumentList(docs);
+
+        ByteBuffer sequential = ByteBuffer.allocate(200000);
+        int[] sequentialOffsets = new int[docs.size() + 1];
+        model.compressAll(documents, sequential, sequentialOffsets);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            ByteBuffer parallel = ByteBuffer.allocate(200000);
+            parallel.position(5);
+            int[] parallelOffsets = new int[docs.size() + 1];
+            int written = model.compressAll(documents, parallel, parallelOffsets, pool);
+
+            Assert.assertEquals(sequential.remaining(), written);
+            Assert.assertEquals(5, parallel.position());
+            Assert.assertEquals(sequential, parallel);
+            for (int i = 0; i <= docs.size(); i++) {
+                Assert.assertEquals(sequentialOffsets[i] + 5, parallelOffsets[i]);
+            }
+
+            if (variant == CompressionModelVariant.VerboseString) {
+                // A debugging format which can't represent arbitrary bytes such as '<'
+                return;
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(100000);
+            int[] outOffsets = new int[docs.size() + 1];
+            model.decompressAll(parallel, parallelOffsets, docs.size(), out, outOffsets, pool);
+            for (int i = 0; i < docs.size(); i++) {
+                ByteBuffer doc = out.duplicate();
+                doc.position(outOffsets[i]);
+                doc.limit(outOffsets[i + 1]);
+                Assert.assertEquals(variant.name() + " document " + i, docs.get(i), doc);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.toubassi.femtozip.compression;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.ArrayDocumentList;
+import org.toubassi.femtozip.TestUtil;
+import org.toubassi.femtozip.models.CompressionModelBase;
+import org.toubassi.femtozip.models.CompressionModelVariant;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.models.FemtoZipInputStream;
+import org.toubassi.femtozip.models.FemtoZipOutputStream;
+import org.toubassi.femtozip.substring.CompressionLevel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StreamingCompressionTest {
+
+    /**
+     * Random bytes interleaved with copies of earlier stretches, both within and
+     * beyond the 64KB match distance.
+     */
+    private static byte[] generateLargeDoc(int length, Random random) {
+        byte[] doc = new byte[length];
+        int i = 0;
+        while (i < length) {
+            if (i > 1000 && random.nextInt(3) > 0) {
+                int from = Math.max(0, i - 1 - random.nextInt(Math.min(i - 1, 100000)));
+                int n = Math.min(length - i, 4 + random.nextInt(400));
+                for (int j = 0; j < n; j++) {
+                    doc[i++] = doc[from + j];
+                }
+            }
+            else {
+                for (int j = 0, n = Math.min(length - i, random.nextInt(200)); j < n; j++) {
+                    doc[i++] = (byte)random.nextInt(256);
+                }
+            }
+        }
+        return doc;
+    }
+
+    private static byte[] compressStreaming(FemtoZipCompressionModel model, byte[] doc, CompressionLevel level, Random random) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        FemtoZipOutputStream out = new FemtoZipOutputStream(model, compressed, level);
+        for (int i = 0; i < doc.length; ) {
+            int n = Math.min(doc.length - i, random.nextInt(70000));
+            out.write(doc, i, n);
+            i += n;
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompressStreaming(FemtoZipCompressionModel model, byte[] compressed, int length) throws IOException {
+        FemtoZipInputStream in = new FemtoZipInputStream(model, new ByteArrayInputStream(compressed));
+        byte[] buf = new byte[length + 1];
+        int total = 0;
+        int n;
+        while ((n = in.read(buf, total, Math.min(buf.length - total, 5000))) > 0) {
+            total += n;
+        }
+        Assert.assertEquals(-1, in.read());
+        in.close();
+        return Arrays.copyOf(buf, total);
+    }
+
+    @Test
+    public void testStreamingMatchesWholeDocument() throws IOException {
+        Random random = new Random(42);
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+
+        for (int length : new int[] { 0, 1, 100, 5000, 140000, 1000000 }) {
+            byte[] doc = generateLargeDoc(length, random);
+
+            byte[] streamed = compressStreaming(model, doc, CompressionLevel.Max, random);
+
+            ByteBuffer whole = ByteBuffer.allocate(length * 2 + 100);
+            model.compress(ByteBuffer.wrap(doc), whole);
+            byte[] wholeBytes = new byte[whole.remaining()];
+            whole.get(wholeBytes);
+            Assert.assertArrayEquals("Length " + length, wholeBytes, streamed);
+
+            Assert.assertArrayEquals("Length " + length, doc, decompressStreaming(model, streamed, length));
+        }
+    }
+
+    @Test
+    public void testLevelsAndChannel() throws IOException {
+        Random random = new Random(7);
+        FemtoZipCompressionModel model = (FemtoZipCompressionModel) CompressionModelBase.buildModel(CompressionModelVariant.FemtoZip, new ArrayDocumentList(TestUtil.getTrainingDocs()));
+        byte[] doc = generateLargeDoc(300000, random);
+
+        for (CompressionLevel level : CompressionLevel.values()) {
+            byte[] streamed = compressStreaming(model, doc, level, random);
+            Assert.assertArrayEquals(level.name(), doc, decompressStreaming(model, streamed, doc.length));
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        long read = model.compress(Channels.newChannel(new ByteArrayInputStream(doc)), compressed);
+        Assert.assertEquals(doc.length, read);
+        Assert.assertArrayEquals(doc, decompressStreaming(model, compressed.toByteArray(), doc.length));
+    }
+}
@@ -0,0 +1,45 @@
+package org.toubassi.femtozip.dictionary;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SubstringAutomatonTest {
+
+    @Test
+    public void testContainsMatchesBruteForce() {
+        Random random = new Random(1234);
+        SubstringAutomaton automaton = new SubstringAutomaton();
+        List<String> added = new ArrayList<>();
+
+        for (int round = 0; round < 200; round++) {
+            String s = randomString(random, 1 + random.nextInt(20));
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            automaton.add(bytes, 0, bytes.length);
+            added.add(s);
+
+            for (int query = 0; query < 20; query++) {
+                String q = randomString(random, 1 + random.nextInt(6));
+                boolean expected = false;
+                for (String a : added) {
+                    expected |= a.contains(q);
+                }
+                byte[] padded = ("xx" + q).getBytes(StandardCharsets.ISO_8859_1);
+                assertEquals(q, expected, automaton.contains(padded, 2, q.length()));
+            }
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char)('a' + random.nextInt(3)));
+        }
+        return sb.toString();
+    }
+}
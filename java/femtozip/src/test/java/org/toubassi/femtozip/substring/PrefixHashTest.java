@@ -15,9 +15,17 @@
  */
 package org.toubassi.femtozip.substring;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
 
 import junit.framework.Assert;
 
@@ -80,4 +88,170 @@ public class PrefixHashTest {
         Assert.assertEquals(0, bestMatchIndex);
         Assert.assertEquals(0, bestMatchLength);
     }
+
+    @Test
+    public void testMatchLengthAcrossBufferKinds() throws IOException {
+        byte[] a = new byte[300];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = (byte)(i * 7);
+        }
+        ByteOrder[] orders = { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN };
+
+        for (int mismatch = 0; mismatch <= 40; mismatch++) {
+            byte[] b = a.clone();
+            b[5 + mismatch]++;
+
+            for (ByteOrder aOrder : orders) {
+                for (ByteOrder bOrder : orders) {
+                    ByteBuffer aBuf = ByteBuffer.wrap(a).order(aOrder);
+                    ByteBuffer bBuf = ByteBuffer.allocateDirect(b.length).order(bOrder);
+                    bBuf.put(b).flip();
+
+                    Assert.assertEquals(mismatch, PrefixHash.matchLength(aBuf, 5, bBuf, 5, 255));
+                    Assert.assertEquals(Math.min(mismatch, 13), PrefixHash.matchLength(aBuf, 5, bBuf, 5, 13));
+                }
+            }
+
+            // Both on the heap, one a slice so its array offset isn't 0
+            ByteBuffer aHeap = ByteBuffer.wrap(a);
+            ByteBuffer bHeap = ByteBuffer.wrap(b);
+            bHeap.position(3);
+            bHeap = bHeap.slice();
+            Assert.assertEquals(mismatch, PrefixHash.matchLength(aHeap, 5, bHeap, 2, 255));
+            Assert.assertEquals(Math.min(mismatch, 13), PrefixHash.matchLength(aHeap, 5, bHeap, 2, 13));
+        }
+    }
+
+    @Test
+    public void testSaveAndRestore() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap("a man a clan a canal panama, a man a plan a canal panama".getBytes("UTF-8"));
+
+        // Reset once so the saved entries have to be rebased from a later generation
+        PrefixHash hash = new PrefixHash(ByteBuffer.wrap("a canal, a plan".getBytes("UTF-8")), true);
+        hash.reset(bytes);
+        for (int i = 0, count = bytes.remaining() - PrefixHash.PrefixLength; i < count; i++) {
+            hash.put(i);
+        }
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(saved);
+        hash.save(out);
+        out.close();
+
+        PrefixHash restored = new PrefixHash(bytes, new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+
+        ByteBuffer target = ByteBuffer.wrap("so a plan a canal panama it is".getBytes("UTF-8"));
+        for (int i = 0; i < target.remaining() - PrefixHash.PrefixLength; i++) {
+            Assert.assertEquals(hash.getBestMatch(i, target), restored.getBestMatch(i, target));
+        }
+
+        byte[] corrupt = saved.toByteArray();
+        corrupt[corrupt.length - 1] = 0x7f;
+        try {
+            new PrefixHash(bytes, new DataInputStream(new ByteArrayInputStream(corrupt)));
+            Assert.fail("Expected a corrupt hash to be rejected");
+        }
+        catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testCompactMatchesWide() throws IOException {
+        assertCompactMatchesWide(20000);
+        // The standard dictionary size, whose last hashed index + 1 is the largest entry a char holds
+        assertCompactMatchesWide(PrefixHash.MaxCompactLength);
+
+        Assert.assertFalse(PrefixHash.forDictionary(ByteBuffer.allocate(PrefixHash.MaxCompactLength + 1)).isCompact());
+    }
+
+    private static void assertCompactMatchesWide(int length) throws IOException {
+        Random random = new Random(11);
+        byte[] dictionary = new byte[length];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = (byte)('a' + random.nextInt(random.nextInt(3) == 0 ? 26 : 4));
+        }
+        byte[] target = new byte[4000];
+        for (int i = 0; i < target.length; i++) {
+            target[i] = random.nextInt(8) == 0 ? (byte)random.nextInt(256) : dictionary[(i * 31) % dictionary.length];
+        }
+        // Ends with the end of the dictionary, so the last hashed indexes match
+        System.arraycopy(dictionary, length - 100, target, target.length - 100, 100);
+        ByteBuffer dictionaryBytes = ByteBuffer.wrap(dictionary);
+        ByteBuffer targetBytes = ByteBuffer.wrap(target);
+
+        PrefixHash wide = new PrefixHash(dictionaryBytes, true);
+        PrefixHash compact = PrefixHash.forDictionary(dictionaryBytes);
+        Assert.assertTrue(compact.isCompact());
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(saved);
+        compact.save(out);
+        out.close();
+        PrefixHash restored = PrefixHash.loadCompact(dictionaryBytes, new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+
+        // Collisions differ, so only matches long enough to be used have to agree
+        for (int i = 0; i < target.length - PrefixHash.PrefixLength; i++) {
+            long wideMatch = wide.getBestMatch(i, targetBytes);
+            long compactMatch = compact.getBestMatch(i, targetBytes);
+            if ((int)wideMatch >= PrefixHash.PrefixLength || (int)compactMatch >= PrefixHash.PrefixLength) {
+                Assert.assertEquals(wideMatch, compactMatch);
+            }
+            Assert.assertEquals(compactMatch, restored.getBestMatch(i, targetBytes));
+        }
+        Assert.assertEquals(length - 100, (int)(compact.getBestMatch(target.length - 100, targetBytes) >> 32));
+    }
+
+    @Test
+    public void testCompactSaveAndRestore() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap("a man a clan a canal panama, a man a plan a canal panama".getBytes("UTF-8"));
+        PrefixHash hash = PrefixHash.forDictionary(bytes);
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(saved);
+        hash.save(out);
+        out.close();
+
+        PrefixHash restored = PrefixHash.loadCompact(bytes, new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+        Assert.assertTrue(restored.isCompact());
+
+        ByteBuffer target = ByteBuffer.wrap("so a plan a canal panama it is".getBytes("UTF-8"));
+        for (int i = 0; i < target.remaining() - PrefixHash.PrefixLength; i++) {
+            Assert.assertEquals(hash.getBestMatch(i, target), restored.getBestMatch(i, target));
+        }
+
+        byte[] corrupt = saved.toByteArray();
+        corrupt[corrupt.length - 2] = 0x7f;
+        try {
+            PrefixHash.loadCompact(bytes, new DataInputStream(new ByteArrayInputStream(corrupt)));
+            Assert.fail("Expected a corrupt hash to be rejected");
+        }
+        catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testMappedMemoryFootprint() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap("a man a clan a canal panama, a man a plan a canal panama".getBytes("UTF-8"));
+        int length = bytes.remaining();
+
+        PrefixHash wide = new PrefixHash(bytes, true);
+        IntBuffer ints = IntBuffer.allocate(PrefixHash.getHashLength(length) + length);
+        wide.write(ints);
+        ints.flip();
+        IntBuffer intHash = ints.duplicate();
+        intHash.limit(PrefixHash.getHashLength(length));
+        ints.position(intHash.limit());
+        Assert.assertTrue(wide.getMemoryFootprint() > 0);
+        Assert.assertEquals(0, new PrefixHash(bytes, intHash, ints.slice()).getMemoryFootprint());
+
+        PrefixHash compact = PrefixHash.forDictionary(bytes);
+        CharBuffer chars = ByteBuffer.allocateDirect(2 * (PrefixHash.getCompactHashLength(length) + length)).asCharBuffer();
+        compact.write(chars);
+        chars.flip();
+        CharBuffer charHash = chars.duplicate();
+        charHash.limit(PrefixHash.getCompactHashLength(length));
+        chars.position(charHash.limit());
+        Assert.assertTrue(compact.getMemoryFootprint() > 0);
+        Assert.assertEquals(0, new PrefixHash(bytes, charHash, chars.slice()).getMemoryFootprint());
+    }
 }